@@ -0,0 +1,175 @@
+package spinworld.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import spinworld.RoundType;
+import spinworld.actions.Appropriate;
+import spinworld.actions.Demand;
+import spinworld.actions.Generate;
+import spinworld.actions.Provision;
+import spinworld.facts.Allocation;
+import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
+import spinworld.facts.Round;
+import spinworld.facts.RoundLedgers;
+import spinworld.network.MemberOf;
+import spinworld.network.Network;
+import spinworld.rules.DroolsRoundEngine;
+import spinworld.rules.KnowledgeBaseCache;
+import spinworld.rules.NativeRoundEngine;
+import spinworld.rules.RoundDraws;
+import spinworld.rules.RoundEngine;
+import spinworld.rules.RuleLogger;
+import uk.ac.imperial.presage2.rules.RuleModule;
+import uk.ac.imperial.presage2.util.location.Location;
+
+/*
+ * Cost of one DEMAND + APPROPRIATE cycle played by either round engine, as chosen with
+ * the engine parameter of SpinWorldSimulation. Actions are the same as in
+ * RoundCycleBenchmark, so the drools timings can be compared across both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class RoundEngineBenchmark {
+
+	@Param({ RoundEngine.DROOLS, RoundEngine.NATIVE })
+	public String engine;
+
+	@Param({ "20", "100", "500", "2000" })
+	public int agents;
+
+	static final int networks = 5;
+
+	// Every nth particle provisions less than it generated, so sanctions get exercised
+	static final int cheatEvery = 5;
+
+	StatefulKnowledgeSession session;
+	RoundEngine rounds;
+	List<Particle> particles;
+	Random rnd;
+	int round;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		boolean nativeEngine = RoundEngine.NATIVE.equals(engine);
+		Injector injector = Guice.createInjector(nativeEngine
+				? KnowledgeBaseCache.override(new RuleModule())
+				: KnowledgeBaseCache.override(new RuleModule(),
+						"SpinWorld.drl", "Institution.drl", "RandomAllocation.drl"));
+
+		session = injector.getInstance(StatefulKnowledgeSession.class);
+		ParticleRegistry registry = new ParticleRegistry();
+		rounds = nativeEngine ? new NativeRoundEngine(session, registry)
+				: new DroolsRoundEngine(session);
+
+		Logger logger = Logger.getLogger(RoundEngineBenchmark.class);
+		logger.setLevel(org.apache.log4j.Level.WARN);
+
+		rounds.setGlobal("logger", new RuleLogger(logger));
+		rounds.setGlobal("session", session);
+		rounds.setGlobal("stats", null);
+		rounds.setGlobal("ledgers", new RoundLedgers());
+		rounds.setGlobal("draws", new RoundDraws(1));
+
+		rnd = new Random(42);
+
+		List<Network> nets = new ArrayList<Network>();
+		for (int n = 0; n < networks; n++) {
+			Network net = new Network(n, Allocation.RANDOM, 0.5, 0.1, 3, 0.2, 1.0, 0.5);
+			nets.add(net);
+			session.insert(net);
+		}
+
+		particles = new ArrayList<Particle>();
+		for (int i = 0; i < agents; i++) {
+			Particle p = new Particle(new UUID(0, i), "p" + i, "C", 0.1, 0.1, 1, 1,
+					new Location(i % 20, i / 20));
+			registry.register(p);
+			particles.add(p);
+			session.insert(p);
+			session.insert(new MemberOf(p, nets.get(i % networks)));
+		}
+
+		round = 1;
+		generate();
+		rounds.play(RoundType.INIT);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		session.dispose();
+	}
+
+	private void generate() {
+		List<Object> generated = new ArrayList<Object>();
+		for (Particle p : particles) {
+			generated.add(new Generate(p, round, rnd));
+		}
+		rounds.insert(generated);
+	}
+
+	@Benchmark
+	public int cycle() {
+		List<Object> actions = new ArrayList<Object>();
+		actions.add(new Round(round, RoundType.DEMAND));
+		for (int i = 0; i < particles.size(); i++) {
+			Particle p = particles.get(i);
+			double provision = i % cheatEvery == 0 ? p.getG() / 2 : p.getG();
+			actions.add(new Provision(round, p, provision));
+			actions.add(new Demand(round, p, p.getQ()));
+		}
+		rounds.insert(actions);
+		rounds.play(RoundType.DEMAND);
+
+		actions.clear();
+		actions.add(new Round(round, RoundType.APPROPRIATE));
+		for (Particle p : particles) {
+			actions.add(new Appropriate(round, p, p.getAllocated()));
+		}
+		rounds.insert(actions);
+		round++;
+		generate();
+		rounds.play(RoundType.APPROPRIATE);
+
+		return round;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RoundEngineBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,163 @@
+package spinworld.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import spinworld.RoundType;
+import spinworld.actions.Appropriate;
+import spinworld.actions.Demand;
+import spinworld.actions.Generate;
+import spinworld.actions.JoinNetwork;
+import spinworld.actions.Provision;
+import spinworld.facts.Allocation;
+import spinworld.facts.Particle;
+import spinworld.facts.Round;
+import spinworld.facts.RoundLedgers;
+import spinworld.network.MemberOf;
+import spinworld.network.Network;
+import spinworld.rules.KnowledgeBaseCache;
+import spinworld.rules.RoundDraws;
+import spinworld.rules.RoundPhases;
+import spinworld.rules.RuleLogger;
+import uk.ac.imperial.presage2.rules.RuleModule;
+import uk.ac.imperial.presage2.rules.RuleStorage;
+import uk.ac.imperial.presage2.util.location.Location;
+
+/*
+ * Cost of the APPROPRIATE cycle alone, where cheats are detected and sanctioned, as the
+ * number of agents grows. Every network monitors all of its members, so detection runs
+ * for every particle. The DEMAND cycle is played outside of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class SanctionPhaseBenchmark {
+
+	@Param({ "50", "200", "1000", "2000" })
+	public int agents;
+
+	// Every nth particle provides less and appropriates more than it should
+	static final int cheatEvery = 5;
+
+	RuleStorage rules;
+	StatefulKnowledgeSession session;
+	List<Particle> particles;
+	Random rnd;
+	int round;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Injector injector = Guice.createInjector(KnowledgeBaseCache.override(new RuleModule(),
+				"SpinWorld.drl", "Institution.drl", "RandomAllocation.drl"));
+
+		rules = injector.getInstance(RuleStorage.class);
+
+		Logger logger = Logger.getLogger(SanctionPhaseBenchmark.class);
+		logger.setLevel(org.apache.log4j.Level.WARN);
+
+		session = injector.getInstance(StatefulKnowledgeSession.class);
+		session.setGlobal("logger", new RuleLogger(logger));
+		session.setGlobal("session", session);
+		session.setGlobal("stats", null);
+		session.setGlobal("ledgers", new RoundLedgers());
+		session.setGlobal("draws", new RoundDraws(1));
+
+		rnd = new Random(42);
+
+		// Cheap monitoring and no expulsions, so every network keeps its members
+		List<Network> nets = new ArrayList<Network>();
+		for (int n = 0; n < 5; n++) {
+			Network net = new Network(n, Allocation.RANDOM, 1.0, 0.0, Integer.MAX_VALUE, 0.0, 1.0, 1.0);
+			nets.add(net);
+			session.insert(net);
+		}
+
+		particles = new ArrayList<Particle>();
+		for (int i = 0; i < agents; i++) {
+			Particle p = new Particle(new UUID(0, i), "p" + i, "C", 0.1, 0.1, 1, 1,
+					new Location(i % 20, i / 20));
+			particles.add(p);
+			session.insert(p);
+			session.insert(new JoinNetwork(p, nets.get(i % nets.size())));
+			session.insert(new MemberOf(p, nets.get(i % nets.size())));
+		}
+
+		round = 1;
+	}
+
+	@Setup(Level.Invocation)
+	public void demand() {
+		for (Particle p : particles) {
+			session.insert(new Generate(p, round, rnd));
+		}
+		rules.incrementTime();
+
+		session.insert(new Round(round, RoundType.DEMAND));
+		for (int i = 0; i < particles.size(); i++) {
+			Particle p = particles.get(i);
+			double provision = i % cheatEvery == 0 ? p.getG() / 2 : p.getG();
+			session.insert(new Provision(round, p, provision));
+			session.insert(new Demand(round, p, p.getQ()));
+		}
+		RoundPhases.focus(session, RoundType.DEMAND);
+		rules.incrementTime();
+		RoundPhases.tick(session);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		session.dispose();
+	}
+
+	@Benchmark
+	public int sanction() {
+		session.insert(new Round(round, RoundType.APPROPRIATE));
+		for (int i = 0; i < particles.size(); i++) {
+			Particle p = particles.get(i);
+			double appropriation = i % cheatEvery == 0 ? p.getAllocated() * 2 : p.getAllocated();
+			session.insert(new Appropriate(round, p, appropriation));
+		}
+		RoundPhases.focus(session, RoundType.APPROPRIATE);
+		rules.incrementTime();
+		RoundPhases.tick(session);
+
+		return ++round;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(SanctionPhaseBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,106 @@
+package spinworld.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import spinworld.Cheat;
+import uk.ac.imperial.presage2.core.db.DatabaseModule;
+import uk.ac.imperial.presage2.core.db.DatabaseService;
+import uk.ac.imperial.presage2.core.db.StorageService;
+import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
+import uk.ac.imperial.presage2.core.simulator.RunnableSimulation;
+
+/*
+ * Time of a whole SpinWorldSimulation with its agents executing on 1 to 16 simulator
+ * threads. Agents move, form networks and choose their actions in parallel; the actions
+ * are committed in canonical order at the end of each step, so every thread count plays
+ * the same rounds for a seed (TestSpinWorldSimulation checks this). Simulations are
+ * stored on the local database of the test db.properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ThreadScalingBenchmark {
+
+	@Param({ "1", "2", "4", "8", "16" })
+	public int threads;
+
+	@Param({ "20", "100" })
+	public int agents;
+
+	static final int rounds = 50;
+
+	DatabaseService db;
+	StorageService storage;
+	long simId;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Injector injector = Guice.createInjector(DatabaseModule.load());
+		db = injector.getInstance(DatabaseService.class);
+		db.start();
+		storage = injector.getInstance(StorageService.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		db.stop();
+	}
+
+	// A fresh simulation with the same seed for every run
+	@Setup(Level.Invocation)
+	public void insert() {
+		PersistentSimulation sim = storage.createSimulation("THREADS_" + threads, "spinworld.SpinWorldSimulation",
+				"AUTO START", rounds);
+		sim.addParameter("finishTime", Integer.toString(rounds));
+		sim.addParameter("size", Integer.toString(10));
+		sim.addParameter("alpha", Double.toString(0.1));
+		sim.addParameter("beta", Double.toString(0.1));
+		sim.addParameter("theta", Double.toString(0.1));
+		sim.addParameter("phi", Double.toString(0.1));
+		sim.addParameter("cAgents", Integer.toString(agents / 2));
+		sim.addParameter("cPCheat", Double.toString(0.025));
+		sim.addParameter("ncAgents", Integer.toString(agents - agents / 2));
+		sim.addParameter("ncPCheat", Double.toString(0.4));
+		sim.addParameter("seed", Integer.toString(42));
+		sim.addParameter("cheatOn", Cheat.PROVISION.name());
+		simId = sim.getID();
+	}
+
+	@Benchmark
+	public long simulation() throws Exception {
+		RunnableSimulation.runSimulationID(simId, threads);
+		return simId;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(ThreadScalingBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+}
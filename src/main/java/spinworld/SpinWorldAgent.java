@@ -17,7 +17,6 @@ import org.apache.commons.math.stat.descriptive.SummaryStatistics;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
-import uk.ac.imperial.presage2.core.db.persistent.TransientAgentState;
 import uk.ac.imperial.presage2.core.environment.ActionHandlingException;
 import uk.ac.imperial.presage2.core.environment.ParticipantSharedState;
 import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
@@ -25,12 +24,14 @@ import uk.ac.imperial.presage2.core.messaging.Input;
 import uk.ac.imperial.presage2.util.location.Location;
 
 import spinworld.RoundType;
+import spinworld.actions.ActionBuffer;
 import spinworld.actions.Appropriate;
 import spinworld.actions.CreateNetwork;
 import spinworld.actions.Demand;
 import spinworld.actions.JoinNetwork;
 import spinworld.actions.LeaveNetwork;
 import spinworld.actions.Provision;
+import spinworld.db.ParticleRoundRecord;
 import spinworld.facts.Allocation;
 import spinworld.facts.Particle;
 import spinworld.mobility.MobileAgent;
@@ -80,6 +81,10 @@ public class SpinWorldAgent extends MobileAgent {
 	@Inject
 	@Named("params.forgiveness")
 	private double forgiveness;
+	
+	// Changes to shared network state are committed after all agents have executed
+	@Inject
+	private ActionBuffer actions;
 
 	double g = 0; // Resources generated
 	double q = 0; // Resources needed
@@ -106,11 +111,11 @@ public class SpinWorldAgent extends MobileAgent {
 	SummaryStatistics overallUtility = new SummaryStatistics();
 	DescriptiveStatistics scarcity = new DescriptiveStatistics(100);
 	DescriptiveStatistics need = new DescriptiveStatistics(100);
+	final ParticleRoundRecord roundRecord = new ParticleRoundRecord();
 
 	protected SpinWorldService resourcesGame;
 	protected NetworkService networkService;
 	protected MobilityService mobilityService;
-	protected java.util.Random rnd;
 
 	NetworkLeaveAlgorithm networkLeave = NetworkLeaveAlgorithm.THRESHOLD;
 	NetworkAssess networkEvaluation;
@@ -129,14 +134,13 @@ public class SpinWorldAgent extends MobileAgent {
 			double a, double b, double c, double pCheat, double alpha, double beta, Cheat cheatOn, 
 			NetworkLeaveAlgorithm netLeave, boolean resetSatisfaction, long rndSeed, double t1, 
 			double t2, double theta, double phi) {
-		super(id, name, myLocation, velocity, radius);
+		super(id, name, myLocation, velocity, radius, rndSeed);
 		this.pCheat = pCheat;
 		this.alpha = alpha;
 		this.beta = beta;
 		this.ut = new UtilityFunction(a, b, c);
 		this.cheatOn = cheatOn;
 		this.resetSatisfaction = resetSatisfaction;
-		this.rnd = new java.util.Random(rndSeed);
 		
 		this.networkLeave = netLeave;
 		int leaveThreshold = 3;
@@ -206,10 +210,18 @@ public class SpinWorldAgent extends MobileAgent {
 		if (resourcesGame.getRound() == RoundType.DEMAND) {
 			this.collisions = this.mobilityService.getCollisions(getID());
 
-			if (this.collisions != null) {					
-				for (Particle p : collisions) {
-					formNetworks(p);
-				}	
+			if (this.collisions != null) {
+				final List<Particle> collided = new ArrayList<Particle>(collisions);
+				
+				// Membership depends on other agents' choices, so resolve it in the commit step
+				commitShared(new Runnable() {
+					@Override
+					public void run() {
+						for (Particle p : collided) {
+							formNetworks(p);
+						}
+					}
+				});
 			}
 			
 			if (this.network == null)
@@ -322,25 +334,31 @@ public class SpinWorldAgent extends MobileAgent {
 		}
 	}
 	
-	private void formNetworks(Particle p) {
-		synchronized(this.networkService) {
-			this.network = this.networkService.getNetwork(getID());
-			Network otherNetwork = this.networkService.getNetwork(p.getId());
+	// Run now if already committing, otherwise queue behind this agent's other actions
+	private void commitShared(Runnable task) {
+		if (actions.isCommitting())
+			task.run();
+		else
+			actions.defer(getID(), task);
+	}
 	
-			if (network == null) {
-				if (otherNetwork == null)
-					createNetwork(p);
-				else if (otherNetwork != null)
-					joinNetwork(p, otherNetwork);
-			}
-			else if (network != null) {
-				if (otherNetwork == null && !this.networkService.isBanned(p.getId(), network)) {
-					logger.info("Reserved particle " + p.getName() + " joined network: " + network.toString());
-					this.networkService.joinMembership(p.getId(), getID(), network);
-				}
-				else if (otherNetwork != null && !network.equals(otherNetwork))
-					assessNetwork(p, otherNetwork);
+	private void formNetworks(Particle p) {
+		this.network = this.networkService.getNetwork(getID());
+		Network otherNetwork = this.networkService.getNetwork(p.getId());
+
+		if (network == null) {
+			if (otherNetwork == null)
+				createNetwork(p);
+			else if (otherNetwork != null)
+				joinNetwork(p, otherNetwork);
+		}
+		else if (network != null) {
+			if (otherNetwork == null && !this.networkService.isBanned(p.getId(), network)) {
+				logger.info("Reserved particle " + p.getName() + " joined network: " + network.toString());
+				this.networkService.joinMembership(p.getId(), getID(), network);
 			}
+			else if (otherNetwork != null && !network.equals(otherNetwork))
+				assessNetwork(p, otherNetwork);
 		}
 	}
 	
@@ -376,13 +394,21 @@ public class SpinWorldAgent extends MobileAgent {
 	protected void leaveNetwork() {
 		if (this.network == null)
 			return;
-		try {
-		    this.networkService.retractMembership(getID());
-		    environment.act(new LeaveNetwork(this.network), getID(), authkey);
-			this.network = null;
-		} catch (ActionHandlingException e) {
-			logger.warn("Failed to leave network", e);
-		}
+		
+		// Stop playing in the network straight away; the membership goes at the commit
+		final Network left = this.network;
+		this.network = null;
+		commitShared(new Runnable() {
+			@Override
+			public void run() {
+				try {
+				    networkService.retractMembership(getID());
+				    environment.act(new LeaveNetwork(left), getID(), authkey);
+				} catch (ActionHandlingException e) {
+					logger.warn("Failed to leave network", e);
+				}
+			}
+		});
 	}
 
 	protected void assessNetwork(Particle p, Network otherNet) {
@@ -428,20 +454,21 @@ public class SpinWorldAgent extends MobileAgent {
 				+ ", R=" + rTotal + ", U=" + u + ", o=" + satisfaction + "]");
 
 		if (this.persist != null) {
-			TransientAgentState state = this.persist.getState(resourcesGame.getRoundNumber() - 1);
-			state.setProperty("g", Double.toString(g));
-			state.setProperty("q", Double.toString(q));
-			state.setProperty("d", Double.toString(d));
-			state.setProperty("p", Double.toString(p));
-			state.setProperty("r", Double.toString(r));
-			state.setProperty("r'", Double.toString(rP));
-			state.setProperty("RTotal", Double.toString(rTotal));
-			state.setProperty("U", Double.toString(u));
-			state.setProperty("o", Double.toString(satisfaction));
-			state.setProperty("network", Integer.toString(this.network != null ? this.network.getId() : -1));
-			state.setProperty("pCheat", Double.toString(pCheat));
-			state.setProperty("catchRate", Double.toString(catchRate));
-			state.setProperty("risk", Double.toString(risk));
+			ParticleRoundRecord rec = this.roundRecord;
+			rec.g = g;
+			rec.q = q;
+			rec.d = d;
+			rec.p = p;
+			rec.r = r;
+			rec.rP = rP;
+			rec.rTotal = rTotal;
+			rec.u = u;
+			rec.satisfaction = satisfaction;
+			rec.network = this.network != null ? this.network.getId() : -1;
+			rec.pCheat = pCheat;
+			rec.catchRate = catchRate;
+			rec.risk = risk;
+			this.resourcesGame.getRoundLog().append(getID(), resourcesGame.getRoundNumber() - 1, rec);
 		}
 
 		if (!networkUtilities.containsKey(this.network)) {
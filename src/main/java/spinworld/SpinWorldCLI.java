@@ -1,8 +1,12 @@
 package spinworld;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
@@ -19,10 +23,19 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.log4j.Logger;
 
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+
 import spinworld.db.ConnectionlessStorage;
+import spinworld.db.LocalDatabase;
 import spinworld.db.Queries;
+import spinworld.db.RecordReader;
+import spinworld.db.RecordTable;
+import spinworld.db.RecordWriter;
 import spinworld.db.SpinWorldStorage;
+import spinworld.db.Summariser;
 import spinworld.gui.SpinWorldGUI;
+import spinworld.rules.RuleProfiler;
 import uk.ac.imperial.presage2.core.cli.Presage2CLI;
 import uk.ac.imperial.presage2.core.db.DatabaseService;
 import uk.ac.imperial.presage2.core.db.persistent.PersistentAgent;
@@ -525,16 +538,49 @@ public class SpinWorldCLI extends Presage2CLI {
 
 	@Command(name = "summarise", description = "Process raw simulation data to generate evaluation metrics.")
 	public void summarise(String[] args) {
+		int workers = 4;
+
+		Options options = new Options();
+		options.addOption("w", "workers", true, "Number of simulations summarised at once, each on its own connection (default " + workers + ").");
+		options.addOption("v", "vacuum", false, "Run VACUUM FULL before summarising.");
+		options.addOption("h", "help", false, "Show help");
+
+		CommandLineParser parser = new GnuParser();
+		CommandLine cmd;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("presage2cli summarise", options, true);
+			return;
+		}
+		if (cmd.hasOption("h")) {
+			new HelpFormatter().printHelp("presage2cli summarise", options, true);
+			return;
+		}
+		if (cmd.hasOption("w")) {
+			try {
+				workers = Integer.parseInt(cmd.getOptionValue("w"));
+			} catch (NumberFormatException e) {
+				System.err.println("Workers no. should be an integer.");
+				return;
+			}
+		}
+
 		logger.warn("This implementation assumes you are using postgresql >= 9.1 with hstore, it will fail otherwise.");
 
 		// Get database to trigger injector creation
 		getDatabase();
-		// Pull JDBC connection from injector
+		// Pull JDBC connection from injector, workers open their own from the same info
 		Connection conn = injector.getInstance(Connection.class);
+		Properties jdbcInfo = injector.getInstance(Key.get(Properties.class, Names.named("sql.info")));
 
 		try {
 			logger.info("Creating tables and views. ");
 
+			logger.info("CREATE TABLE roundAllocationRatios");
+			conn.createStatement().execute(Queries.getQuery("create_roundallocationratios"));
+
 			logger.info("CREATE VIEW allocationRatios");
 			conn.createStatement().execute(Queries.getQuery("create_allocationratios"));
 
@@ -547,81 +593,15 @@ public class SpinWorldCLI extends Presage2CLI {
 			logger.info("CREATE TABLE aggregatedParticleScore");
 			conn.createStatement().execute(Queries.getQuery("create_aggregatedparticlescore"));
 
-			logger.info("Vacuuming database...");
-			conn.createStatement().execute("VACUUM FULL");
+			if (cmd.hasOption("v")) {
+				logger.info("Vacuuming database...");
+				conn.createStatement().execute("VACUUM FULL");
+			}
 
 			logger.info("Processing simulations...");
-
-			// Prepare statements
-			PreparedStatement aggregatedParticleScore = conn
-					.prepareStatement(Queries.getQuery("insert_aggregatedparticlescore"));
-			PreparedStatement networkStats = conn.prepareStatement(Queries.getQuery("select_networks"));
-			PreparedStatement remaining = conn.prepareStatement(Queries.getQuery("select_agentsremaining"));
-			PreparedStatement insertSummary = conn.prepareStatement(Queries.getQuery("insert_simulationsummary"));
-
-			// Get subset to process
-			ResultSet unprocessed = conn.createStatement()
-					.executeQuery(Queries.getQuery("select_unprocessedsimulations"));
-
-			while (unprocessed.next()) {
-				long id = unprocessed.getLong(1);
-				String name = unprocessed.getString(2);
-				int finishTime = unprocessed.getInt(3);
-				int cutoff = (int) (Math.floor(finishTime / 2)) - 1;
-
-				logger.info(id + ": " + name);
-
-				// START TRANSACTION
-				conn.setAutoCommit(false);
-
-				// Generate particle scores per network
-				aggregatedParticleScore.setLong(1, id);
-				aggregatedParticleScore.setLong(2, id);
-				aggregatedParticleScore.execute();
-
-				networkStats.setLong(1, id);
-				ResultSet networks = networkStats.executeQuery();
-				logger.debug("Cutoff: " + cutoff);
-				while (networks.next()) {
-					int network = networks.getInt(1);
-					logger.debug("Network " + network);
-
-					// Calculate c and nc remaining
-					int crem = 0;
-					int ncrem = 0;
-
-					remaining.setLong(1, id);
-					remaining.setString(2, "c%");
-					remaining.setInt(3, cutoff);
-					remaining.setInt(4, network);
-					ResultSet rs = remaining.executeQuery();
-					if (rs.next()) {
-						crem = rs.getInt(1);
-					}
-
-					remaining.setString(2, "nc%");
-					rs = remaining.executeQuery();
-					if (rs.next()) {
-						ncrem = rs.getInt(1);
-					}
-
-					// Insert summary
-					insertSummary.setLong(1, id);
-					insertSummary.setString(2, name);
-					insertSummary.setInt(3, network);
-					insertSummary.setDouble(4, networks.getDouble(2));
-					insertSummary.setDouble(5, networks.getDouble(3));
-					insertSummary.setDouble(6, networks.getDouble(4));
-					insertSummary.setDouble(7, networks.getDouble(5));
-					insertSummary.setDouble(8, networks.getDouble(6));
-					insertSummary.setInt(9, crem);
-					insertSummary.setInt(10, ncrem);
-					insertSummary.execute();
-				}
-
-				// COMMIT TRANSACTION
-				conn.commit();
-			}
+			int failed = new Summariser(jdbcInfo, workers).summarise(conn);
+			if (failed > 0)
+				logger.warn(failed + " simulations could not be summarised, run summarise again to retry them.");
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
 		} finally {
@@ -669,6 +649,117 @@ public class SpinWorldCLI extends Presage2CLI {
 				|| !p.containsKey("r") || !p.containsKey("r'") || !p.containsKey("RTotal") || !p.containsKey("U");
 	}
 
+	@Command(name = "load_records", description = "Bulk load record files written by run_hpc into the database.")
+	public void load_records(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("b", "binary", false, "Files are in binary record format.");
+		options.addOption("h", "help", false, "Show help");
+
+		CommandLineParser parser = new GnuParser();
+		CommandLine cmd;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("presage2cli load_records [DIR]", options, true);
+			return;
+		}
+		if (cmd.hasOption("h")) {
+			new HelpFormatter().printHelp("presage2cli load_records [DIR]", options, true);
+			return;
+		}
+
+		RecordWriter.Format format = cmd.hasOption("b") ? RecordWriter.Format.BINARY : RecordWriter.Format.TEXT;
+		String dir = cmd.getArgs().length > 1 ? cmd.getArgs()[1] : ".";
+
+		getDatabase();
+		Connection conn = injector.getInstance(Connection.class);
+
+		try {
+			// Parent rows first, so foreign keys are satisfied
+			for (RecordTable table : new RecordTable[] { RecordTable.particles, RecordTable.networks,
+					RecordTable.particleScore, RecordTable.networkScore, RecordTable.aggregatedParticleScore,
+					RecordTable.roundAllocationRatios }) {
+				Path file = Paths.get(dir, table.getFileName(format));
+				if (!file.toFile().exists()) {
+					logger.warn("No file " + file + ", skipping " + table.name());
+					continue;
+				}
+
+				conn.setAutoCommit(false);
+				RecordReader in = RecordReader.open(file, format);
+				try {
+					long rows = table.load(conn, in);
+					conn.commit();
+					logger.info("Loaded " + rows + " rows into " + table.name());
+				} finally {
+					in.close();
+				}
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		} finally {
+			stopDatabase();
+		}
+	}
+
+	@Command(name = "rule_profile", description = "Report the hottest rules of a run with the profile parameter set.")
+	public void rule_profile(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("r", "round", true, "Report a single round instead of the whole run.");
+		options.addOption("n", "top", true, "Number of rules to report (default 10).");
+		options.addOption("h", "help", false, "Show help");
+
+		CommandLineParser parser = new GnuParser();
+		CommandLine cmd;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("presage2cli rule_profile <SIMID|FILE>", options, true);
+			return;
+		}
+		if (cmd.hasOption("h") || cmd.getArgs().length < 2) {
+			new HelpFormatter().printHelp("presage2cli rule_profile <SIMID|FILE>", options, true);
+			return;
+		}
+
+		// A simulation ID refers to the file given as its profile parameter
+		String file = cmd.getArgs()[1];
+		try {
+			long simulationID = Long.parseLong(file);
+			PersistentSimulation sim = getDatabase().getSimulationById(simulationID);
+			Object profile = sim != null ? sim.getParameters().get("profile") : null;
+			stopDatabase();
+			if (profile == null || profile.toString().isEmpty()) {
+				System.err.println("Simulation " + simulationID + " was not run with a profile.");
+				return;
+			}
+			file = profile.toString();
+		} catch (NumberFormatException e) {
+			// Not an ID, so a report file
+		}
+
+		String round = cmd.getOptionValue("r", RuleProfiler.RUN);
+		int top = Integer.parseInt(cmd.getOptionValue("n", "10"));
+
+		Map<String, RuleProfiler.Counts> counts;
+		BufferedReader in = Files.newBufferedReader(Paths.get(file), Charset.forName("UTF-8"));
+		try {
+			counts = RuleProfiler.read(in, round);
+		} finally {
+			in.close();
+		}
+
+		logger.info(String.format("%-50s %12s %10s %12s %10s %10s", "Rule (" + round + ")", "activations",
+				"fires", "rhs ms", "inserts", "retracts"));
+		for (Map.Entry<String, RuleProfiler.Counts> e : RuleProfiler.hottest(counts, top)) {
+			RuleProfiler.Counts c = e.getValue();
+			logger.info(String.format("%-50s %12d %10d %12.3f %10d %10d", e.getKey(), c.getActivations(),
+					c.getFires(), c.getRhsMillis(), c.getInserts(), c.getRetracts()));
+		}
+	}
+
 	@Command(name = "graph", description = "Export graphs for simulation.")
 	public void export_graphs(String[] args) throws Exception {
 		SpinWorldGUI.main(args);
@@ -682,13 +773,15 @@ public class SpinWorldCLI extends Presage2CLI {
 
 		Options options = new Options();
 		options.addOption(
-				OptionBuilder.withArgName("url").hasArg().withDescription("Database url.").isRequired().create("url"));
-		options.addOption(OptionBuilder.withArgName("user").hasArg().withDescription("Database user.").isRequired()
+				OptionBuilder.withArgName("url").hasArg().withDescription("Database url.").create("url"));
+		options.addOption(OptionBuilder.withArgName("user").hasArg().withDescription("Database user.")
 				.create("user"));
 		options.addOption(OptionBuilder.withArgName("password").hasArg().withDescription("Database user's password.")
-				.isRequired().create("password"));
+				.create("password"));
+		options.addOption("l", "local", true, "Use the local database kept in this directory instead of url, user and password.");
 		options.addOption("r", "retry", true, "Number of times to attempt db reconnect.");
 		options.addOption("t", "threads", true, "Number of threads for the simulator (default " + threads + ").");
+		options.addOption("b", "binary", false, "Write length-prefixed binary record files instead of text.");
 		options.addOption("h", "help", false, "Show help");
 
 		CommandLineParser parser = new GnuParser();
@@ -704,6 +797,11 @@ public class SpinWorldCLI extends Presage2CLI {
 			new HelpFormatter().printHelp("presage2cli run <ID>", options, true);
 			return;
 		}
+		if (!cmd.hasOption("l") && !(cmd.hasOption("url") && cmd.hasOption("user") && cmd.hasOption("password"))) {
+			System.err.println("Either url, user and password or local are required.");
+			new HelpFormatter().printHelp("presage2cli run <ID>", options, true);
+			return;
+		}
 		if (cmd.hasOption("t")) {
 			try {
 				threads = Integer.parseInt(cmd.getOptionValue("t"));
@@ -729,12 +827,20 @@ public class SpinWorldCLI extends Presage2CLI {
 			return;
 		}
 
-		Properties jdbcInfo = new Properties();
-		jdbcInfo.put("driver", "com.mysql.jdbc.Driver");
-		jdbcInfo.put("url", cmd.getOptionValue("url"));
-		jdbcInfo.put("user", cmd.getOptionValue("user"));
-		jdbcInfo.put("password", cmd.getOptionValue("password"));
-		ConnectionlessStorage storage = new ConnectionlessStorage(jdbcInfo, retries);
+		Properties jdbcInfo;
+		if (cmd.hasOption("l")) {
+			// Records are still written to files, the local database only holds the simulation
+			jdbcInfo = LocalDatabase.start(new File(cmd.getOptionValue("l")), LocalDatabase.DEFAULT_PORT)
+					.getJdbcInfo();
+		} else {
+			jdbcInfo = new Properties();
+			jdbcInfo.put("driver", "com.mysql.jdbc.Driver");
+			jdbcInfo.put("url", cmd.getOptionValue("url"));
+			jdbcInfo.put("user", cmd.getOptionValue("user"));
+			jdbcInfo.put("password", cmd.getOptionValue("password"));
+		}
+		ConnectionlessStorage storage = new ConnectionlessStorage(jdbcInfo, retries,
+				cmd.hasOption("b") ? RecordWriter.Format.BINARY : RecordWriter.Format.TEXT);
 		DatabaseService db = storage;
 		db.start();
 
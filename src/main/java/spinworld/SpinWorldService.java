@@ -1,19 +1,20 @@
 package spinworld;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
-import org.drools.runtime.ObjectFilter;
 import org.drools.runtime.StatefulKnowledgeSession;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
+import spinworld.actions.ActionBuffer;
+import spinworld.db.NetworkRoundStats;
+import spinworld.db.ParticleRoundLog;
 import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
 import spinworld.facts.Round;
+import spinworld.rules.RoundEngine;
 import uk.ac.imperial.presage2.core.environment.EnvironmentRegistrationRequest;
 import uk.ac.imperial.presage2.core.environment.EnvironmentService;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
@@ -26,8 +27,12 @@ public class SpinWorldService extends EnvironmentService {
 	
 	private final Logger logger = Logger.getLogger(this.getClass());
 	final StatefulKnowledgeSession session;
+	final RoundEngine engine;
 	
-	Map<UUID, Particle> particles = new HashMap<UUID, Particle>();
+	final ParticleRegistry particles;
+	final ActionBuffer actions;
+	final ParticleRoundLog roundLog;
+	final NetworkRoundStats networkStats;
 	
 	// Initialised round
 	RoundType round = RoundType.INIT;
@@ -35,21 +40,32 @@ public class SpinWorldService extends EnvironmentService {
 	
 	@Inject
 	protected SpinWorldService(EnvironmentSharedStateAccess sharedState,
-			StatefulKnowledgeSession session, EventBus eb) {
+			StatefulKnowledgeSession session, RoundEngine engine, ParticleRegistry particles,
+			ActionBuffer actions, ParticleRoundLog roundLog,
+			NetworkRoundStats networkStats, EventBus eb) {
 		super(sharedState);
 		this.session = session;
+		this.engine = engine;
+		this.particles = particles;
+		this.actions = actions;
+		this.roundLog = roundLog;
+		this.networkStats = networkStats;
 		eb.subscribe(this);
 	}
 	
 	// Move to next stage of round or next round altogether
 	@EventListener
 	public void onIncrementTime(EndOfTimeCycle e) {
+		// Apply this cycle's actions in canonical order and settle them before the round moves on
+		actions.commit();
+		engine.play(round);
+		
 		if (round == RoundType.DEMAND) {
 			round = RoundType.APPROPRIATE;
-			session.insert(new Round(roundNumber, RoundType.APPROPRIATE));
+			engine.insert(new Round(roundNumber, RoundType.APPROPRIATE));
 		} else {
 			round = RoundType.DEMAND;
-			session.insert(new Round(++roundNumber, RoundType.DEMAND));
+			engine.insert(new Round(++roundNumber, RoundType.DEMAND));
 		}
 		
 		logger.info("Next round: " + round);
@@ -60,23 +76,7 @@ public class SpinWorldService extends EnvironmentService {
 
 	}
 	
-	// Query session in order to access players within environment shared state
-	private synchronized Particle getParticle(final UUID id) {
-		if (!particles.containsKey(id)) {
-			Collection<Object> rawParticles = session
-					.getObjects(new ObjectFilter() {
-						@Override
-						public boolean accept(Object object) {
-							return object instanceof Particle;
-						}
-					});
-			
-			for (Object pObj : rawParticles) {
-				Particle p = (Particle) pObj;
-				particles.put(p.getId(), p);
-			}
-		}
-		
+	private Particle getParticle(final UUID id) {
 		return particles.get(id);
 	}
 
@@ -87,6 +87,21 @@ public class SpinWorldService extends EnvironmentService {
 	public int getRoundNumber() {
 		return roundNumber;
 	}
+	
+	// Particle scores awaiting storage
+	public ParticleRoundLog getRoundLog() {
+		return roundLog;
+	}
+	
+	// Engine playing the rounds, which actions are inserted into
+	public RoundEngine getEngine() {
+		return engine;
+	}
+	
+	// Network scores awaiting storage
+	public NetworkRoundStats getNetworkStats() {
+		return networkStats;
+	}
 
 	public double getG(UUID pId) {
 		return getParticle(pId).getG();
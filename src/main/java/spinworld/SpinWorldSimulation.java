@@ -1,6 +1,10 @@
 package spinworld;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
@@ -13,16 +17,25 @@ import com.google.inject.Inject;
 import spinworld.SpinWorldAgent.NetworkLeaveAlgorithm;
 import spinworld.actions.Generate;
 import spinworld.actions.SpinWorldActionHandler;
-import spinworld.allocators.RandomAllocator;
 import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
+import spinworld.facts.RoundLedgers;
 import spinworld.mobility.MobilityService;
 import spinworld.network.NetworkService;
+import spinworld.rules.DroolsRoundEngine;
+import spinworld.rules.KnowledgeBaseCache;
+import spinworld.rules.NativeRoundEngine;
+import spinworld.rules.RoundDraws;
+import spinworld.rules.RoundEngine;
+import spinworld.rules.RuleLogger;
+import spinworld.rules.RuleProfiler;
 import uk.ac.imperial.presage2.core.environment.EnvironmentServiceProvider;
 import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
 import uk.ac.imperial.presage2.core.event.EventBus;
 import uk.ac.imperial.presage2.core.event.EventListener;
 import uk.ac.imperial.presage2.core.plugin.PluginModule;
 import uk.ac.imperial.presage2.core.simulator.EndOfTimeCycle;
+import uk.ac.imperial.presage2.core.simulator.FinalizeEvent;
 import uk.ac.imperial.presage2.core.simulator.InjectedSimulation;
 import uk.ac.imperial.presage2.core.simulator.Parameter;
 import uk.ac.imperial.presage2.core.simulator.Scenario;
@@ -45,12 +58,13 @@ public class SpinWorldSimulation extends InjectedSimulation {
 	// engine, where the state of the session is kept across invocations
 	private StatefulKnowledgeSession session;
 	
-	private Set<Particle> particles = new HashSet<Particle>();
+	private ParticleRegistry particles;
 	private Scenario scenario;
 	private MobilityService mobilityService;
 	private NetworkService networkService;	
 	private SpinWorldService resourcesGame;
 	private java.util.Random rnd;
+	private RuleProfiler profiler = null;
 	
 	protected int particleCtr = 0;
 	protected int genCtr = 0;
@@ -143,6 +157,18 @@ public class SpinWorldSimulation extends InjectedSimulation {
 	@Parameter(name = "forgiveness", optional = true)
 	public double forgiveness = 1.0;
 	
+	// Number of recent observations agents base risk and catch rates on, 0 for all of them
+	@Parameter(name = "historyWindow", optional = true)
+	public int historyWindow = 0;
+	
+	// File to write a per-rule profile of the rule engine to, none if empty
+	@Parameter(name = "profile", optional = true)
+	public String profile = "";
+	
+	// Engine playing the rounds: "drools" for the rule files, "native" for plain Java
+	@Parameter(name = "engine", optional = true)
+	public String engine = RoundEngine.DROOLS;
+	
 	public SpinWorldSimulation(Set<AbstractModule> modules) {
 		super(modules);
 	}
@@ -150,6 +176,21 @@ public class SpinWorldSimulation extends InjectedSimulation {
 	@Inject
 	public void setSession(StatefulKnowledgeSession session) {
 		this.session = session;
+		
+		if (profile != null && !profile.isEmpty()) {
+			try {
+				this.profiler = new RuleProfiler(Paths.get(profile));
+			} catch (IOException e) {
+				logger.warn(e);
+				throw new RuntimeException(e);
+			}
+			profiler.attach(session);
+		}
+	}
+	
+	@Inject
+	public void setParticleRegistry(ParticleRegistry particles) {
+		this.particles = particles;
 	}
 	
 	@Inject
@@ -186,10 +227,26 @@ public class SpinWorldSimulation extends InjectedSimulation {
 				.addParticipantGlobalEnvironmentService(SpinWorldService.class)
 				.setStorage(RuleStorage.class));
 		
-		modules.add(new RuleModule().addClasspathDrlFile("SpinWorld.drl")
-				.addClasspathDrlFile("Institution.drl")
-				.addClasspathDrlFile("RandomAllocation.drl")
-				.addStateTranslator(SimParticipantsTranslator.class));
+		// Rules are compiled once and cached across simulations. The native engine plays
+		// the rounds itself, so its session holds facts only
+		final boolean nativeEngine = RoundEngine.NATIVE.equalsIgnoreCase(engine);
+		if (nativeEngine)
+			modules.add(KnowledgeBaseCache.override(new RuleModule()
+					.addStateTranslator(SimParticipantsTranslator.class)));
+		else
+			modules.add(KnowledgeBaseCache.override(new RuleModule()
+					.addStateTranslator(SimParticipantsTranslator.class),
+					"SpinWorld.drl", "Institution.drl", "RandomAllocation.drl"));
+		
+		modules.add(new AbstractModule() {
+			@Override
+			protected void configure() {
+				if (nativeEngine)
+					bind(RoundEngine.class).to(NativeRoundEngine.class);
+				else
+					bind(RoundEngine.class).to(DroolsRoundEngine.class);
+			}
+		});
 		
 		// Fully connected network
 		modules.add(NetworkModule.fullyConnectedNetworkModule());	
@@ -205,13 +262,15 @@ public class SpinWorldSimulation extends InjectedSimulation {
 		
 		// Set up range for random seed
 		this.rnd = new java.util.Random(this.seed);
-		RandomAllocator.rnd = new java.util.Random(rnd.nextLong());
 
 		// Initialise globals from parameters
-		session.setGlobal("logger", this.logger);
-		session.setGlobal("session", session);
-		session.setGlobal("storage", this.storage);
-		session.setGlobal("rnd", new java.util.Random(rnd.nextLong()));
+		RoundEngine rounds = resourcesGame.getEngine();
+		rounds.setGlobal("logger", new RuleLogger(this.logger));
+		rounds.setGlobal("session", session);
+		// Network scores are only collected when there is a storage to drain them
+		rounds.setGlobal("stats", this.storage != null ? resourcesGame.getNetworkStats() : null);
+		rounds.setGlobal("draws", new RoundDraws(rnd.nextLong()));
+		rounds.setGlobal("ledgers", new RoundLedgers());
 		
 		for (int n = 0; n < cAgents; n++) {
 			createParticle("c" + n, "C",
@@ -226,9 +285,7 @@ public class SpinWorldSimulation extends InjectedSimulation {
 		}
 		
 		// Generate resources needed
-		for (Particle p : particles) {
-			session.insert(new Generate(p, resourcesGame.getRoundNumber() + 1, rnd));
-		}
+		generate();
 	}
 	
 	protected Cheat getCheatOn() {
@@ -257,7 +314,8 @@ public class SpinWorldSimulation extends InjectedSimulation {
 		scenario.addParticipant(ag);
 		
 		Particle p = new Particle(pid, name, type, alpha, beta, radius, velocity, loc);		
-		particles.add(p);
+		p.setHistoryWindow(historyWindow);
+		particles.register(p);
 		
 		session.insert(p);
 		particleCtr++;
@@ -265,6 +323,15 @@ public class SpinWorldSimulation extends InjectedSimulation {
 		return ag;
 	}
 	
+	// Generate facts for every particle, inserted as one batch
+	protected void generate() {
+		List<Object> generated = new ArrayList<Object>();
+		for (Particle p : particles.getParticles()) {
+			generated.add(new Generate(p, resourcesGame.getRoundNumber() + 1, rnd));
+		}
+		resourcesGame.getEngine().insert(generated);
+	}
+	
 	public NetworkLeaveAlgorithm getNetworkLeave() {
 		return networkLeave;
 	}
@@ -272,13 +339,24 @@ public class SpinWorldSimulation extends InjectedSimulation {
 	@EventListener
 	public void incrementTime(EndOfTimeCycle e) {
 		// Generate new g and q
-		for (Particle p : particles) {
-			session.insert(new Generate(p, resourcesGame.getRoundNumber() + 1, rnd));
-		}
+		generate();
 		
-		mobilityService.clearCollisions();
 		networkService.printNetworks(e.getTime());
 	}
 	
+	@EventListener
+	public void onFinalize(FinalizeEvent e) {
+		if (profiler != null) {
+			try {
+				profiler.close();
+			} catch (IOException ex) {
+				logger.warn(ex);
+			}
+		}
+		
+		// The knowledge base is cached across simulations and keeps every session it made
+		session.dispose();
+	}
+	
 }
 
@@ -0,0 +1,144 @@
+package spinworld.actions;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import spinworld.facts.ParticleRegistry;
+import uk.ac.imperial.presage2.core.Action;
+
+/*
+ * Actions emitted by agents while they execute in parallel. Each thread appends to
+ * its own buffer; the commit step then applies everything on a single thread, ordered
+ * by particle creation index so the outcome does not depend on thread scheduling.
+ * An agent's own entries keep the order in which it emitted them.
+ */
+@Singleton
+public class ActionBuffer {
+
+	public interface Committer {
+		void beginCommit();
+		void apply(UUID actor, Action action);
+		void endCommit();
+	}
+
+	static class Entry {
+		final int order;
+		final UUID actor;
+		final Action action;
+		final Runnable task;
+
+		Entry(int order, UUID actor, Action action, Runnable task) {
+			super();
+			this.order = order;
+			this.actor = actor;
+			this.action = action;
+			this.task = task;
+		}
+	}
+
+	// A thread's entries, dropped at the first commit after the thread has ended
+	static class Buffer {
+		final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+		final List<Entry> entries = new ArrayList<Entry>();
+
+		boolean isOrphaned() {
+			Thread t = owner.get();
+			return t == null || !t.isAlive();
+		}
+	}
+
+	static final Comparator<Entry> canonical = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			return e1.order < e2.order ? -1 : (e1.order == e2.order ? 0 : 1);
+		}
+	};
+
+	final ParticleRegistry particles;
+	final Queue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+	final ThreadLocal<Buffer> local = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			Buffer buffer = new Buffer();
+			buffers.add(buffer);
+			return buffer;
+		}
+	};
+
+	Committer committer = null;
+	volatile Thread committing = null;
+
+	@Inject
+	public ActionBuffer(ParticleRegistry particles) {
+		super();
+		this.particles = particles;
+	}
+
+	public void setCommitter(Committer committer) {
+		this.committer = committer;
+	}
+
+	// True while the commit step runs on this thread, when actions apply immediately
+	public boolean isCommitting() {
+		return committing == Thread.currentThread();
+	}
+
+	public void add(UUID actor, Action action) {
+		local.get().entries.add(new Entry(particles.indexOf(actor), actor, action, null));
+	}
+
+	// Work that changes shared state (e.g. network membership) is run during the commit
+	public void defer(UUID actor, Runnable task) {
+		local.get().entries.add(new Entry(particles.indexOf(actor), actor, null, task));
+	}
+
+	// Apply all buffered actions and tasks in canonical order; must be called once
+	// every agent has finished executing for this time cycle
+	public void commit() {
+		List<Entry> pending = new ArrayList<Entry>();
+		for (Iterator<Buffer> it = buffers.iterator(); it.hasNext();) {
+			Buffer buffer = it.next();
+			pending.addAll(buffer.entries);
+			buffer.entries.clear();
+			// Pool threads that have finished won't add to theirs again
+			if (buffer.isOrphaned())
+				it.remove();
+		}
+
+		// Stable, so each agent's entries stay in emission order
+		Collections.sort(pending, canonical);
+
+		committing = Thread.currentThread();
+		try {
+			committer.beginCommit();
+			for (Entry e : pending) {
+				if (e.task != null)
+					e.task.run();
+				else
+					committer.apply(e.actor, e.action);
+			}
+			committer.endCommit();
+		} finally {
+			committing = null;
+		}
+	}
+
+	public boolean isEmpty() {
+		for (Buffer buffer : buffers) {
+			if (!buffer.entries.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+}
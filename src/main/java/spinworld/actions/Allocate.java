@@ -11,15 +11,14 @@ public class Allocate extends TimeStampedAction {
 
 	// Allocate in a random order
 	public Allocate(Particle p, double quantity, int time) {
-		super(time);
-		this.particle = p;
-		this.quantity = quantity;
-		this.order = Random.randomDouble();
+		this(p, quantity, time, Random.randomDouble());
 	}
 
 	// Allocate resources in a specified order
 	public Allocate(Particle p, double quantity, int time, double order) {
-		this(p, quantity, time);
+		super(time);
+		this.particle = p;
+		this.quantity = quantity;
 		this.order = order;
 	}
 
@@ -1,20 +1,19 @@
 package spinworld.actions;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
-import org.drools.ObjectFilter;
-import org.drools.runtime.StatefulKnowledgeSession;
 
 import com.google.inject.Inject;
 
 import spinworld.SpinWorldService;
 import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
 import spinworld.mobility.MobilityService;
 import spinworld.network.NetworkService;
+import spinworld.rules.RoundEngine;
 import uk.ac.imperial.presage2.core.Action;
 import uk.ac.imperial.presage2.core.environment.ActionHandler;
 import uk.ac.imperial.presage2.core.environment.ActionHandlingException;
@@ -32,7 +31,7 @@ import uk.ac.imperial.presage2.util.location.area.EdgeException;
 import uk.ac.imperial.presage2.util.location.area.HasArea;
 
 @ServiceDependencies({ LocationService.class, AreaService.class })
-public class SpinWorldActionHandler implements ActionHandler {
+public class SpinWorldActionHandler implements ActionHandler, ActionBuffer.Committer {
 
     final private Logger logger = Logger.getLogger(SpinWorldActionHandler.class);
 	
@@ -41,24 +40,33 @@ public class SpinWorldActionHandler implements ActionHandler {
 	final protected HasArea environment;
 	final protected EnvironmentSharedStateAccess sharedState;
 	
-	final StatefulKnowledgeSession session;
-	Map<UUID, Particle> particles = new HashMap<UUID, Particle>();
+	final RoundEngine engine;
+	final ParticleRegistry particles;
+	final ActionBuffer buffer;
+	boolean collisionsCleared = false;
+	
+	// Actions applied by this commit, inserted into the engine together at its end
+	final List<Object> batch = new ArrayList<Object>();
 
 	MobilityService mobilityService = null;
 	NetworkService networkService = null;
 	SpinWorldService spinWorldService = null;
 	
 	@Inject
-	public SpinWorldActionHandler(StatefulKnowledgeSession session,
+	public SpinWorldActionHandler(RoundEngine engine,
 			HasArea environment,
 			EnvironmentServiceProvider serviceProvider,
-			EnvironmentSharedStateAccess sharedState)
+			EnvironmentSharedStateAccess sharedState, ParticleRegistry particles,
+			ActionBuffer buffer)
 			throws UnavailableServiceException {
 		super();
-		this.session = session;
+		this.engine = engine;
 		this.environment = environment;
 		this.serviceProvider = serviceProvider;
 		this.sharedState = sharedState;
+		this.particles = particles;
+		this.buffer = buffer;
+		buffer.setCommitter(this);
 	}
 	
 	MobilityService getMobilityService() {
@@ -99,20 +107,7 @@ public class SpinWorldActionHandler implements ActionHandler {
 		return this.spinWorldService;
 	}
 	
-	private synchronized Particle getParticle(final UUID id) {
-		if (!particles.containsKey(id)) {
-			Collection<Object> rawParticles = session
-					.getObjects(new ObjectFilter() {
-						@Override
-						public boolean accept(Object object) {
-							return object instanceof Particle;
-						}
-					});
-			for (Object pObj : rawParticles) {
-				Particle p = (Particle) pObj;
-				particles.put(p.getId(), p);
-			}
-		}
+	private Particle getParticle(final UUID id) {
 		return particles.get(id);
 	}
 	
@@ -124,6 +119,41 @@ public class SpinWorldActionHandler implements ActionHandler {
 	@Override
 	public Input handle(Action action, UUID actor)
 			throws ActionHandlingException {
+		// Agents execute in parallel, so their actions wait for the commit step
+		if (!buffer.isCommitting()) {
+			buffer.add(actor, action);
+			return null;
+		}
+		
+		process(action, actor);
+		return null;
+	}
+	
+	@Override
+	public void beginCommit() {
+		collisionsCleared = false;
+		batch.clear();
+	}
+	
+	@Override
+	public void endCommit() {
+		if (batch.isEmpty())
+			return;
+		
+		engine.insert(batch);
+		batch.clear();
+	}
+	
+	@Override
+	public void apply(UUID actor, Action action) {
+		try {
+			process(action, actor);
+		} catch (ActionHandlingException e) {
+			logger.warn("Failed to apply " + action, e);
+		}
+	}
+	
+	private void process(Action action, UUID actor) throws ActionHandlingException {
 		getMobilityService();
 		getNetworkService();
 		
@@ -132,6 +162,13 @@ public class SpinWorldActionHandler implements ActionHandler {
 		// If mobile agent action is to move
 		if (action instanceof Move) {			
 			final Move m = (Move) action;
+			
+			// Collisions are those caused by this cycle's moves only
+			if (!collisionsCleared) {
+				this.mobilityService.clearCollisions();
+				collisionsCleared = true;
+			}
+
 			Location loc = null;
 
 			// Get the agent's current location
@@ -152,7 +189,7 @@ public class SpinWorldActionHandler implements ActionHandler {
 							.getValidMove(loc, m);
 					target = new Location(loc.add(mNew));
 					
-					// If the move is valid, update the agent's location to target
+					// If the move is valid, update the agent's location (and grid cell) to target
 					this.mobilityService.setLocation(actor, target);
 					
 					// Check if any collisions occurred at this target location
@@ -171,12 +208,10 @@ public class SpinWorldActionHandler implements ActionHandler {
 		if (action instanceof TimeStampedAction)
 			((TimeStampedAction) action).setT(getSpinWorldService().getRoundNumber());
 		
-		session.insert(action);
+		batch.add(action);
 
 		if (logger.isDebugEnabled())
 			logger.debug("Handling: " + action);
-		
-		return null;
 	}
 
 }
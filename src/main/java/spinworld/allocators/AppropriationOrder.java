@@ -0,0 +1,41 @@
+package spinworld.allocators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import spinworld.actions.Allocate;
+import spinworld.actions.Appropriate;
+import spinworld.facts.Particle;
+
+// Order in which a network serves appropriations from its allocation pool
+public class AppropriationOrder {
+
+	// Appropriations of particles allocated to this round, highest allocation order first
+	public static List<Appropriate> sort(List<?> appropriations, List<?> allocations) {
+		final Map<Particle, Double> order = new HashMap<Particle, Double>();
+		for (Object o : allocations) {
+			Allocate a = (Allocate) o;
+			order.put(a.getParticle(), a.getOrder());
+		}
+
+		List<Appropriate> sorted = new ArrayList<Appropriate>(appropriations.size());
+		for (Object o : appropriations) {
+			Appropriate a = (Appropriate) o;
+			if (order.containsKey(a.getParticle()))
+				sorted.add(a);
+		}
+
+		Collections.sort(sorted, new Comparator<Appropriate>() {
+			@Override
+			public int compare(Appropriate a, Appropriate b) {
+				return Double.compare(order.get(b.getParticle()), order.get(a.getParticle()));
+			}
+		});
+		return sorted;
+	}
+
+}
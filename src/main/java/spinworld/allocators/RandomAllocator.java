@@ -1,28 +1,22 @@
 package spinworld.allocators;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.Random;
 
 import org.drools.runtime.StatefulKnowledgeSession;
 
 import spinworld.actions.Allocate;
 import spinworld.facts.Particle;
+import spinworld.network.NetworkRoster;
 
 // Allocate resources to players in a random order from the common pool
 public class RandomAllocator {
 
-	public static Random rnd;
-	
+	// Draws come from the network's generator for the round, see RoundDraws
 	public static void allocate(StatefulKnowledgeSession session,
-			List<Particle> particles, double poolSize, int t) {
-		particles = new ArrayList<Particle>(particles);
-		Collections.shuffle(particles, rnd);
-		
-		for (Particle p : particles) {
+			NetworkRoster roster, double poolSize, int t, Random rnd) {
+		for (Particle p : roster.shuffled(rnd)) {
 			double allocation = Math.min(p.getD(), poolSize);
-			session.insert(new Allocate(p, allocation, t));
+			session.insert(new Allocate(p, allocation, t, rnd.nextDouble()));
 			poolSize -= allocation;
 		}
 	}
@@ -1,15 +1,11 @@
 package spinworld.db;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 
 import uk.ac.imperial.presage2.core.util.random.Random;
 import uk.ac.imperial.presage2.db.sql.Agent;
@@ -21,13 +17,12 @@ import spinworld.network.Network;
 
 public class ConnectionlessStorage extends SpinWorldStorage {
 
-	private enum OutputTable {
-		particleScore, networks, particles
-	};
-
-	Map<OutputTable, FileWriter> outputFiles = new HashMap<OutputTable, FileWriter>();
+	Map<RecordTable, RecordWriter> outputFiles = new HashMap<RecordTable, RecordWriter>();
+	RecordWriter.Format format = RecordWriter.Format.TEXT;
 	int retries;
 	boolean connected = false;
+	// Set by the final stop, not by dropping the connection
+	boolean finished = false;
 
 	@Inject
 	public ConnectionlessStorage() {
@@ -39,6 +34,12 @@ public class ConnectionlessStorage extends SpinWorldStorage {
 		this.retries = retries;
 	}
 
+	public ConnectionlessStorage(@Named("sql.info") Properties jdbcInfo, int retries,
+			RecordWriter.Format format) {
+		this(jdbcInfo, retries);
+		this.format = format;
+	}
+
 	@Override
 	protected void initTables() {
 	}
@@ -79,6 +80,7 @@ public class ConnectionlessStorage extends SpinWorldStorage {
 	public synchronized void stop() {
 		if (!shutdown) {
 			shutdown = true;
+			finished = true;
 			logger.info("Reconnect");
 
 			if (!connected) {
@@ -91,10 +93,9 @@ public class ConnectionlessStorage extends SpinWorldStorage {
 
 			super.stop();
 			connected = false;
-			for (FileWriter fw : outputFiles.values()) {
+			for (RecordWriter out : outputFiles.values()) {
 				try {
-					fw.flush();
-					fw.close();
+					out.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -113,18 +114,15 @@ public class ConnectionlessStorage extends SpinWorldStorage {
 	@Override
 	protected synchronized void updateTransientEnvironment() {
 		try {
-			Writer out = getOutputFile(OutputTable.networks);
+			RecordWriter out = getOutputFile(RecordTable.networks);
 			
 			for (Network n : this.netWorld.getNetworks()) {
 				if (!this.added.contains(n)) {
-					out.append(Long.toString(simId));
-					out.append('\t');
-					out.append(Integer.toString(n.getId()));
-					out.append('\t');
-					out.append(n.getAllocationMethod().toString());
-					out.append('\t');
-					out.append(Integer.toString(this.world.getRoundNumber()));
-					out.append('\n');
+					out.writeLong(simId)
+						.writeInt(n.getId())
+						.writeString(n.getAllocationMethod().toString())
+						.writeInt(this.world.getRoundNumber())
+						.endRecord();
 					this.added.add(n);
 				}
 			}
@@ -132,78 +130,73 @@ public class ConnectionlessStorage extends SpinWorldStorage {
 			logger.warn(e);
 			throw new RuntimeException(e);
 		}
+		
+		try {
+			flushNetworkStats();
+		} catch (SQLException e) {
+			logger.warn(e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected void flushNetworkStats() throws SQLException {
+		NetworkRoundStats stats = world != null ? world.getNetworkStats() : null;
+		if (stats == null || stats.size() == 0)
+			return;
+
+		NetworkRoundStats.Rows rows = stats.drain();
+		try {
+			RecordWriter out = getOutputFile(RecordTable.networkScore);
+			
+			for (int i = 0; i < rows.size(); i++) {
+				out.writeLong(simId)
+					.writeInt(rows.getNetwork(i))
+					.writeInt(rows.getRound(i))
+					.writeDouble(rows.getMonitoringLevel(i))
+					.writeInt(rows.getBanCount(i))
+					.writeInt(rows.getLongevity(i))
+					.writeDouble(rows.getUtilitySum(i))
+					.writeDouble(rows.getUtilityAvg(i))
+					.writeDouble(rows.getUtilityStd(i))
+					.endRecord();
+			}
+		} catch (IOException e) {
+			logger.warn(e);
+			throw new RuntimeException(e);
+		} finally {
+			stats.recycle(rows);
+		}
 	}
 
 	@Override
 	protected synchronized void updateTransientAgents() {
 		try {
-			Writer out = getOutputFile(OutputTable.particleScore);
-			Set<Agent> notfullyProcessed = new HashSet<Agent>();
+			RecordWriter out = getOutputFile(RecordTable.particleScore);
+			ParticleRoundLog log = world != null ? world.getRoundLog() : null;
 			
-			for (Agent a : agentTransientQ) {
-				List<Integer> forRemoval = new LinkedList<Integer>();
-				for (Map.Entry<Integer, Map<String, String>> round : a.transientProperties.entrySet()) {
-					if (!shutdown && world != null && round.getKey() >= world.getRoundNumber() - 2) {
-						notfullyProcessed.add(a);
-						continue;
+			for (int round : completedRounds(log)) {
+				for (int i = 0; i < log.getSize(round); i++) {
+					if (log.read(round, i, record)) {
+						record.writeTo(out, simId, log.getName(i), round - 1);
+						aggregates.add(log.getName(i), round, record);
+						columns.add(i, log.getName(i), round, record);
 					}
-
-					Map<String, String> props = round.getValue();
-
-					if (!props.containsKey("g"))
-						continue;
-
-					// .csv export
-					out.append(Long.toString(a.simId));
-					out.append('\t');
-					out.append(a.getName());
-					out.append('\t');
-					out.append(Integer.toString(round.getKey() - 1));
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "g", 0.0)));
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "q", 0.0)));
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "d", 0.0)));
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "p", 0.0)));
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "r", 0.0)));
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "r'", 0.0)));
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "RTotal", 0.0)));
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "o", 0.0)));
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "U", 0.0)));
-					out.append('\t');
-
-					if (props.containsKey("network"))
-						out.append(props.get("network"));
-					else
-						out.append('0');
-					
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "pCheat", 0.0)));
-					out.append('\n');
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "catchRate", 0.0)));
-					out.append('\n');
-					out.append('\t');
-					out.append(Double.toString(getProperty(props, "risk", 0.0)));
-					out.append('\n');
-
-					forRemoval.add(round.getKey());
 				}
 				
-				for (Integer round : forRemoval) {
-					a.transientProperties.remove(round);
-				}
+				log.release(round);
+			}
+
+			// The last scores are in, so the aggregates are complete
+			if (finished && !aggregates.isEmpty()) {
+				aggregates.writeUtility(getOutputFile(RecordTable.aggregatedParticleScore), simId);
+				aggregates.writeRatios(getOutputFile(RecordTable.roundAllocationRatios), simId);
+				aggregates.clear();
 			}
+			if (finished && !columns.isEmpty())
+				writeColumns();
 
-			agentTransientQ.clear();
-			agentTransientQ.addAll(notfullyProcessed);
+			discardTransientState();
 		} catch (IOException e) {
 			logger.warn(e);
 			throw new RuntimeException(e);
@@ -213,17 +206,14 @@ public class ConnectionlessStorage extends SpinWorldStorage {
 	@Override
 	protected synchronized void updateAgents() {
 		try {
-			Writer out = getOutputFile(OutputTable.particles);
+			RecordWriter out = getOutputFile(RecordTable.particles);
 			
 			for (Agent a : agentQ) {
-				out.append(Long.toString(simId));
-				out.append('\t');
-				out.append(a.getName());
-				out.append('\t');
-				out.append(Double.toString(getProperty(a.properties, "pCheat", 0.0)));
-				out.append('\t');
-				out.append(a.properties.get("cheatOn").substring(0, 1));
-				out.append('\n');
+				out.writeLong(simId)
+					.writeString(a.getName())
+					.writeDouble(getProperty(a.properties, "pCheat", 0.0))
+					.writeString(a.properties.get("cheatOn").substring(0, 1))
+					.endRecord();
 			}
 
 			agentQ.clear();
@@ -233,15 +223,15 @@ public class ConnectionlessStorage extends SpinWorldStorage {
 		}
 	}
 
-	private Writer getOutputFile(OutputTable table) throws IOException {
-		FileWriter fw = outputFiles.get(table);
+	private RecordWriter getOutputFile(RecordTable table) throws IOException {
+		RecordWriter out = outputFiles.get(table);
 		
-		if (fw == null) {
-			fw = new FileWriter("" + table.name() + ".csv");
-			outputFiles.put(table, fw);
+		if (out == null) {
+			out = RecordWriter.open(Paths.get(table.getFileName(format)), format);
+			outputFiles.put(table, out);
 		}
 		
-		return fw;
+		return out;
 	}
 
 }
@@ -0,0 +1,183 @@
+package spinworld.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+/*
+ * A PostgreSQL server run from the jar on a local data directory, so simulations can be
+ * stored, summarised and graphed without a database to install or configure. The first
+ * process to need it starts the server and stops it on exit; simulations run as sub
+ * processes meanwhile find it on its port and share it, as long as it runs on the same
+ * data directory. Data is kept between runs.
+ */
+public class LocalDatabase {
+
+	private static final Logger logger = Logger.getLogger(LocalDatabase.class);
+
+	static final String DEFAULT_DIR = "spinworld-db";
+	public static final int DEFAULT_PORT = 54329;
+	static final String USER = "postgres";
+
+	static LocalDatabase running = null;
+
+	final File dir;
+	final int port;
+	EmbeddedPostgres server = null;
+
+	LocalDatabase(File dir, int port) {
+		super();
+		this.dir = dir;
+		this.port = port;
+	}
+
+	// The server for the given data directory and port, started unless a process already has
+	public static synchronized LocalDatabase start(File dir, int port) throws IOException {
+		if (running != null) {
+			if (running.port != port || !running.dir.getAbsoluteFile().equals(dir.getAbsoluteFile()))
+				throw new IOException("Local database already running in " + running.dir.getAbsolutePath()
+						+ " on port " + running.port);
+			return running;
+		}
+
+		LocalDatabase db = new LocalDatabase(dir, port);
+		if (db.isListening()) {
+			// Only share a server that runs on the same data directory
+			if (db.getServerPort() != port)
+				throw new IOException("Port " + port + " is in use, but not by a local database in "
+						+ dir.getAbsolutePath());
+			logger.info("Using local database in " + dir.getAbsolutePath() + " on port " + port);
+		} else {
+			db.startServer();
+		}
+
+		running = db;
+		return db;
+	}
+
+	public static LocalDatabase start(Properties props) throws IOException {
+		return start(new File(props.getProperty("local.dir", DEFAULT_DIR)),
+				Integer.parseInt(props.getProperty("local.port", Integer.toString(DEFAULT_PORT))));
+	}
+
+	private void startServer() throws IOException {
+		long start = System.nanoTime();
+		try {
+			server = EmbeddedPostgres.builder()
+					.setDataDirectory(dir)
+					.setCleanDataDirectory(false)
+					.setPort(port)
+					.start();
+		} catch (NoClassDefFoundError e) {
+			// Only bundled by the local-db build profile
+			throw new IOException("The local database needs embedded-postgres on the classpath, "
+					+ "build and run with -Plocal-db", e);
+		}
+		logger.info("Started local database in " + dir.getAbsolutePath() + " on port " + port + " ("
+				+ ((System.nanoTime() - start) / 1000000) + "ms)");
+
+		try {
+			createExtensions();
+		} catch (SQLException e) {
+			server.close();
+			throw new IOException(e);
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread("local-db-stop") {
+			@Override
+			public void run() {
+				stop();
+			}
+		});
+	}
+
+	// Storage keeps agent and simulation properties in hstore columns
+	private void createExtensions() throws SQLException {
+		Connection conn = server.getPostgresDatabase().getConnection();
+		try {
+			Statement st = conn.createStatement();
+			st.execute("CREATE EXTENSION IF NOT EXISTS hstore");
+			st.close();
+		} finally {
+			conn.close();
+		}
+	}
+
+	// Port of the server running on the data directory, from its postmaster.pid; -1 if none
+	int getServerPort() {
+		File pid = new File(dir, "postmaster.pid");
+		if (!pid.exists())
+			return -1;
+
+		try {
+			List<String> lines = Files.readAllLines(pid.toPath(), Charset.forName("UTF-8"));
+			return lines.size() > 3 ? Integer.parseInt(lines.get(3).trim()) : -1;
+		} catch (IOException e) {
+			logger.warn(e);
+			return -1;
+		} catch (NumberFormatException e) {
+			logger.warn(e);
+			return -1;
+		}
+	}
+
+	private boolean isListening() {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress("localhost", port), 500);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				logger.warn(e);
+			}
+		}
+	}
+
+	public synchronized void stop() {
+		if (server == null)
+			return;
+
+		try {
+			server.close();
+			logger.info("Stopped local database");
+		} catch (IOException e) {
+			logger.warn(e);
+		}
+		server = null;
+	}
+
+	public String getUrl() {
+		return "jdbc:postgresql://localhost:" + port + "/postgres";
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	// Connection details in the form storages and summarise workers take them
+	public Properties getJdbcInfo() {
+		Properties jdbcInfo = new Properties();
+		jdbcInfo.put("driver", "org.postgresql.Driver");
+		jdbcInfo.put("url", getUrl());
+		jdbcInfo.put("user", USER);
+		jdbcInfo.put("password", "");
+		return jdbcInfo;
+	}
+
+}
@@ -0,0 +1,28 @@
+package spinworld.db;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import uk.ac.imperial.presage2.db.sql.SqlModule;
+
+/*
+ * The sql module on a LocalDatabase, chosen in db.properties with
+ * module=spinworld.db.LocalDatabaseModule. Connection details are those of the
+ * local server; local.dir and local.port choose where it keeps its data and listens.
+ */
+public class LocalDatabaseModule extends SqlModule {
+
+	public LocalDatabaseModule(Properties props) {
+		super(withLocalDatabase(props));
+	}
+
+	static Properties withLocalDatabase(Properties props) {
+		try {
+			props.putAll(LocalDatabase.start(props).getJdbcInfo());
+			return props;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package spinworld.db;
+
+import java.util.Arrays;
+
+import org.apache.commons.math.stat.descriptive.SummaryStatistics;
+
+import com.google.inject.Singleton;
+
+import spinworld.network.Network;
+
+/*
+ * Per-round network state, appended by the rules as each network is aggregated and
+ * drained by the storage in batches into "networkScore". Rows are kept in columns, so
+ * appending is a handful of array stores and readers such as the GUI get typed values
+ * back instead of environment property strings.
+ */
+@Singleton
+public class NetworkRoundStats {
+
+	public static class Rows {
+		int[] network;
+		int[] round;
+		int[] longevity;
+		int[] banCount;
+		double[] utilitySum;
+		double[] utilityAvg;
+		double[] utilityStd;
+		double[] monitoringLevel;
+		int size = 0;
+
+		public Rows() {
+			this(64);
+		}
+
+		public Rows(int capacity) {
+			network = new int[capacity];
+			round = new int[capacity];
+			longevity = new int[capacity];
+			banCount = new int[capacity];
+			utilitySum = new double[capacity];
+			utilityAvg = new double[capacity];
+			utilityStd = new double[capacity];
+			monitoringLevel = new double[capacity];
+		}
+
+		private void grow() {
+			int capacity = Math.max(network.length * 2, 16);
+			network = Arrays.copyOf(network, capacity);
+			round = Arrays.copyOf(round, capacity);
+			longevity = Arrays.copyOf(longevity, capacity);
+			banCount = Arrays.copyOf(banCount, capacity);
+			utilitySum = Arrays.copyOf(utilitySum, capacity);
+			utilityAvg = Arrays.copyOf(utilityAvg, capacity);
+			utilityStd = Arrays.copyOf(utilityStd, capacity);
+			monitoringLevel = Arrays.copyOf(monitoringLevel, capacity);
+		}
+
+		public void add(int network, int round, int longevity, int banCount, double utilitySum,
+				double utilityAvg, double utilityStd, double monitoringLevel) {
+			if (size == this.network.length)
+				grow();
+
+			this.network[size] = network;
+			this.round[size] = round;
+			this.longevity[size] = longevity;
+			this.banCount[size] = banCount;
+			this.utilitySum[size] = utilitySum;
+			this.utilityAvg[size] = utilityAvg;
+			this.utilityStd[size] = utilityStd;
+			this.monitoringLevel[size] = monitoringLevel;
+			size++;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int getNetwork(int i) {
+			return network[i];
+		}
+
+		public int getRound(int i) {
+			return round[i];
+		}
+
+		public int getLongevity(int i) {
+			return longevity[i];
+		}
+
+		public int getBanCount(int i) {
+			return banCount[i];
+		}
+
+		public double getUtilitySum(int i) {
+			return utilitySum[i];
+		}
+
+		public double getUtilityAvg(int i) {
+			return utilityAvg[i];
+		}
+
+		public double getUtilityStd(int i) {
+			return utilityStd[i];
+		}
+
+		public double getMonitoringLevel(int i) {
+			return monitoringLevel[i];
+		}
+
+		// First row of the round, or size() if there is none. Rows must be ordered by round, then network
+		public int first(int round) {
+			int lo = 0, hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (this.round[mid] < round)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		// Row of the network in the round, or -1. Rows must be ordered by round, then network
+		public int indexOf(int network, int round) {
+			for (int i = first(round); i < size && this.round[i] == round; i++) {
+				if (this.network[i] == network)
+					return i;
+				if (this.network[i] > network)
+					break;
+			}
+			return -1;
+		}
+	}
+
+	Rows pending = new Rows();
+	Rows spare = new Rows();
+
+	public synchronized void append(int network, int round, int longevity, int banCount,
+			double utilitySum, double utilityAvg, double utilityStd, double monitoringLevel) {
+		pending.add(network, round, longevity, banCount, utilitySum, utilityAvg, utilityStd,
+				monitoringLevel);
+	}
+
+	public void append(Network n, int round) {
+		SummaryStatistics utility = n.getUtilityData();
+		append(n.getId(), round, n.getLongevity(), n.getNoBannedParticles(), utility.getSum(),
+				utility.getMean(), utility.getStandardDeviation(), n.getMonitoringLevel());
+	}
+
+	// Take the rows appended so far; hand them back with recycle() once written
+	public synchronized Rows drain() {
+		Rows rows = pending;
+		pending = spare != null ? spare : new Rows(rows.network.length);
+		spare = null;
+		return rows;
+	}
+
+	public synchronized void recycle(Rows rows) {
+		rows.clear();
+		spare = rows;
+	}
+
+	public synchronized int size() {
+		return pending.size;
+	}
+
+}
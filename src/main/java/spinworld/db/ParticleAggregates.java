@@ -0,0 +1,151 @@
+package spinworld.db;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Aggregates of the particle scores of a run, added as the storage writes each score
+ * and written once when the run stops: utility summed per particle and network, for
+ * "aggregatedParticleScore", and each round's allocation ratio min(r / d, 1), for
+ * "roundAllocationRatios". Analyses read these typed rows instead of deriving them
+ * again from the per-round state. Ratios are kept by the round of the agents' state,
+ * one after the round particleScore stores the same scores under. Only used from the storage, under its lock.
+ */
+public class ParticleAggregates {
+
+	static final int BATCH_SIZE = 1000;
+
+	// Utility sums by particle, then by network
+	final Map<String, Map<Integer, double[]>> utility = new LinkedHashMap<String, Map<Integer, double[]>>();
+
+	// Allocation ratios, in columns
+	String[] particle = new String[64];
+	int[] round = new int[64];
+	int[] network = new int[64];
+	double[] ratio = new double[64];
+	int ratios = 0;
+
+	public void add(String particle, int round, ParticleRoundRecord r) {
+		// Rounds out of any network count towards no network's utility
+		if (r.network >= 0) {
+			Map<Integer, double[]> sums = utility.get(particle);
+			if (sums == null) {
+				sums = new LinkedHashMap<Integer, double[]>();
+				utility.put(particle, sums);
+			}
+			double[] sum = sums.get(r.network);
+			if (sum == null) {
+				sum = new double[1];
+				sums.put(r.network, sum);
+			}
+			sum[0] += r.u;
+		}
+
+		if (r.d > 0) {
+			if (ratios == this.ratio.length)
+				grow();
+
+			this.particle[ratios] = particle;
+			this.round[ratios] = round;
+			this.network[ratios] = r.network;
+			this.ratio[ratios] = Math.min(r.r / r.d, 1);
+			ratios++;
+		}
+	}
+
+	private void grow() {
+		int capacity = ratio.length * 2;
+		particle = Arrays.copyOf(particle, capacity);
+		round = Arrays.copyOf(round, capacity);
+		network = Arrays.copyOf(network, capacity);
+		ratio = Arrays.copyOf(ratio, capacity);
+	}
+
+	public boolean isEmpty() {
+		return utility.isEmpty() && ratios == 0;
+	}
+
+	public void clear() {
+		utility.clear();
+		Arrays.fill(particle, 0, ratios, null);
+		ratios = 0;
+	}
+
+	public double getUtilitySum(String particle, int network) {
+		Map<Integer, double[]> sums = utility.get(particle);
+		double[] sum = sums != null ? sums.get(network) : null;
+		return sum != null ? sum[0] : 0;
+	}
+
+	public int getRatioCount() {
+		return ratios;
+	}
+
+	public double getRatio(int i) {
+		return ratio[i];
+	}
+
+	// Append as aggregatedParticleScore rows
+	public void writeUtility(RecordWriter out, long simId) throws IOException {
+		for (Map.Entry<String, Map<Integer, double[]>> p : utility.entrySet()) {
+			for (Map.Entry<Integer, double[]> n : p.getValue().entrySet()) {
+				out.writeLong(simId)
+					.writeString(p.getKey())
+					.writeInt(n.getKey())
+					.writeDouble(n.getValue()[0])
+					.endRecord();
+			}
+		}
+	}
+
+	// Append as roundAllocationRatios rows
+	public void writeRatios(RecordWriter out, long simId) throws IOException {
+		for (int i = 0; i < ratios; i++) {
+			out.writeLong(simId)
+				.writeString(particle[i])
+				.writeInt(round[i])
+				.writeInt(network[i])
+				.writeDouble(ratio[i])
+				.endRecord();
+		}
+	}
+
+	// Batch aggregatedParticleScore rows into a statement taking simId, particle, network, USum
+	public void insertUtility(PreparedStatement insert, long simId) throws SQLException {
+		int rows = 0;
+		for (Map.Entry<String, Map<Integer, double[]>> p : utility.entrySet()) {
+			for (Map.Entry<Integer, double[]> n : p.getValue().entrySet()) {
+				insert.setLong(1, simId);
+				insert.setString(2, p.getKey());
+				insert.setInt(3, n.getKey());
+				insert.setDouble(4, n.getValue()[0]);
+				insert.addBatch();
+
+				if (++rows % BATCH_SIZE == 0)
+					insert.executeBatch();
+			}
+		}
+		insert.executeBatch();
+	}
+
+	// Batch roundAllocationRatios rows into a statement taking simId, particle, round, network, ratio
+	public void insertRatios(PreparedStatement insert, long simId) throws SQLException {
+		for (int i = 0; i < ratios; i++) {
+			insert.setLong(1, simId);
+			insert.setString(2, particle[i]);
+			insert.setInt(3, round[i]);
+			insert.setInt(4, network[i]);
+			insert.setDouble(5, ratio[i]);
+			insert.addBatch();
+
+			if ((i + 1) % BATCH_SIZE == 0)
+				insert.executeBatch();
+		}
+		insert.executeBatch();
+	}
+
+}
@@ -0,0 +1,28 @@
+package spinworld.db;
+
+// Double columns of a particle column file, in file order, by their transient state property
+public enum ParticleColumn {
+
+	g("g"), q("q"), d("d"), p("p"), r("r"), rP("r'"), rTotal("RTotal"), satisfaction("o"), U("U"),
+	pCheat("pCheat"), catchRate("catchRate"), risk("risk");
+
+	final String property;
+
+	private ParticleColumn(String property) {
+		this.property = property;
+	}
+
+	public String getProperty() {
+		return property;
+	}
+
+	// The column of a property, null for network and properties not kept in columns
+	public static ParticleColumn forProperty(String property) {
+		for (ParticleColumn c : values()) {
+			if (c.property.equals(property))
+				return c;
+		}
+		return null;
+	}
+
+}
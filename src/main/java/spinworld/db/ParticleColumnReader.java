@@ -0,0 +1,167 @@
+package spinworld.db;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Random access to a column file written by ParticleColumnWriter. Columns are mapped
+ * read only and values read straight from the mapping, so a chart over a window of
+ * rounds only touches the pages it needs. Mappings outlive close(), so values can still
+ * be read once the file is closed. Safe to read from several threads.
+ */
+public class ParticleColumnReader implements Closeable {
+
+	final FileChannel channel;
+	final long simId;
+	final String[] names;
+	final Map<String, Integer> index = new HashMap<String, Integer>();
+	final int firstRound;
+	final int rounds;
+
+	final DoubleBuffer[] columns = new DoubleBuffer[ParticleColumnWriter.DOUBLES];
+	final IntBuffer network;
+
+	ParticleColumnReader(FileChannel channel) throws IOException {
+		super();
+		this.channel = channel;
+
+		ByteBuffer header = read(0, ParticleColumnWriter.HEADER_SIZE);
+		if (header.getInt() != ParticleColumnWriter.MAGIC)
+			throw new IOException("Not a particle column file");
+		int version = header.getInt();
+		if (version != ParticleColumnWriter.VERSION)
+			throw new IOException("Unsupported particle column file version " + version);
+
+		this.simId = header.getLong();
+		this.names = new String[header.getInt()];
+		this.firstRound = header.getInt();
+		this.rounds = header.getInt();
+		int namesSize = header.getInt();
+
+		ByteBuffer in = read(ParticleColumnWriter.HEADER_SIZE, namesSize);
+		for (int i = 0; i < names.length; i++) {
+			byte[] name = new byte[in.getShort()];
+			in.get(name);
+			names[i] = new String(name, ParticleColumnWriter.UTF8);
+			index.put(names[i], i);
+		}
+
+		long cells = (long) names.length * rounds;
+		long offset = ParticleColumnWriter.dataOffset(namesSize);
+		for (int c = 0; c < columns.length; c++) {
+			columns[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, cells * 8)
+					.order(ParticleColumnWriter.ORDER).asDoubleBuffer();
+			offset += cells * 8;
+		}
+		network = channel.map(FileChannel.MapMode.READ_ONLY, offset, cells * 4)
+				.order(ParticleColumnWriter.ORDER).asIntBuffer();
+	}
+
+	public static ParticleColumnReader open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			return new ParticleColumnReader(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private ByteBuffer read(long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ParticleColumnWriter.ORDER);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("Truncated particle column file");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	public long getSimId() {
+		return simId;
+	}
+
+	// Whether the file holds the given simulation: its id, and no particle but its agents.
+	// Ids are reused once a database is reset, so a file may outlive its simulation
+	public boolean isOf(long simId, Collection<String> agents) {
+		if (this.simId != simId)
+			return false;
+
+		Set<String> known = new HashSet<String>(agents);
+		for (String name : names) {
+			if (!name.isEmpty() && !known.contains(name))
+				return false;
+		}
+		return true;
+	}
+
+	public int getSize() {
+		return names.length;
+	}
+
+	public String getName(int particle) {
+		return names[particle];
+	}
+
+	// Index of a particle by name, -1 if it has no columns
+	public int indexOf(String name) {
+		Integer i = index.get(name);
+		return i != null ? i : -1;
+	}
+
+	public int getFirstRound() {
+		return firstRound;
+	}
+
+	public int getLastRound() {
+		return firstRound + rounds - 1;
+	}
+
+	private int cell(int particle, int round) {
+		if (round < firstRound || round >= firstRound + rounds)
+			return -1;
+		return particle * rounds + (round - firstRound);
+	}
+
+	public boolean has(int particle, int round) {
+		return !Double.isNaN(get(ParticleColumn.g, particle, round));
+	}
+
+	// A score of the particle for the round, NaN if it has none
+	public double get(ParticleColumn column, int particle, int round) {
+		int i = cell(particle, round);
+		return i >= 0 ? columns[column.ordinal()].get(i) : Double.NaN;
+	}
+
+	// Network of the particle in the round, -1 if it was in none or has no scores
+	public int getNetwork(int particle, int round) {
+		int i = cell(particle, round);
+		return i >= 0 ? network.get(i) : -1;
+	}
+
+	// Every round of a particle's score from the first round, without copying
+	public DoubleBuffer getSeries(ParticleColumn column, int particle) {
+		DoubleBuffer series = columns[column.ordinal()].duplicate();
+		series.position(particle * rounds);
+		series.limit(particle * rounds + rounds);
+		return series.slice();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,191 @@
+package spinworld.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/*
+ * Collects the particle scores of a run and writes them once it stops as a column file:
+ * a header with the particle names, then one fixed-width column per score and one for
+ * the network, each holding every round of the first particle, then of the next, and so
+ * on. Rounds are numbered as agents' transient states are, one after particleScore's.
+ * Files are kept per database and simulation in a directory (system property
+ * spinworld.columns, "off" to disable) and read back, memory-mapped, by
+ * ParticleColumnReader.
+ */
+public class ParticleColumnWriter {
+
+	static final int MAGIC = 0x53574331;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int DOUBLES = ParticleColumn.values().length;
+
+	// Particle names by round log index
+	final List<String> names = new ArrayList<String>();
+
+	// Rows in the order they were added
+	int[] particle = new int[64];
+	int[] round = new int[64];
+	int[] network = new int[64];
+	double[] values = new double[64 * DOUBLES];
+	int rows = 0;
+
+	int firstRound = Integer.MAX_VALUE;
+	int lastRound = Integer.MIN_VALUE;
+
+	// File for the columns of a simulation in the database, null when they are not kept
+	public static Path getFile(Properties jdbcInfo, long simId) {
+		String dir = System.getProperty("spinworld.columns", "columns");
+		if ("off".equals(dir))
+			return null;
+		return Paths.get(dir, getDatabaseKey(jdbcInfo), simId + ".cols");
+	}
+
+	// Simulation ids are only unique within a database, so files are kept apart by its url
+	static String getDatabaseKey(Properties jdbcInfo) {
+		String url = jdbcInfo != null ? jdbcInfo.getProperty("url") : null;
+		if (url == null || url.isEmpty())
+			return "default";
+		if (url.startsWith("jdbc:"))
+			url = url.substring(5);
+		return url.replaceAll("[^A-Za-z0-9.-]+", "_");
+	}
+
+	public void add(int index, String name, int round, ParticleRoundRecord r) {
+		while (names.size() <= index)
+			names.add(null);
+		names.set(index, name);
+
+		if (rows == this.round.length)
+			grow();
+
+		this.particle[rows] = index;
+		this.round[rows] = round;
+		this.network[rows] = r.network;
+
+		int o = rows * DOUBLES;
+		double[] v = values;
+		v[o] = r.g;
+		v[o + 1] = r.q;
+		v[o + 2] = r.d;
+		v[o + 3] = r.p;
+		v[o + 4] = r.r;
+		v[o + 5] = r.rP;
+		v[o + 6] = r.rTotal;
+		v[o + 7] = r.satisfaction;
+		v[o + 8] = r.u;
+		v[o + 9] = r.pCheat;
+		v[o + 10] = r.catchRate;
+		v[o + 11] = r.risk;
+		rows++;
+
+		firstRound = Math.min(firstRound, round);
+		lastRound = Math.max(lastRound, round);
+	}
+
+	private void grow() {
+		int capacity = round.length * 2;
+		particle = Arrays.copyOf(particle, capacity);
+		round = Arrays.copyOf(round, capacity);
+		network = Arrays.copyOf(network, capacity);
+		values = Arrays.copyOf(values, capacity * DOUBLES);
+	}
+
+	public boolean isEmpty() {
+		return rows == 0;
+	}
+
+	public void clear() {
+		names.clear();
+		rows = 0;
+		firstRound = Integer.MAX_VALUE;
+		lastRound = Integer.MIN_VALUE;
+	}
+
+	public void write(Path file, long simId) throws IOException {
+		int particles = names.size();
+		int rounds = isEmpty() ? 0 : lastRound - firstRound + 1;
+		long cells = (long) particles * rounds;
+		if (cells * 8 > Integer.MAX_VALUE)
+			throw new IOException("Too many particle rounds for a column file: " + cells);
+
+		byte[][] encoded = new byte[particles][];
+		int namesSize = 0;
+		for (int i = 0; i < particles; i++) {
+			encoded[i] = (names.get(i) != null ? names.get(i) : "").getBytes(UTF8);
+			namesSize += 2 + encoded[i].length;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + namesSize).order(ORDER);
+		header.putInt(MAGIC)
+			.putInt(VERSION)
+			.putLong(simId)
+			.putInt(particles)
+			.putInt(isEmpty() ? 0 : firstRound)
+			.putInt(rounds)
+			.putInt(namesSize);
+		for (byte[] name : encoded) {
+			header.putShort((short) name.length);
+			header.put(name);
+		}
+		header.flip();
+
+		Files.createDirectories(file.toAbsolutePath().getParent());
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+
+			long offset = dataOffset(namesSize);
+			for (int c = 0; c < DOUBLES; c++) {
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, offset, cells * 8);
+				DoubleBuffer column = mapped.order(ORDER).asDoubleBuffer();
+				// Rounds a particle has no scores for read as NaN
+				for (int i = 0; i < cells; i++)
+					column.put(i, Double.NaN);
+				for (int i = 0; i < rows; i++)
+					column.put(cell(i, rounds), values[i * DOUBLES + c]);
+				mapped.force();
+				offset += cells * 8;
+			}
+
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, offset, cells * 4);
+			IntBuffer column = mapped.order(ORDER).asIntBuffer();
+			for (int i = 0; i < cells; i++)
+				column.put(i, -1);
+			for (int i = 0; i < rows; i++)
+				column.put(cell(i, rounds), network[i]);
+			mapped.force();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private int cell(int row, int rounds) {
+		return particle[row] * rounds + (round[row] - firstRound);
+	}
+
+	// Columns start after the header and names, aligned for doubles
+	static long dataOffset(int namesSize) {
+		return (HEADER_SIZE + namesSize + 7) & ~7L;
+	}
+
+}
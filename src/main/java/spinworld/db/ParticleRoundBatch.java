@@ -0,0 +1,179 @@
+package spinworld.db;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Particle scores of one round, copied out of the ParticleRoundLog so the round can be
+ * released while the scores wait to be written. Never changed once made, so it can be
+ * handed to a writer thread as is. Scores are kept game outcomes first, then the
+ * adaptive agents' diagnostics (satisfaction, pCheat, catchRate, risk), which a batch
+ * may be made without; those then read as NaN.
+ */
+public class ParticleRoundBatch {
+
+	static final int OUTCOMES = 8;
+	static final int DOUBLES = 12;
+
+	final int round;
+	final int[] index;
+	final String[] names;
+	final int[] network;
+	final double[] values;
+	final int stride;
+
+	ParticleRoundBatch(int round, int[] index, String[] names, int[] network, double[] values, int stride) {
+		super();
+		this.round = round;
+		this.index = index;
+		this.names = names;
+		this.network = network;
+		this.values = values;
+		this.stride = stride;
+	}
+
+	// The round's rows of the log, in registry order
+	public static ParticleRoundBatch copyOf(ParticleRoundLog log, int round, ParticleRoundRecord record) {
+		int size = log.getSize(round);
+		int[] index = new int[size];
+		String[] names = new String[size];
+		int[] network = new int[size];
+		double[] values = new double[size * DOUBLES];
+
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (!log.read(round, i, record))
+				continue;
+
+			index[n] = i;
+			names[n] = log.getName(i);
+			network[n] = record.network;
+			put(values, n * DOUBLES, record);
+			n++;
+		}
+
+		if (n < size) {
+			index = Arrays.copyOf(index, n);
+			names = Arrays.copyOf(names, n);
+			network = Arrays.copyOf(network, n);
+			values = Arrays.copyOf(values, n * DOUBLES);
+		}
+		return new ParticleRoundBatch(round, index, names, network, values, DOUBLES);
+	}
+
+	private static void put(double[] v, int o, ParticleRoundRecord r) {
+		v[o] = r.g;
+		v[o + 1] = r.q;
+		v[o + 2] = r.d;
+		v[o + 3] = r.p;
+		v[o + 4] = r.r;
+		v[o + 5] = r.rP;
+		v[o + 6] = r.rTotal;
+		v[o + 7] = r.u;
+		v[o + 8] = r.satisfaction;
+		v[o + 9] = r.pCheat;
+		v[o + 10] = r.catchRate;
+		v[o + 11] = r.risk;
+	}
+
+	// The same rows without the diagnostics, in two thirds of the memory
+	public ParticleRoundBatch withoutDiagnostics() {
+		if (stride == OUTCOMES)
+			return this;
+
+		int size = size();
+		double[] outcomes = new double[size * OUTCOMES];
+		for (int i = 0; i < size; i++)
+			System.arraycopy(values, i * DOUBLES, outcomes, i * OUTCOMES, OUTCOMES);
+		return new ParticleRoundBatch(round, index, names, network, outcomes, OUTCOMES);
+	}
+
+	public int getRound() {
+		return round;
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public boolean hasDiagnostics() {
+		return stride == DOUBLES;
+	}
+
+	// Registry index of row i
+	public int getIndex(int i) {
+		return index[i];
+	}
+
+	public String getName(int i) {
+		return names[i];
+	}
+
+	public void read(int i, ParticleRoundRecord r) {
+		int o = i * stride;
+		double[] v = values;
+		r.g = v[o];
+		r.q = v[o + 1];
+		r.d = v[o + 2];
+		r.p = v[o + 3];
+		r.r = v[o + 4];
+		r.rP = v[o + 5];
+		r.rTotal = v[o + 6];
+		r.u = v[o + 7];
+		if (stride == DOUBLES) {
+			r.satisfaction = v[o + 8];
+			r.pCheat = v[o + 9];
+			r.catchRate = v[o + 10];
+			r.risk = v[o + 11];
+		} else {
+			r.satisfaction = Double.NaN;
+			r.pCheat = Double.NaN;
+			r.catchRate = Double.NaN;
+			r.risk = Double.NaN;
+		}
+		r.network = network[i];
+	}
+
+	// Append as a record with the round, then one record per row
+	public void writeTo(RecordWriter out) throws IOException {
+		out.writeInt(round)
+			.writeInt(size())
+			.writeInt(stride)
+			.endRecord();
+		for (int i = 0; i < size(); i++) {
+			out.writeInt(index[i])
+				.writeString(names[i])
+				.writeInt(network[i]);
+			for (int j = 0; j < stride; j++)
+				out.writeDouble(values[i * stride + j]);
+			out.endRecord();
+		}
+	}
+
+	// The next batch written by writeTo, null at the end of the input
+	public static ParticleRoundBatch readFrom(RecordReader in) throws IOException {
+		if (!in.next())
+			return null;
+
+		int round = in.readInt();
+		int size = in.readInt();
+		int stride = in.readInt();
+		int[] index = new int[size];
+		String[] names = new String[size];
+		int[] network = new int[size];
+		double[] values = new double[size * stride];
+
+		for (int i = 0; i < size; i++) {
+			if (!in.next())
+				throw new EOFException("Truncated batch of round " + round);
+			index[i] = in.readInt();
+			names[i] = in.readString();
+			network[i] = in.readInt();
+			for (int j = 0; j < stride; j++)
+				values[i * stride + j] = in.readDouble();
+		}
+		return new ParticleRoundBatch(round, index, names, network, values, stride);
+	}
+
+}
@@ -0,0 +1,173 @@
+package spinworld.db;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import spinworld.facts.ParticleRegistry;
+
+/*
+ * Per-round particle scores waiting to be stored. Each round is a preallocated block
+ * with one row per particle (by registry index), so agents write their own rows in
+ * parallel without locking. Blocks live in a ring keyed by round number and are
+ * recycled once the storage releases them.
+ */
+@Singleton
+public class ParticleRoundLog {
+
+	static final int DOUBLES = 12;
+
+	static class Block {
+		final double[] values;
+		final int[] network;
+		final boolean[] present;
+		int round;
+
+		Block(int size) {
+			this.values = new double[size * DOUBLES];
+			this.network = new int[size];
+			this.present = new boolean[size];
+		}
+
+		int size() {
+			return present.length;
+		}
+	}
+
+	final ParticleRegistry particles;
+
+	volatile Block[] ring = new Block[8];
+	Block spare = null;
+
+	@Inject
+	public ParticleRoundLog(ParticleRegistry particles) {
+		super();
+		this.particles = particles;
+	}
+
+	private Block blockFor(int round) {
+		Block[] blocks = ring;
+		Block b = blocks[round & (blocks.length - 1)];
+		if (b != null && b.round == round)
+			return b;
+
+		synchronized (this) {
+			blocks = ring;
+			int slot = round & (blocks.length - 1);
+			b = blocks[slot];
+			if (b != null && b.round == round)
+				return b;
+
+			if (b != null) {
+				// Slot still holds an unreleased round, so widen the ring
+				Block[] grown = new Block[blocks.length * 2];
+				for (Block old : blocks) {
+					if (old != null)
+						grown[old.round & (grown.length - 1)] = old;
+				}
+				ring = blocks = grown;
+				slot = round & (blocks.length - 1);
+			}
+
+			int size = particles.size();
+			if (spare != null && spare.size() == size) {
+				b = spare;
+				spare = null;
+			} else {
+				b = new Block(size);
+			}
+			b.round = round;
+			blocks[slot] = b;
+			return b;
+		}
+	}
+
+	public void append(UUID particle, int round, ParticleRoundRecord r) {
+		int i = particles.indexOf(particle);
+		if (i < 0)
+			return;
+
+		Block b = blockFor(round);
+		if (i >= b.size())
+			return;
+
+		int o = i * DOUBLES;
+		double[] v = b.values;
+		v[o] = r.g;
+		v[o + 1] = r.q;
+		v[o + 2] = r.d;
+		v[o + 3] = r.p;
+		v[o + 4] = r.r;
+		v[o + 5] = r.rP;
+		v[o + 6] = r.rTotal;
+		v[o + 7] = r.satisfaction;
+		v[o + 8] = r.u;
+		v[o + 9] = r.pCheat;
+		v[o + 10] = r.catchRate;
+		v[o + 11] = r.risk;
+		b.network[i] = r.network;
+		b.present[i] = true;
+	}
+
+	// Rounds holding records, in ascending order
+	public synchronized int[] getRounds() {
+		int[] rounds = new int[ring.length];
+		int n = 0;
+		for (Block b : ring) {
+			if (b != null)
+				rounds[n++] = b.round;
+		}
+		rounds = Arrays.copyOf(rounds, n);
+		Arrays.sort(rounds);
+		return rounds;
+	}
+
+	// Number of rows in a round, indexed as in the particle registry
+	public int getSize(int round) {
+		Block b = ring[round & (ring.length - 1)];
+		return b != null && b.round == round ? b.size() : 0;
+	}
+
+	// Copy the record of particle i for the round into r, false if it has none
+	public boolean read(int round, int i, ParticleRoundRecord r) {
+		Block b = ring[round & (ring.length - 1)];
+		if (b == null || b.round != round || !b.present[i])
+			return false;
+
+		int o = i * DOUBLES;
+		double[] v = b.values;
+		r.g = v[o];
+		r.q = v[o + 1];
+		r.d = v[o + 2];
+		r.p = v[o + 3];
+		r.r = v[o + 4];
+		r.rP = v[o + 5];
+		r.rTotal = v[o + 6];
+		r.satisfaction = v[o + 7];
+		r.u = v[o + 8];
+		r.pCheat = v[o + 9];
+		r.catchRate = v[o + 10];
+		r.risk = v[o + 11];
+		r.network = b.network[i];
+		return true;
+	}
+
+	public String getName(int i) {
+		return particles.get(i).getName();
+	}
+
+	// Drop a stored round, keeping its block for reuse
+	public synchronized void release(int round) {
+		int slot = round & (ring.length - 1);
+		Block b = ring[slot];
+		if (b == null || b.round != round)
+			return;
+
+		ring[slot] = null;
+		Arrays.fill(b.present, false);
+		spare = b;
+	}
+
+}
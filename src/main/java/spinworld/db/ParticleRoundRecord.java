@@ -0,0 +1,51 @@
+package spinworld.db;
+
+import java.io.IOException;
+
+// Scores of one particle for one round, as stored in particleScore. Reused by its owner
+public class ParticleRoundRecord {
+
+	public double g;
+	public double q;
+	public double d;
+	public double p;
+	public double r;
+	public double rP;
+	public double rTotal;
+	public double satisfaction;
+	public double u;
+	public int network;
+	public double pCheat;
+	public double catchRate;
+	public double risk;
+
+	// Append as a particleScore row
+	public void writeTo(RecordWriter out, long simId, String particle, int round) throws IOException {
+		out.writeLong(simId)
+			.writeString(particle)
+			.writeInt(round)
+			.writeDouble(g)
+			.writeDouble(q)
+			.writeDouble(d)
+			.writeDouble(p)
+			.writeDouble(r)
+			.writeDouble(rP)
+			.writeDouble(rTotal)
+			.writeDouble(satisfaction)
+			.writeDouble(u)
+			.writeInt(network)
+			.writeDouble(pCheat)
+			.writeDouble(catchRate)
+			.writeDouble(risk)
+			.endRecord();
+	}
+
+	@Override
+	public String toString() {
+		return "ParticleRoundRecord [g=" + g + ", q=" + q + ", d=" + d + ", p=" + p + ", r=" + r
+				+ ", rP=" + rP + ", rTotal=" + rTotal + ", satisfaction=" + satisfaction + ", u=" + u
+				+ ", network=" + network + ", pCheat=" + pCheat + ", catchRate=" + catchRate
+				+ ", risk=" + risk + "]";
+	}
+
+}
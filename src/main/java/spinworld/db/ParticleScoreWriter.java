@@ -0,0 +1,179 @@
+package spinworld.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/*
+ * Writes batches of particle scores to particleScore on a connection of its own, one
+ * transaction per call. On postgresql the rows are streamed with COPY into a session
+ * staging table and merged from there, the last copy of a row winning; on other databases
+ * they are upserted in a batch. Scores are stored exactly either way.
+ */
+public class ParticleScoreWriter implements WriteBehindQueue.Sink {
+
+	static final String PARTICLE_SCORE_COLUMNS = "\"simId\", \"particle\", \"round\", \"g\", \"q\", \"d\", "
+			+ "\"p\", \"r\", \"rP\", \"rTotal\", \"satisfaction\", \"U\", \"network\", \"pCheat\", "
+			+ "\"catchRate\", \"risk\"";
+
+	static final String PARTICLE_SCORE_CONFLICT = "ON CONFLICT (\"simId\", \"particle\", \"round\") "
+			+ "DO UPDATE SET \"g\" = EXCLUDED.\"g\", \"q\" = EXCLUDED.\"q\", \"d\" = EXCLUDED.\"d\", "
+			+ "\"p\" = EXCLUDED.\"p\", \"r\" = EXCLUDED.\"r\", \"rP\" = EXCLUDED.\"rP\", "
+			+ "\"rTotal\" = EXCLUDED.\"rTotal\", \"satisfaction\" = EXCLUDED.\"satisfaction\", "
+			+ "\"U\" = EXCLUDED.\"U\", \"network\" = EXCLUDED.\"network\", "
+			+ "\"pCheat\" = EXCLUDED.\"pCheat\", \"catchRate\" = EXCLUDED.\"catchRate\", "
+			+ "\"risk\" = EXCLUDED.\"risk\"";
+
+	final Connection conn;
+	final long simId;
+	final ParticleRoundRecord record = new ParticleRoundRecord();
+
+	PreparedStatement upsertParticleScore = null;
+	PreparedStatement mergeParticleScore = null;
+	PreparedStatement truncateStaging = null;
+
+	// COPY path, only when connected to postgresql
+	CopyManager copy = null;
+	ByteArrayOutputStream rows = null;
+	RecordWriter rowWriter = null;
+
+	public ParticleScoreWriter(Connection conn, long simId) throws SQLException {
+		super();
+		this.conn = conn;
+		this.simId = simId;
+		conn.setAutoCommit(false);
+
+		if (conn.isWrapperFor(PGConnection.class)) {
+			copy = conn.unwrap(PGConnection.class).getCopyAPI();
+			Statement staging = conn.createStatement();
+			try {
+				// seq numbers rows in the order they were copied
+				staging.execute("CREATE TEMP TABLE IF NOT EXISTS \"particleScoreStaging\" "
+						+ "(LIKE \"particleScore\" INCLUDING DEFAULTS, \"seq\" bigserial)");
+			} finally {
+				staging.close();
+			}
+			conn.commit();
+
+			mergeParticleScore = conn
+					.prepareStatement("INSERT INTO \"particleScore\" (" + PARTICLE_SCORE_COLUMNS + ") "
+							+ "SELECT DISTINCT ON (\"simId\", \"particle\", \"round\") " + PARTICLE_SCORE_COLUMNS + " "
+							+ "FROM \"particleScoreStaging\" "
+							+ "ORDER BY \"simId\", \"particle\", \"round\", \"seq\" DESC "
+							+ PARTICLE_SCORE_CONFLICT);
+			truncateStaging = conn.prepareStatement("TRUNCATE \"particleScoreStaging\"");
+			rows = new ByteArrayOutputStream(1 << 20);
+			rowWriter = new RecordWriter(Channels.newChannel(rows), RecordWriter.Format.TEXT).exactDoubles();
+		} else {
+			upsertParticleScore = conn
+					.prepareStatement("INSERT INTO \"particleScore\" (" + PARTICLE_SCORE_COLUMNS + ") "
+							+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) "
+							+ PARTICLE_SCORE_CONFLICT);
+		}
+	}
+
+	// Writers for a simulation, each opening its own connection
+	public static WriteBehindQueue.SinkFactory factory(final Properties jdbcInfo, final long simId) {
+		return new WriteBehindQueue.SinkFactory() {
+			@Override
+			public WriteBehindQueue.Sink open() throws SQLException {
+				try {
+					Class.forName(jdbcInfo.getProperty("driver"));
+				} catch (ClassNotFoundException e) {
+					throw new SQLException(e);
+				}
+				Connection conn = DriverManager.getConnection(jdbcInfo.getProperty("url"),
+						jdbcInfo.getProperty("user"), jdbcInfo.getProperty("password"));
+				try {
+					return new ParticleScoreWriter(conn, simId);
+				} catch (SQLException e) {
+					conn.close();
+					throw e;
+				}
+			}
+		};
+	}
+
+	// Rounds are stored one before the round log's, as agents' transient states are
+	@Override
+	public void write(List<ParticleRoundBatch> batches) throws SQLException, IOException {
+		try {
+			for (ParticleRoundBatch batch : batches) {
+				for (int i = 0; i < batch.size(); i++) {
+					batch.read(i, record);
+					add(batch.getName(i), batch.getRound() - 1);
+				}
+			}
+
+			if (copy != null)
+				copyParticleScores();
+			else
+				upsertParticleScore.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		}
+	}
+
+	private void add(String particle, int round) throws SQLException, IOException {
+		if (copy != null) {
+			record.writeTo(rowWriter, simId, particle, round);
+			return;
+		}
+
+		upsertParticleScore.setLong(1, simId);
+		upsertParticleScore.setString(2, particle);
+		upsertParticleScore.setInt(3, round);
+		upsertParticleScore.setDouble(4, record.g);
+		upsertParticleScore.setDouble(5, record.q);
+		upsertParticleScore.setDouble(6, record.d);
+		upsertParticleScore.setDouble(7, record.p);
+		upsertParticleScore.setDouble(8, record.r);
+		upsertParticleScore.setDouble(9, record.rP);
+		upsertParticleScore.setDouble(10, record.rTotal);
+		upsertParticleScore.setDouble(11, record.satisfaction);
+		upsertParticleScore.setDouble(12, record.u);
+		upsertParticleScore.setInt(13, record.network);
+		upsertParticleScore.setDouble(14, record.pCheat);
+		upsertParticleScore.setDouble(15, record.catchRate);
+		upsertParticleScore.setDouble(16, record.risk);
+		upsertParticleScore.addBatch();
+	}
+
+	private void copyParticleScores() throws SQLException, IOException {
+		rowWriter.flush();
+		try {
+			copy.copyIn("COPY \"particleScoreStaging\" (" + PARTICLE_SCORE_COLUMNS + ") FROM STDIN",
+					new ByteArrayInputStream(rows.toByteArray()));
+		} finally {
+			rows.reset();
+		}
+		mergeParticleScore.execute();
+		truncateStaging.execute();
+	}
+
+	@Override
+	public void close() throws SQLException {
+		try {
+			for (Statement st : new Statement[] { upsertParticleScore, mergeParticleScore, truncateStaging }) {
+				if (st != null)
+					st.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+}
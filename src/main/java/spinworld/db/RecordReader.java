@@ -0,0 +1,154 @@
+package spinworld.db;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import spinworld.db.RecordWriter.Format;
+
+/*
+ * Reads back files produced by RecordWriter. Call next() to move to a record, then
+ * read its fields in the order they were written.
+ */
+public class RecordReader implements Closeable {
+
+	final ReadableByteChannel channel;
+	final Format format;
+	final ByteBuffer in = ByteBuffer.allocateDirect(RecordWriter.BUFFER_SIZE);
+
+	// Current record; text records are unescaped field by field
+	final ByteBuffer record = ByteBuffer.allocate(RecordWriter.RECORD_SIZE);
+	boolean eof = false;
+	long records = 0;
+
+	public RecordReader(ReadableByteChannel channel, Format format) {
+		super();
+		this.channel = channel;
+		this.format = format;
+		in.flip();
+	}
+
+	public static RecordReader open(Path file, Format format) throws IOException {
+		return new RecordReader(FileChannel.open(file, StandardOpenOption.READ), format);
+	}
+
+	public long getRecordCount() {
+		return records;
+	}
+
+	// Make at least n bytes available in the input buffer, false if the input ends first
+	private boolean fill(int n) throws IOException {
+		if (in.remaining() >= n)
+			return true;
+
+		in.compact();
+		while (!eof && in.position() < n) {
+			if (channel.read(in) < 0)
+				eof = true;
+		}
+		in.flip();
+		return in.remaining() >= n;
+	}
+
+	public boolean next() throws IOException {
+		record.clear();
+
+		if (format == Format.BINARY) {
+			if (!fill(4))
+				return false;
+			int length = in.getInt();
+			if (!fill(length))
+				throw new EOFException("Truncated record " + records);
+
+			int limit = in.limit();
+			in.limit(in.position() + length);
+			record.put(in);
+			in.limit(limit);
+		} else {
+			boolean found = false;
+			while (!found) {
+				if (!in.hasRemaining() && !fill(1)) {
+					if (record.position() == 0)
+						return false;
+					// Last record without a newline
+					break;
+				}
+				byte b = in.get();
+				if (b == '\n')
+					found = true;
+				else
+					record.put(b);
+			}
+		}
+
+		record.flip();
+		records++;
+		return true;
+	}
+
+	public long readLong() {
+		if (format == Format.BINARY)
+			return record.getLong();
+		return Long.parseLong(nextField());
+	}
+
+	public int readInt() {
+		if (format == Format.BINARY)
+			return record.getInt();
+		return Integer.parseInt(nextField());
+	}
+
+	public double readDouble() {
+		if (format == Format.BINARY)
+			return record.getDouble();
+		return Double.parseDouble(nextField());
+	}
+
+	public String readString() {
+		if (format == Format.BINARY) {
+			int length = record.getShort();
+			byte[] bytes = new byte[length];
+			record.get(bytes);
+			return new String(bytes, RecordWriter.UTF8);
+		}
+		return nextField();
+	}
+
+	private String nextField() {
+		byte[] bytes = new byte[record.remaining()];
+		int n = 0;
+		while (record.hasRemaining()) {
+			byte b = record.get();
+			if (b == '\t')
+				break;
+			if (b == '\\' && record.hasRemaining()) {
+				b = record.get();
+				switch (b) {
+				case 't':
+					b = '\t';
+					break;
+				case 'n':
+					b = '\n';
+					break;
+				case 'r':
+					b = '\r';
+					break;
+				}
+			}
+			bytes[n++] = b;
+		}
+		return new String(Arrays.copyOf(bytes, n), RecordWriter.UTF8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,105 @@
+package spinworld.db;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+// Column layout of the tables written to record files, in file order
+public enum RecordTable {
+
+	particleScore(new String[] { "simId", "particle", "round", "g", "q", "d", "p", "r", "rP", "rTotal",
+			"satisfaction", "U", "network", "pCheat", "catchRate", "risk" },
+			new Type[] { Type.BIGINT, Type.TEXT, Type.INT, Type.FLOAT, Type.FLOAT, Type.FLOAT, Type.FLOAT,
+					Type.FLOAT, Type.FLOAT, Type.FLOAT, Type.FLOAT, Type.FLOAT, Type.INT, Type.FLOAT,
+					Type.FLOAT, Type.FLOAT }),
+	networkScore(new String[] { "simId", "network", "round", "monitoringLevel", "banCount", "longevity",
+			"utilitySum", "utilityAvg", "utilityStd" },
+			new Type[] { Type.BIGINT, Type.INT, Type.INT, Type.FLOAT, Type.INT, Type.INT, Type.FLOAT,
+					Type.FLOAT, Type.FLOAT }),
+	networks(new String[] { "simId", "network", "method", "created" },
+			new Type[] { Type.BIGINT, Type.INT, Type.TEXT, Type.INT }),
+	particles(new String[] { "simId", "name", "pCheat", "cheatOn" },
+			new Type[] { Type.BIGINT, Type.TEXT, Type.FLOAT, Type.TEXT }),
+	aggregatedParticleScore(new String[] { "simId", "particle", "network", "USum" },
+			new Type[] { Type.BIGINT, Type.TEXT, Type.INT, Type.FLOAT }),
+	roundAllocationRatios(new String[] { "simId", "particle", "round", "network", "ratio" },
+			new Type[] { Type.BIGINT, Type.TEXT, Type.INT, Type.INT, Type.FLOAT });
+
+	public enum Type {
+		BIGINT, INT, FLOAT, TEXT
+	};
+
+	static final int BATCH_SIZE = 1000;
+
+	final String[] columns;
+	final Type[] types;
+
+	private RecordTable(String[] columns, Type[] types) {
+		this.columns = columns;
+		this.types = types;
+	}
+
+	public String[] getColumns() {
+		return columns;
+	}
+
+	public Type[] getTypes() {
+		return types;
+	}
+
+	public String getFileName(RecordWriter.Format format) {
+		return name() + (format == RecordWriter.Format.BINARY ? ".bin" : ".csv");
+	}
+
+	public String getInsertQuery() {
+		StringBuilder cols = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				cols.append(", ");
+				values.append(", ");
+			}
+			cols.append('"').append(columns[i]).append('"');
+			values.append('?');
+		}
+		return "INSERT INTO \"" + name() + "\" (" + cols + ") VALUES (" + values + ")";
+	}
+
+	// Insert every record of the file into this table, returning the number of rows
+	public long load(Connection conn, RecordReader in) throws SQLException, IOException {
+		PreparedStatement insert = conn.prepareStatement(getInsertQuery());
+		long rows = 0;
+
+		try {
+			while (in.next()) {
+				for (int i = 0; i < types.length; i++) {
+					switch (types[i]) {
+					case BIGINT:
+						insert.setLong(i + 1, in.readLong());
+						break;
+					case INT:
+						insert.setInt(i + 1, in.readInt());
+						break;
+					case FLOAT:
+						insert.setDouble(i + 1, in.readDouble());
+						break;
+					case TEXT:
+						insert.setString(i + 1, in.readString());
+						break;
+					}
+				}
+				insert.addBatch();
+
+				if (++rows % BATCH_SIZE == 0)
+					insert.executeBatch();
+			}
+			insert.executeBatch();
+		} finally {
+			insert.close();
+		}
+
+		return rows;
+	}
+
+}
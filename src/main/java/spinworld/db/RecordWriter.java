@@ -0,0 +1,266 @@
+package spinworld.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Buffered record output for bulk loading. TEXT rows are tab separated and newline
+ * terminated, escaped as in postgres COPY text format, with doubles written to 12
+ * decimal places, or exactly as Double.toString writes them for exactDoubles(). BINARY rows are prefixed with their length in bytes and hold fields
+ * in big-endian order: bigint 8, int 4, float 8 and text as a 2-byte length then UTF-8.
+ * Numeric fields are formatted straight into the buffer, without allocating.
+ */
+public class RecordWriter implements Closeable {
+
+	public enum Format {
+		TEXT, BINARY
+	};
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	static final int BUFFER_SIZE = 1 << 20;
+	static final int RECORD_SIZE = 1 << 16;
+
+	static final int DECIMALS = 12;
+	static final long DECIMAL_SCALE = 1000000000000L;
+	// Above this the integer part no longer fits the fixed point conversion
+	static final double MAX_FIXED = 1e15;
+
+	final WritableByteChannel channel;
+	final Format format;
+	final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+	final byte[] digits = new byte[20];
+
+	boolean exactDoubles = false;
+	boolean firstField = true;
+	long records = 0;
+
+	public RecordWriter(WritableByteChannel channel, Format format) {
+		super();
+		this.channel = channel;
+		this.format = format;
+	}
+
+	public static RecordWriter open(Path file, Format format) throws IOException {
+		return new RecordWriter(FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), format);
+	}
+
+	// TEXT doubles in the shortest form that reads back as the same double, for storage
+	public RecordWriter exactDoubles() {
+		this.exactDoubles = true;
+		return this;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public long getRecordCount() {
+		return records;
+	}
+
+	private void separator() {
+		if (format == Format.TEXT && !firstField)
+			record.put((byte) '\t');
+		firstField = false;
+	}
+
+	public RecordWriter writeLong(long v) {
+		separator();
+		if (format == Format.BINARY)
+			record.putLong(v);
+		else
+			putDigits(v);
+		return this;
+	}
+
+	public RecordWriter writeInt(int v) {
+		separator();
+		if (format == Format.BINARY)
+			record.putInt(v);
+		else
+			putDigits(v);
+		return this;
+	}
+
+	public RecordWriter writeDouble(double v) {
+		separator();
+		if (format == Format.BINARY)
+			record.putDouble(v);
+		else if (exactDoubles)
+			putAscii(Double.toString(v));
+		else
+			putDecimal(v);
+		return this;
+	}
+
+	public RecordWriter writeString(String s) {
+		separator();
+		if (format == Format.BINARY) {
+			int lengthAt = record.position();
+			record.putShort((short) 0);
+			putText(s, false);
+			record.putShort(lengthAt, (short) (record.position() - lengthAt - 2));
+		} else {
+			putText(s, true);
+		}
+		return this;
+	}
+
+	public void endRecord() throws IOException {
+		record.flip();
+		int length = record.remaining();
+
+		if (out.remaining() < length + 4)
+			drain();
+
+		if (format == Format.BINARY)
+			out.putInt(length);
+		out.put(record);
+		if (format == Format.TEXT)
+			out.put((byte) '\n');
+
+		record.clear();
+		firstField = true;
+		records++;
+	}
+
+	private void drain() throws IOException {
+		out.flip();
+		while (out.hasRemaining())
+			channel.write(out);
+		out.clear();
+	}
+
+	public void flush() throws IOException {
+		drain();
+		if (channel instanceof FileChannel)
+			((FileChannel) channel).force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void putText(String s, boolean escape) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				// Needs no escaping itself, but the characters after it still do
+				int cp = s.codePointAt(i);
+				putUtf8(cp);
+				i += Character.charCount(cp) - 1;
+				continue;
+			}
+			if (escape) {
+				switch (c) {
+				case '\\':
+					record.put((byte) '\\').put((byte) '\\');
+					continue;
+				case '\t':
+					record.put((byte) '\\').put((byte) 't');
+					continue;
+				case '\n':
+					record.put((byte) '\\').put((byte) 'n');
+					continue;
+				case '\r':
+					record.put((byte) '\\').put((byte) 'r');
+					continue;
+				}
+			}
+			record.put((byte) c);
+		}
+	}
+
+	private void putUtf8(int cp) {
+		if (cp < 0x800) {
+			record.put((byte) (0xc0 | (cp >> 6)));
+		} else if (cp < 0x10000) {
+			// An unpaired surrogate has no encoding
+			if (Character.isSurrogate((char) cp)) {
+				record.put((byte) '?');
+				return;
+			}
+			record.put((byte) (0xe0 | (cp >> 12)));
+			record.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+		} else {
+			record.put((byte) (0xf0 | (cp >> 18)));
+			record.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+			record.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+		}
+		record.put((byte) (0x80 | (cp & 0x3f)));
+	}
+
+	private void putDigits(long v) {
+		if (v == Long.MIN_VALUE) {
+			putAscii(Long.toString(v));
+			return;
+		}
+		if (v < 0) {
+			record.put((byte) '-');
+			v = -v;
+		}
+
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + (v % 10));
+			v /= 10;
+		} while (v > 0);
+		record.put(digits, i, digits.length - i);
+	}
+
+	private void putDecimal(double v) {
+		if (Double.isNaN(v) || Double.isInfinite(v) || Math.abs(v) >= MAX_FIXED) {
+			putAscii(Double.toString(v));
+			return;
+		}
+		if (v < 0) {
+			record.put((byte) '-');
+			v = -v;
+		}
+
+		long whole = (long) v;
+		long fraction = Math.round((v - whole) * DECIMAL_SCALE);
+		if (fraction >= DECIMAL_SCALE) {
+			whole++;
+			fraction -= DECIMAL_SCALE;
+		}
+
+		putDigits(whole);
+		record.put((byte) '.');
+		if (fraction == 0) {
+			record.put((byte) '0');
+			return;
+		}
+
+		// Fixed width fraction, without the trailing zeros
+		int end = digits.length;
+		int i = digits.length;
+		for (int n = 0; n < DECIMALS; n++) {
+			int digit = (int) (fraction % 10);
+			digits[--i] = (byte) ('0' + digit);
+			if (digit == 0 && end == i + 1)
+				end = i;
+			fraction /= 10;
+		}
+		record.put(digits, i, end - i);
+	}
+
+	private void putAscii(String s) {
+		for (int i = 0; i < s.length(); i++)
+			record.put((byte) s.charAt(i));
+	}
+
+}
@@ -1,11 +1,14 @@
 package spinworld.db;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -32,9 +35,22 @@ public class SpinWorldStorage extends SqlStorage {
 	protected NetworkService netWorld = null;
 	protected Set<Network> added = new HashSet<Network>();
 
+	PreparedStatement insertNetwork = null;
+	PreparedStatement upsertNetworkScore = null;
+	PreparedStatement upsertNetworkStats = null;
+
+	// Particle scores are written behind the simulation, on connections of their own
+	final Properties jdbcInfo;
+	WriteBehindQueue particleScores = null;
+
+	final ParticleRoundRecord record = new ParticleRoundRecord();
+	final ParticleAggregates aggregates = new ParticleAggregates();
+	final ParticleColumnWriter columns = new ParticleColumnWriter();
+
 	@Inject
 	public SpinWorldStorage(@Named(value = "sql.info") Properties jdbcInfo) {
 		super(jdbcInfo);
+		this.jdbcInfo = jdbcInfo;
 	}
 
 	@Inject(optional = true)
@@ -84,10 +100,22 @@ public class SpinWorldStorage extends SqlStorage {
 							+ "\"round\" int NOT NULL,"
 							+ "\"monitoringLevel\" float NOT NULL,"
 							+ "\"banCount\" int NOT NULL,"
+							+ "\"longevity\" int,"
+							+ "\"utilitySum\" float,"
+							+ "\"utilityAvg\" float,"
+							+ "\"utilityStd\" float,"
 							+ "PRIMARY KEY (\"simId\", \"network\", \"round\"),"
 							+ "FOREIGN KEY (\"simId\") REFERENCES \"simulations\" (\"id\") ON DELETE CASCADE"
 							+ ");");
 
+			// Columns written from NetworkRoundStats, for tables created before them
+			createTables
+					.execute("ALTER TABLE \"networkScore\" "
+							+ "ADD COLUMN IF NOT EXISTS \"longevity\" int, "
+							+ "ADD COLUMN IF NOT EXISTS \"utilitySum\" float, "
+							+ "ADD COLUMN IF NOT EXISTS \"utilityAvg\" float, "
+							+ "ADD COLUMN IF NOT EXISTS \"utilityStd\" float;");
+
 			createTables
 					.execute("CREATE TABLE IF NOT EXISTS \"aggregatedParticleScore\" ("
 							+ "\"simId\" bigint NOT NULL,"
@@ -96,6 +124,8 @@ public class SpinWorldStorage extends SqlStorage {
 							+ "\"USum\" float NOT NULL,"
 							+ "PRIMARY KEY (\"simId\", \"particle\",\"network\"),"
 							+ "FOREIGN KEY (\"simId\") REFERENCES \"simulations\" (\"id\") ON DELETE CASCADE );");
+
+			createTables.execute(Queries.getQuery("create_roundallocationratios"));
 		
 			createTables
 					.execute("CREATE TABLE IF NOT EXISTS \"simulationSummary\" ("
@@ -145,65 +175,147 @@ public class SpinWorldStorage extends SqlStorage {
 
 	@Override
 	protected synchronized void updateTransientEnvironment() {
-		PreparedStatement insertNetwork = null;
-		PreparedStatement insertNetworkSummary = null;
-		PreparedStatement deleteNetworkSummary = null;
-
-		/* Insert network information */
 		try {
-			insertNetwork = conn
-					.prepareStatement("INSERT INTO \"networks\" "
-							+ "(\"simId\", \"network\", \"method\", \"created\") "
-							+ "VALUES (?, ?, ?, ?) "
-							+ "ON CONFLICT (\"simId\", \"network\")"
-							+ "DO NOTHING");
+			prepareStatements();
 			
-			deleteNetworkSummary = conn.
-					prepareStatement("DELETE FROM \"networkScore\" WHERE \"simId\" = ?"
-							+ "AND \"network\" = ? AND \"round\" = ?");
-			
-			insertNetworkSummary = conn
-					.prepareStatement("INSERT INTO \"networkScore\" "
-							+ "(\"simId\", \"network\", \"round\", \"monitoringLevel\", \"banCount\")  "
-							+ "VALUES (?, ?, ?, ?, ?, ?) ");
-		} catch (SQLException e) {
-			logger.warn(e);
-			throw new RuntimeException(e);
-		}
-
-		try {
 			for (Network n : this.netWorld.getNetworks()) {
 				insertNetwork.setLong(1, this.simId);
 				insertNetwork.setInt(2, n.getId());
 				insertNetwork.setString(3, n.getAllocationMethod().toString());
 				insertNetwork.setInt(4, this.world.getRoundNumber());
-
 				insertNetwork.addBatch();
 
-				deleteNetworkSummary.setLong(1, this.simId);
-				deleteNetworkSummary.setInt(2, n.getId());
-				deleteNetworkSummary.setInt(3, this.world.getRoundNumber());
-				deleteNetworkSummary.addBatch();
+				upsertNetworkScore.setLong(1, this.simId);
+				upsertNetworkScore.setInt(2, n.getId());
+				upsertNetworkScore.setInt(3, this.world.getRoundNumber());
+				upsertNetworkScore.setDouble(4, n.getMonitoringLevel());
+				upsertNetworkScore.setInt(5, n.getNoBannedParticles());
+				upsertNetworkScore.addBatch();
+			}
 
-				insertNetworkSummary.setLong(1, this.simId);
-				insertNetworkSummary.setInt(2, n.getId());
-				insertNetworkSummary.setInt(3, this.world.getRoundNumber());
-				insertNetworkSummary.setDouble(4, n.getMonitoringLevel());
-				insertNetworkSummary.setInt(5, n.getNoBannedParticles());
-				
-				insertNetworkSummary.addBatch();
+			insertNetwork.executeBatch();
+			upsertNetworkScore.executeBatch();
+			
+			flushNetworkStats();
+		} catch (SQLException e) {
+			logger.warn(e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Write the network scores the rules have appended since the last flush, in one batch
+	protected void flushNetworkStats() throws SQLException {
+		NetworkRoundStats stats = world != null ? world.getNetworkStats() : null;
+		if (stats == null || stats.size() == 0)
+			return;
+
+		prepareStatements();
+		NetworkRoundStats.Rows rows = stats.drain();
+		try {
+			for (int i = 0; i < rows.size(); i++) {
+				upsertNetworkStats.setLong(1, this.simId);
+				upsertNetworkStats.setInt(2, rows.getNetwork(i));
+				upsertNetworkStats.setInt(3, rows.getRound(i));
+				upsertNetworkStats.setDouble(4, rows.getMonitoringLevel(i));
+				upsertNetworkStats.setInt(5, rows.getBanCount(i));
+				upsertNetworkStats.setInt(6, rows.getLongevity(i));
+				upsertNetworkStats.setDouble(7, rows.getUtilitySum(i));
+				upsertNetworkStats.setDouble(8, rows.getUtilityAvg(i));
+				upsertNetworkStats.setDouble(9, rows.getUtilityStd(i));
+				upsertNetworkStats.addBatch();
 			}
+			upsertNetworkStats.executeBatch();
+		} finally {
+			stats.recycle(rows);
+		}
+	}
+
+	// Network scores of a simulation, ordered by round then network
+	public NetworkRoundStats.Rows getNetworkRoundStats(long simId) {
+		return getNetworkRoundStats(conn, simId);
+	}
 
-			batchQueryQ.put(insertNetwork);
-			batchQueryQ.put(deleteNetworkSummary);
-			batchQueryQ.put(insertNetworkSummary);
+	// The same from any connection to the database, for readers bound to another storage
+	public static NetworkRoundStats.Rows getNetworkRoundStats(Connection conn, long simId) {
+		PreparedStatement query = null;
+		NetworkRoundStats.Rows rows = new NetworkRoundStats.Rows();
+		
+		try {
+			query = conn.prepareStatement("SELECT \"network\", \"round\", \"longevity\", \"banCount\", "
+					+ "\"utilitySum\", \"utilityAvg\", \"utilityStd\", \"monitoringLevel\" "
+					+ "FROM \"networkScore\" "
+					+ "WHERE \"simId\" = ? AND \"longevity\" IS NOT NULL "
+					+ "ORDER BY \"round\", \"network\"");
+			query.setLong(1, simId);
+			
+			ResultSet rs = query.executeQuery();
+			while (rs.next()) {
+				rows.add(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4),
+						rs.getDouble(5), rs.getDouble(6), rs.getDouble(7), rs.getDouble(8));
+			}
+			rs.close();
 		} catch (SQLException e) {
 			logger.warn(e);
 			throw new RuntimeException(e);
-		} catch (InterruptedException e1) {
-			e1.printStackTrace();
+		} finally {
+			if (query != null) {
+				try {
+					query.close();
+				} catch (SQLException e) {
+					logger.warn(e);
+				}
+			}
 		}
+		
+		return rows;
+	}
 
+	// Statements are prepared once per connection and reused by every flush
+	protected void prepareStatements() throws SQLException {
+		if (insertNetwork != null)
+			return;
+
+		insertNetwork = conn
+				.prepareStatement("INSERT INTO \"networks\" "
+						+ "(\"simId\", \"network\", \"method\", \"created\") "
+						+ "VALUES (?, ?, ?, ?) "
+						+ "ON CONFLICT (\"simId\", \"network\") "
+						+ "DO NOTHING");
+
+		upsertNetworkScore = conn
+				.prepareStatement("INSERT INTO \"networkScore\" "
+						+ "(\"simId\", \"network\", \"round\", \"monitoringLevel\", \"banCount\") "
+						+ "VALUES (?, ?, ?, ?, ?) "
+						+ "ON CONFLICT (\"simId\", \"network\", \"round\") "
+						+ "DO UPDATE SET \"monitoringLevel\" = EXCLUDED.\"monitoringLevel\", "
+						+ "\"banCount\" = EXCLUDED.\"banCount\"");
+
+		upsertNetworkStats = conn
+				.prepareStatement("INSERT INTO \"networkScore\" "
+						+ "(\"simId\", \"network\", \"round\", \"monitoringLevel\", \"banCount\", "
+						+ "\"longevity\", \"utilitySum\", \"utilityAvg\", \"utilityStd\") "
+						+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) "
+						+ "ON CONFLICT (\"simId\", \"network\", \"round\") "
+						+ "DO UPDATE SET \"longevity\" = EXCLUDED.\"longevity\", "
+						+ "\"utilitySum\" = EXCLUDED.\"utilitySum\", "
+						+ "\"utilityAvg\" = EXCLUDED.\"utilityAvg\", "
+						+ "\"utilityStd\" = EXCLUDED.\"utilityStd\"");
+	}
+
+	protected void closeStatements() {
+		for (Statement st : new Statement[] { insertNetwork, upsertNetworkScore, upsertNetworkStats }) {
+			if (st != null) {
+				try {
+					st.close();
+				} catch (SQLException e) {
+					logger.warn(e);
+				}
+			}
+		}
+
+		insertNetwork = null;
+		upsertNetworkScore = null;
+		upsertNetworkStats = null;
 	}
 
 	protected double getProperty(Map<String, String> properties, String key,
@@ -216,95 +328,111 @@ public class SpinWorldStorage extends SqlStorage {
 
 	@Override
 	protected synchronized void updateTransientAgents() {
-		PreparedStatement insertParticle = null;
-		PreparedStatement deleteParticle = null;
-
-		try {
-			deleteParticle = conn.
-					prepareStatement("DELETE FROM \"particleScore\" WHERE \"simId\" = ?"
-							+ "AND \"particle\" = ? AND \"round\" = ?");
-			
-			insertParticle = conn
-					.prepareStatement("INSERT INTO \"particleScore\" "
-							+ "(\"simId\", \"particle\", \"round\", \"g\", \"q\", \"d\", \"p\", \"r\", \"rP\", "
-							+ "\"rTotal\", \"satisfaction\", \"U\", \"network\", \"pCheat\", \"catchRate\", \"risk\")  "
-							+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ");
-		} catch (SQLException e) {
-			logger.warn(e);
-			throw new RuntimeException(e);
-		}
-
 		try {
-			Set<Agent> notfullyProcessed = new HashSet<Agent>();
+			ParticleRoundLog log = world != null ? world.getRoundLog() : null;
 			
-			for (Agent a : agentTransientQ) {
-				List<Integer> forRemoval = new LinkedList<Integer>();
-				for (Map.Entry<Integer, Map<String, String>> round : a.transientProperties
-						.entrySet()) {
-					if (!shutdown && world != null
-							&& round.getKey() >= world.getRoundNumber() - 2) {
-						notfullyProcessed.add(a);
-						continue;
-					}
-
-					Map<String, String> props = round.getValue();
-
-					if (!props.containsKey("g"))
-						continue;
-
-					deleteParticle.setLong(1, this.simId);
-					deleteParticle.setString(2, a.getName());
-					deleteParticle.setInt(3, round.getKey() - 1);
-					deleteParticle.addBatch();
-
-					insertParticle.setLong(1, a.simId);
-					insertParticle.setString(2, a.getName());
-					insertParticle.setInt(3, round.getKey() - 1);
-
-					insertParticle.setDouble(4, getProperty(props, "g", 0.0));
-					insertParticle.setDouble(5, getProperty(props, "q", 0.0));
-					insertParticle.setDouble(6, getProperty(props, "d", 0.0));
-					insertParticle.setDouble(7, getProperty(props, "p", 0.0));
-					insertParticle.setDouble(8, getProperty(props, "r", 0.0));
-					insertParticle.setDouble(9, getProperty(props, "r'", 0.0));
-					insertParticle.setDouble(10,
-							getProperty(props, "RTotal", 0.0));
-					insertParticle.setDouble(11, getProperty(props, "o", 0.0));
-					insertParticle.setDouble(12, getProperty(props, "U", 0.0));
-					insertParticle.setDouble(14,
-							getProperty(props, "pCheat", 0.0));
-					insertParticle.setDouble(15,
-							getProperty(props, "catchRate", 0.0));
-					insertParticle.setDouble(16,
-							getProperty(props, "risk", 0.0));
-					
-					if (props.containsKey("network"))
-						insertParticle.setInt(13,
-								Integer.parseInt(props.get("network")));
-					else
-						insertParticle.setInt(13, 0);
-
-					insertParticle.addBatch();
-					
-					forRemoval.add(round.getKey());
-				}
+			for (int round : completedRounds(log)) {
+				ParticleRoundBatch batch = ParticleRoundBatch.copyOf(log, round, record);
+				log.release(round);
 				
-				for (Integer round : forRemoval) {
-					a.transientProperties.remove(round);
+				for (int i = 0; i < batch.size(); i++) {
+					batch.read(i, record);
+					// Ratios keep the agents' state time, as allocationRatios always has
+					aggregates.add(batch.getName(i), round, record);
+					columns.add(batch.getIndex(i), batch.getName(i), round, record);
 				}
+				
+				if (batch.size() > 0)
+					getParticleScores().put(batch);
 			}
 			
-			batchQueryQ.put(deleteParticle);
-			batchQueryQ.put(insertParticle);
-			agentTransientQ.clear();
-			agentTransientQ.addAll(notfullyProcessed);
+			// The last scores are in, so the aggregates are complete
+			if (shutdown)
+				closeParticleScores();
+			if (shutdown && !aggregates.isEmpty())
+				writeAggregates();
+			if (shutdown && !columns.isEmpty())
+				writeColumns();
+			
+			discardTransientState();
 		} catch (SQLException e) {
 			logger.warn(e);
 			throw new RuntimeException(e);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		} catch (IOException e) {
+			logger.warn(e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected WriteBehindQueue getParticleScores() {
+		if (particleScores == null)
+			particleScores = WriteBehindQueue.create(ParticleScoreWriter.factory(jdbcInfo, this.simId));
+		return particleScores;
+	}
+
+	// Wait for the queued particle scores to be written
+	protected void closeParticleScores() throws IOException, SQLException {
+		if (particleScores == null)
+			return;
+		try {
+			particleScores.close();
+		} finally {
+			particleScores = null;
+		}
+	}
+
+	protected void writeAggregates() throws SQLException {
+		PreparedStatement upsertUtility = conn
+				.prepareStatement("INSERT INTO \"aggregatedParticleScore\" "
+						+ "(\"simId\", \"particle\", \"network\", \"USum\") "
+						+ "VALUES (?, ?, ?, ?) "
+						+ "ON CONFLICT (\"simId\", \"particle\", \"network\") "
+						+ "DO UPDATE SET \"USum\" = EXCLUDED.\"USum\"");
+		PreparedStatement upsertRatios = conn
+				.prepareStatement("INSERT INTO \"roundAllocationRatios\" "
+						+ "(\"simId\", \"particle\", \"round\", \"network\", \"ratio\") "
+						+ "VALUES (?, ?, ?, ?, ?) "
+						+ "ON CONFLICT (\"simId\", \"particle\", \"round\") "
+						+ "DO UPDATE SET \"network\" = EXCLUDED.\"network\", \"ratio\" = EXCLUDED.\"ratio\"");
+		try {
+			aggregates.insertUtility(upsertUtility, this.simId);
+			aggregates.insertRatios(upsertRatios, this.simId);
+			aggregates.clear();
+		} finally {
+			upsertUtility.close();
+			upsertRatios.close();
+		}
+	}
+
+	protected void writeColumns() throws IOException {
+		Path file = ParticleColumnWriter.getFile(jdbcInfo, this.simId);
+		if (file != null) {
+			columns.write(file, this.simId);
+			logger.info("Wrote particle columns to " + file);
+		}
+		columns.clear();
+	}
+
+	// Logged rounds that agents have finished with; the last two may still be written
+	protected int[] completedRounds(ParticleRoundLog log) {
+		if (log == null)
+			return new int[0];
+
+		int[] rounds = log.getRounds();
+		int n = 0;
+		for (int round : rounds) {
+			if (shutdown || round < world.getRoundNumber() - 2)
+				rounds[n++] = round;
 		}
+		return Arrays.copyOf(rounds, n);
+	}
 
+	// Particle scores come from the round log; other per-round properties are not stored
+	protected void discardTransientState() {
+		for (Agent a : agentTransientQ) {
+			a.transientProperties.clear();
+		}
+		agentTransientQ.clear();
 	}
 
 	@Override
@@ -345,7 +473,22 @@ public class SpinWorldStorage extends SqlStorage {
 	@Override
 	public synchronized void stop() {
 		this.shutdown = true;
+		if (conn != null) {
+			try {
+				flushNetworkStats();
+			} catch (SQLException e) {
+				logger.warn(e);
+			}
+		}
 		super.stop();
+		closeStatements();
+		try {
+			closeParticleScores();
+		} catch (IOException e) {
+			logger.warn(e);
+		} catch (SQLException e) {
+			logger.warn(e);
+		}
 	}
 
 }
@@ -0,0 +1,259 @@
+package spinworld.db;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/*
+ * Summarises completed simulations into "aggregatedParticleScore" and "simulationSummary".
+ * Simulations not summarised yet are shared out to workers, each on its own connection
+ * and committing after every simulation, so an interrupted run only redoes the
+ * simulations it was in the middle of.
+ */
+public class Summariser {
+
+	private final Logger logger = Logger.getLogger(Summariser.class);
+
+	final Properties jdbcInfo;
+	final int workers;
+
+	static class Simulation {
+		final long id;
+		final String name;
+		final int finishTime;
+
+		Simulation(long id, String name, int finishTime) {
+			this.id = id;
+			this.name = name;
+			this.finishTime = finishTime;
+		}
+	}
+
+	public Summariser(Properties jdbcInfo, int workers) {
+		super();
+		this.jdbcInfo = jdbcInfo;
+		this.workers = workers;
+	}
+
+	// Summarise every completed simulation with no summary yet, returning how many failed
+	public int summarise(Connection conn) throws SQLException {
+		BlockingQueue<Simulation> queue = new LinkedBlockingQueue<Simulation>();
+		ResultSet unprocessed = conn.createStatement()
+				.executeQuery(Queries.getQuery("select_unprocessedsimulations"));
+		while (unprocessed.next()) {
+			queue.add(new Simulation(unprocessed.getLong(1), unprocessed.getString(2), unprocessed.getInt(3)));
+		}
+		unprocessed.close();
+
+		int total = queue.size();
+		int threads = Math.max(1, Math.min(workers, total));
+		logger.info("Summarising " + total + " simulations on " + threads + " connections");
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < threads; i++) {
+			results.add(pool.submit(new Worker(queue)));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		Throwable error = null;
+		for (Future<Integer> result : results) {
+			try {
+				failed += result.get();
+			} catch (InterruptedException e) {
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				// A worker that lost its connection leaves the queue to the others
+				logger.warn(e.getCause());
+				error = e.getCause();
+			}
+		}
+
+		if (error != null)
+			throw new RuntimeException(error);
+		return failed;
+	}
+
+	Connection connect() throws SQLException {
+		try {
+			Class.forName(jdbcInfo.getProperty("driver"));
+		} catch (ClassNotFoundException e) {
+			throw new SQLException(e);
+		}
+		return DriverManager.getConnection(jdbcInfo.getProperty("url"), jdbcInfo.getProperty("user"),
+				jdbcInfo.getProperty("password"));
+	}
+
+	class Worker implements Callable<Integer> {
+
+		final BlockingQueue<Simulation> queue;
+
+		Worker(BlockingQueue<Simulation> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public Integer call() throws SQLException {
+			int failed = 0;
+			Connection conn = connect();
+			try {
+				conn.setAutoCommit(false);
+
+				PreparedStatement aggregatedParticleScore = conn
+						.prepareStatement(Queries.getQuery("insert_aggregatedparticlescore"));
+				PreparedStatement networkStats = conn.prepareStatement(Queries.getQuery("select_networks"));
+				PreparedStatement remaining = conn
+						.prepareStatement(Queries.getQuery("select_agentsremaining_bynetwork"));
+				PreparedStatement insertSummary = conn
+						.prepareStatement(Queries.getQuery("insert_simulationsummary"));
+				PreparedStatement agentNames = conn.prepareStatement(Queries.getQuery("select_agentnames"));
+
+				Simulation sim;
+				while (!Thread.currentThread().isInterrupted() && (sim = queue.poll()) != null) {
+					logger.info(sim.id + ": " + sim.name);
+					try {
+						summarise(sim, aggregatedParticleScore, networkStats, remaining, insertSummary, agentNames);
+						conn.commit();
+					} catch (SQLException e) {
+						// Left without a summary, so the next run picks it up again
+						logger.warn("Could not summarise simulation " + sim.id, e);
+						insertSummary.clearBatch();
+						conn.rollback();
+						failed++;
+					}
+				}
+			} finally {
+				conn.close();
+			}
+			return failed;
+		}
+
+		private void summarise(Simulation sim, PreparedStatement aggregatedParticleScore,
+				PreparedStatement networkStats, PreparedStatement remaining,
+				PreparedStatement insertSummary, PreparedStatement agentNames) throws SQLException {
+			int cutoff = (int) (Math.floor(sim.finishTime / 2)) - 1;
+			logger.debug("Cutoff: " + cutoff);
+
+			// Particle scores per network are written by the simulation; only older runs lack them
+			aggregatedParticleScore.setLong(1, sim.id);
+			aggregatedParticleScore.setLong(2, sim.id);
+			aggregatedParticleScore.execute();
+
+			// c and nc particles remaining in every network at the cutoff
+			Map<Integer, int[]> remainingBy = remainingFromColumns(sim, cutoff, agentNames);
+			if (remainingBy == null) {
+				remainingBy = new HashMap<Integer, int[]>();
+				remaining.setLong(1, sim.id);
+				// particleScore rounds are one before those of agents' states and the columns
+				remaining.setInt(2, cutoff - 1);
+				ResultSet rs = remaining.executeQuery();
+				while (rs.next()) {
+					remainingBy.put(rs.getInt(1), new int[] { rs.getInt(2), rs.getInt(3) });
+				}
+				rs.close();
+			}
+
+			networkStats.setLong(1, sim.id);
+			ResultSet networks = networkStats.executeQuery();
+			while (networks.next()) {
+				int network = networks.getInt(1);
+				int[] rem = remainingBy.get(network);
+				logger.debug("Network " + network);
+
+				insertSummary.setLong(1, sim.id);
+				insertSummary.setString(2, sim.name);
+				insertSummary.setInt(3, network);
+				insertSummary.setDouble(4, networks.getDouble(2));
+				insertSummary.setDouble(5, networks.getDouble(3));
+				insertSummary.setDouble(6, networks.getDouble(4));
+				insertSummary.setDouble(7, networks.getDouble(5));
+				insertSummary.setDouble(8, networks.getDouble(6));
+				insertSummary.setInt(9, rem != null ? rem[0] : 0);
+				insertSummary.setInt(10, rem != null ? rem[1] : 0);
+				insertSummary.addBatch();
+			}
+			networks.close();
+			insertSummary.executeBatch();
+		}
+
+		// Counted from the simulation's column file, null when it has none of its own
+		private Map<Integer, int[]> remainingFromColumns(Simulation sim, int cutoff, PreparedStatement agentNames)
+				throws SQLException {
+			Path file = ParticleColumnWriter.getFile(jdbcInfo, sim.id);
+			if (file == null || !file.toFile().exists())
+				return null;
+
+			try {
+				ParticleColumnReader columns = ParticleColumnReader.open(file);
+				try {
+					if (!columns.isOf(sim.id, getAgentNames(sim, agentNames))) {
+						logger.warn(file + " is not of simulation " + sim.id + " in this database, "
+								+ "counting from the database");
+						return null;
+					}
+
+					Map<Integer, int[]> remainingBy = new HashMap<Integer, int[]>();
+					for (int i = 0; i < columns.getSize(); i++) {
+						if (!columns.has(i, cutoff))
+							continue;
+
+						int network = columns.getNetwork(i, cutoff);
+						int[] rem = remainingBy.get(network);
+						if (rem == null) {
+							rem = new int[2];
+							remainingBy.put(network, rem);
+						}
+
+						String name = columns.getName(i);
+						if (name.startsWith("nc"))
+							rem[1]++;
+						else if (name.startsWith("c"))
+							rem[0]++;
+					}
+					return remainingBy;
+				} finally {
+					columns.close();
+				}
+			} catch (IOException e) {
+				logger.warn("Could not read " + file + ", counting from the database", e);
+				return null;
+			}
+		}
+
+		private Set<String> getAgentNames(Simulation sim, PreparedStatement agentNames) throws SQLException {
+			Set<String> names = new HashSet<String>();
+			agentNames.setLong(1, sim.id);
+			ResultSet rs = agentNames.executeQuery();
+			while (rs.next()) {
+				names.add(rs.getString(1));
+			}
+			rs.close();
+			return names;
+		}
+
+	}
+
+}
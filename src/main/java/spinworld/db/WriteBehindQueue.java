@@ -0,0 +1,354 @@
+package spinworld.db;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import spinworld.db.RecordWriter.Format;
+
+/*
+ * Takes particle score batches off the simulation thread and writes them behind it. The
+ * simulation puts one batch per round; writer threads, each with a sink of its own, take
+ * whatever rounds are waiting and write them together. At most capacity rounds wait at a
+ * time; a put beyond that blocks until a writer catches up, spills the round to a file
+ * written once the queue is closed, or queues it without its diagnostics. Only the
+ * simulation thread may put and close.
+ */
+public class WriteBehindQueue {
+
+	private static final Logger logger = Logger.getLogger(WriteBehindQueue.class);
+
+	public enum WhenFull {
+		BLOCK, SPILL, DROP_DIAGNOSTICS
+	};
+
+	// Where a writer's batches go, used by one writer thread at a time
+	public interface Sink {
+		void write(List<ParticleRoundBatch> batches) throws SQLException, IOException;
+
+		void close() throws SQLException;
+	}
+
+	public interface SinkFactory {
+		Sink open() throws SQLException;
+	}
+
+	static final int MAX_COALESCE = 16;
+
+	final SinkFactory sinks;
+	final int capacity;
+	final WhenFull whenFull;
+
+	final ConcurrentLinkedQueue<ParticleRoundBatch> queue = new ConcurrentLinkedQueue<ParticleRoundBatch>();
+	// Rounds queued or being written
+	final AtomicInteger depth = new AtomicInteger();
+	final Thread[] writers;
+	volatile Thread producer = null;
+	volatile boolean closed = false;
+	volatile Exception failure = null;
+
+	Path spillFile = null;
+	RecordWriter spill = null;
+
+	final long started = System.nanoTime();
+	final AtomicInteger maxDepth = new AtomicInteger();
+	final AtomicLong flushes = new AtomicLong();
+	final AtomicLong rows = new AtomicLong();
+	final AtomicLong flushNanos = new AtomicLong();
+	final AtomicLong maxFlushNanos = new AtomicLong();
+	long blockedNanos = 0;
+	int spilled = 0;
+	int spillWritten = 0;
+	int slimmed = 0;
+
+	public WriteBehindQueue(SinkFactory sinks, int writers, int capacity, WhenFull whenFull) {
+		super();
+		if (writers < 1 || capacity < 1)
+			throw new IllegalArgumentException("Need at least one writer and one round of capacity");
+
+		this.sinks = sinks;
+		this.capacity = capacity;
+		this.whenFull = whenFull;
+		this.writers = new Thread[writers];
+		for (int i = 0; i < writers; i++) {
+			this.writers[i] = new Thread("particle-writer-" + i) {
+				@Override
+				public void run() {
+					write();
+				}
+			};
+			this.writers[i].setDaemon(true);
+			this.writers[i].start();
+		}
+	}
+
+	// Configured by the system properties spinworld.writebehind.writers, .capacity and .whenfull
+	public static WriteBehindQueue create(SinkFactory sinks) {
+		return new WriteBehindQueue(sinks,
+				Integer.getInteger("spinworld.writebehind.writers", 2),
+				Integer.getInteger("spinworld.writebehind.capacity", 8),
+				WhenFull.valueOf(System.getProperty("spinworld.writebehind.whenfull", "BLOCK").toUpperCase()));
+	}
+
+	public void put(ParticleRoundBatch batch) throws IOException {
+		checkFailure();
+
+		int limit = capacity;
+		if (depth.get() >= capacity) {
+			switch (whenFull) {
+			case SPILL:
+				spill(batch);
+				return;
+			case DROP_DIAGNOSTICS:
+				// Slimmed rounds take the space of fewer full ones; past that, wait
+				batch = batch.withoutDiagnostics();
+				slimmed++;
+				limit = capacity + capacity / 2;
+				break;
+			default:
+				break;
+			}
+			awaitBelow(limit);
+		}
+
+		int d = depth.incrementAndGet();
+		if (d > maxDepth.get())
+			maxDepth.set(d);
+		queue.offer(batch);
+		for (Thread writer : writers)
+			LockSupport.unpark(writer);
+	}
+
+	private void awaitBelow(int limit) {
+		long start = System.nanoTime();
+		producer = Thread.currentThread();
+		try {
+			// Writers unpark the producer after every flush and when they fail
+			while (depth.get() >= limit) {
+				checkFailure();
+				LockSupport.park(this);
+			}
+		} finally {
+			producer = null;
+			blockedNanos += System.nanoTime() - start;
+		}
+	}
+
+	private void spill(ParticleRoundBatch batch) throws IOException {
+		if (spill == null) {
+			spillFile = Files.createTempFile("spinworld-spill", ".rec");
+			spill = RecordWriter.open(spillFile, Format.BINARY);
+			logger.info("Write queue full, spilling rounds to " + spillFile);
+		}
+		batch.writeTo(spill);
+		spilled++;
+	}
+
+	private void write() {
+		Sink sink = null;
+		List<ParticleRoundBatch> batches = new ArrayList<ParticleRoundBatch>();
+		try {
+			sink = sinks.open();
+			while (failure == null) {
+				ParticleRoundBatch batch = queue.poll();
+				if (batch == null) {
+					// A last round may have been put just before closing
+					if (closed) {
+						if (queue.isEmpty())
+							break;
+						continue;
+					}
+					// Unparked by the next put or by close
+					LockSupport.park(this);
+					continue;
+				}
+
+				batches.add(batch);
+				while (batches.size() < MAX_COALESCE && (batch = queue.poll()) != null)
+					batches.add(batch);
+
+				flush(sink, batches);
+				depth.addAndGet(-batches.size());
+				batches.clear();
+
+				Thread waiting = producer;
+				if (waiting != null)
+					LockSupport.unpark(waiting);
+			}
+		} catch (Exception e) {
+			logger.warn("Particle score writer failed", e);
+			failure = e;
+			Thread waiting = producer;
+			if (waiting != null)
+				LockSupport.unpark(waiting);
+		} finally {
+			if (sink != null) {
+				try {
+					sink.close();
+				} catch (SQLException e) {
+					logger.warn(e);
+				}
+			}
+		}
+	}
+
+	private void flush(Sink sink, List<ParticleRoundBatch> batches) throws SQLException, IOException {
+		long start = System.nanoTime();
+		sink.write(batches);
+		long elapsed = System.nanoTime() - start;
+
+		int n = 0;
+		for (ParticleRoundBatch batch : batches)
+			n += batch.size();
+		rows.addAndGet(n);
+		flushes.incrementAndGet();
+		flushNanos.addAndGet(elapsed);
+		long max;
+		while (elapsed > (max = maxFlushNanos.get()) && !maxFlushNanos.compareAndSet(max, elapsed))
+			;
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new RuntimeException(failure);
+	}
+
+	// Wait for every queued round to be written, then write the spilled ones
+	public void close() throws IOException, SQLException {
+		closed = true;
+		for (Thread writer : writers) {
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+
+		try {
+			checkFailure();
+			if (spillFile != null)
+				writeSpilled();
+		} finally {
+			if (spillFile != null)
+				removeSpill();
+		}
+
+		logger.info("Particle scores written: " + this);
+	}
+
+	private void writeSpilled() throws IOException, SQLException {
+		spill.close();
+		spill = null;
+
+		RecordReader in = RecordReader.open(spillFile, Format.BINARY);
+		try {
+			Sink sink = sinks.open();
+			try {
+				List<ParticleRoundBatch> batches = new ArrayList<ParticleRoundBatch>();
+				ParticleRoundBatch batch;
+				while ((batch = ParticleRoundBatch.readFrom(in)) != null) {
+					batches.add(batch);
+					if (batches.size() == MAX_COALESCE) {
+						flush(sink, batches);
+						spillWritten += batches.size();
+						batches.clear();
+					}
+				}
+				if (!batches.isEmpty()) {
+					flush(sink, batches);
+					spillWritten += batches.size();
+				}
+			} finally {
+				sink.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// Whether or not its rounds were written, the spill file goes
+	private void removeSpill() {
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+				logger.warn(e);
+			}
+			spill = null;
+		}
+
+		int dropped = spilled - spillWritten;
+		if (dropped > 0)
+			logger.warn(dropped + " spilled rounds were not written, deleting " + spillFile);
+		try {
+			Files.deleteIfExists(spillFile);
+		} catch (IOException e) {
+			logger.warn(e);
+		}
+		spillFile = null;
+	}
+
+	public int getDepth() {
+		return depth.get();
+	}
+
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	public long getRowCount() {
+		return rows.get();
+	}
+
+	public double getMeanFlushMillis() {
+		long n = flushes.get();
+		return n > 0 ? flushNanos.get() / 1e6 / n : 0;
+	}
+
+	public double getMaxFlushMillis() {
+		return maxFlushNanos.get() / 1e6;
+	}
+
+	public double getRowsPerSecond() {
+		double seconds = (System.nanoTime() - started) / 1e9;
+		return seconds > 0 ? rows.get() / seconds : 0;
+	}
+
+	// Time the simulation waited for space, in milliseconds
+	public long getBlockedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+	}
+
+	public int getSpilledRounds() {
+		return spilled;
+	}
+
+	public int getSlimmedRounds() {
+		return slimmed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d rows in %d flushes (mean %.1fms, max %.1fms, %.0f rows/s), "
+				+ "max depth %d/%d, blocked %dms, %d rounds spilled, %d without diagnostics",
+				getRowCount(), getFlushCount(), getMeanFlushMillis(), getMaxFlushMillis(), getRowsPerSecond(),
+				getMaxDepth(), capacity, getBlockedMillis(), getSpilledRounds(), getSlimmedRounds());
+	}
+
+}
@@ -0,0 +1,52 @@
+package spinworld.facts;
+
+// Running counts of categorised observations. With a window the counts cover
+// only the most recent observations, which are kept in a primitive ring buffer
+public class ObservationHistory {
+
+	final int[] counts;
+	final byte[] window;
+
+	int head = 0;
+	int size = 0;
+
+	public ObservationHistory(int categories) {
+		this(categories, 0);
+	}
+
+	// A window size of 0 or less counts every observation ever made
+	public ObservationHistory(int categories, int windowSize) {
+		super();
+		this.counts = new int[categories];
+		this.window = windowSize > 0 ? new byte[windowSize] : null;
+	}
+
+	public void add(int category) {
+		if (window != null) {
+			if (size == window.length)
+				counts[window[head]]--;
+			else
+				size++;
+
+			window[head] = (byte) category;
+			head = (head + 1) % window.length;
+		} else {
+			size++;
+		}
+
+		counts[category]++;
+	}
+
+	public int count(int category) {
+		return counts[category];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+}
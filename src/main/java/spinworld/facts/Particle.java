@@ -1,7 +1,5 @@
 package spinworld.facts;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.UUID;
 
 import spinworld.GraduationLevel;
@@ -37,8 +35,8 @@ public class Particle {
 	// Size multiplier a.k.a. radius of particle acts as a weighting for resource allocation
 	double radius = 1;
 					
-	ArrayList<GraduationLevel> observedSanctionHistory = new ArrayList<GraduationLevel>();
-	ArrayList<Boolean> observedCatchHistory = new ArrayList<Boolean>();
+	ObservationHistory observedSanctionHistory = new ObservationHistory(GraduationLevel.values().length);
+	ObservationHistory observedCatchHistory = new ObservationHistory(2);
 	
 	double utility = 0.0;
 		
@@ -148,15 +146,21 @@ public class Particle {
 		this.utility = util;
 	}
 	
+	// Restrict observed histories to the most recent observations, 0 keeps them all
+	public void setHistoryWindow(int window) {
+		this.observedSanctionHistory = new ObservationHistory(GraduationLevel.values().length, window);
+		this.observedCatchHistory = new ObservationHistory(2, window);
+	}
+	
 	public void updateObservedSanctionHistory(GraduationLevel sanction) {
-		observedSanctionHistory.add(sanction);
+		observedSanctionHistory.add(sanction.getValue());
 	}
 	
 	public double getObservedRiskRate() {	
 		if (!observedSanctionHistory.isEmpty()) {
 			int sanctionCount = 
-					(int)(Collections.frequency(observedSanctionHistory, GraduationLevel.WARNING) * 0.5)
-				+ Collections.frequency(observedSanctionHistory, GraduationLevel.EXPULSION);
+					(int)(observedSanctionHistory.count(GraduationLevel.WARNING.getValue()) * 0.5)
+				+ observedSanctionHistory.count(GraduationLevel.EXPULSION.getValue());
 			double risk = ((double) sanctionCount)/observedSanctionHistory.size();
 			
 			return risk;
@@ -165,12 +169,12 @@ public class Particle {
 	}
 	
 	public void updateObservedCatchHistory(Boolean caught) {
-			observedCatchHistory.add(caught);
+			observedCatchHistory.add(caught ? 1 : 0);
 	}
 	
 	public double getObservedCatchRate() {
 		if (!observedCatchHistory.isEmpty()) {
-			int catchCount = Collections.frequency(observedCatchHistory, true);			
+			int catchCount = observedCatchHistory.count(1);			
 			double catchRate = ((double) catchCount)/observedCatchHistory.size();
 			
 			return catchRate;
@@ -0,0 +1,61 @@
+package spinworld.facts;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.inject.Singleton;
+
+// Shared lookup of the particles inserted into the session, filled once at creation.
+// Reads are lock free; particles also get a dense index in creation order
+@Singleton
+public class ParticleRegistry {
+
+	final Map<UUID, Particle> particles = new ConcurrentHashMap<UUID, Particle>();
+	final Map<UUID, Integer> indices = new ConcurrentHashMap<UUID, Integer>();
+
+	// Copied on registration, which only happens while the scenario is built
+	volatile Particle[] byIndex = new Particle[0];
+
+	public synchronized int register(Particle p) {
+		Integer existing = indices.get(p.getId());
+		if (existing != null)
+			return existing;
+
+		int index = byIndex.length;
+		Particle[] grown = Arrays.copyOf(byIndex, index + 1);
+		grown[index] = p;
+
+		particles.put(p.getId(), p);
+		indices.put(p.getId(), index);
+		byIndex = grown;
+
+		return index;
+	}
+
+	public Particle get(UUID id) {
+		return particles.get(id);
+	}
+
+	public Particle get(int index) {
+		return byIndex[index];
+	}
+
+	public int indexOf(UUID id) {
+		Integer index = indices.get(id);
+		return index == null ? -1 : index;
+	}
+
+	public int size() {
+		return byIndex.length;
+	}
+
+	// Particles in creation order
+	public List<Particle> getParticles() {
+		return Collections.unmodifiableList(Arrays.asList(byIndex));
+	}
+
+}
@@ -0,0 +1,136 @@
+package spinworld.facts;
+
+import spinworld.network.Network;
+
+/*
+ * What a particle generated, provided, demanded, was allocated and appropriated in one
+ * round, filled in by the rules that process each action. Inserted for the members of a
+ * network when its sanctions start, so cheat detection matches this fact alone.
+ */
+public class RoundLedger {
+
+	final Particle particle;
+	final int t;
+
+	double g;
+	double q;
+	double provision;
+	double demand;
+	double allocation;
+	double appropriation;
+
+	boolean generated = false;
+	boolean provided = false;
+	boolean demanded = false;
+	boolean allocated = false;
+	boolean appropriated = false;
+
+	Network network = null;
+	Network monitoredBy = null;
+
+	public RoundLedger(Particle particle, int t) {
+		super();
+		this.particle = particle;
+		this.t = t;
+	}
+
+	public Particle getParticle() {
+		return particle;
+	}
+
+	public int getT() {
+		return t;
+	}
+
+	public double getG() {
+		return g;
+	}
+
+	public double getQ() {
+		return q;
+	}
+
+	public void setGenerated(double g, double q) {
+		this.g = g;
+		this.q = q;
+		this.generated = true;
+	}
+
+	public boolean isGenerated() {
+		return generated;
+	}
+
+	public double getProvision() {
+		return provision;
+	}
+
+	public void setProvision(double provision) {
+		this.provision = provision;
+		this.provided = true;
+	}
+
+	public double getDemand() {
+		return demand;
+	}
+
+	public void setDemand(double demand) {
+		this.demand = demand;
+		this.demanded = true;
+	}
+
+	public double getAllocation() {
+		return allocation;
+	}
+
+	public void setAllocation(double allocation) {
+		this.allocation = allocation;
+		this.allocated = true;
+	}
+
+	public double getAppropriation() {
+		return appropriation;
+	}
+
+	public void setAppropriation(double appropriation) {
+		this.appropriation = appropriation;
+		this.appropriated = true;
+	}
+
+	// Network the particle is a member of when sanctions are decided
+	public Network getNetwork() {
+		return network;
+	}
+
+	public void setNetwork(Network network) {
+		this.network = network;
+	}
+
+	public void setMonitoredBy(Network network) {
+		this.monitoredBy = network;
+	}
+
+	// Monitored this round by the network it is still a member of
+	public boolean isMonitored() {
+		return monitoredBy != null && monitoredBy.equals(network);
+	}
+
+	public boolean isProvisionCheat() {
+		return generated && provided && provision < g;
+	}
+
+	public boolean isDemandCheat() {
+		return generated && demanded && demand > q;
+	}
+
+	public boolean isAppropriationCheat() {
+		return generated && allocated && appropriated && appropriation > allocation;
+	}
+
+	@Override
+	public String toString() {
+		return "RoundLedger [particle=" + particle.getName() + ", t=" + t + ", g=" + g + ", q=" + q
+				+ ", provision=" + provision + ", demand=" + demand + ", allocation=" + allocation
+				+ ", appropriation=" + appropriation + ", monitored=" + isMonitored() + "]";
+	}
+
+}
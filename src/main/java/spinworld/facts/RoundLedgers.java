@@ -0,0 +1,55 @@
+package spinworld.facts;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Ledgers of the rounds still being played, set as the "ledgers" global. Only used
+// from rule consequences, so on the thread firing the rules
+public class RoundLedgers {
+
+	// Rounds before the latest that are kept, as g and q arrive a round ahead
+	static final int KEPT = 2;
+
+	final Map<Integer, Map<Particle, RoundLedger>> rounds = new HashMap<Integer, Map<Particle, RoundLedger>>();
+
+	// Ledger of the particle for round t, started if there is none yet
+	public RoundLedger get(Particle p, int t) {
+		Map<Particle, RoundLedger> round = rounds.get(t);
+		if (round == null) {
+			discardBefore(t - KEPT);
+			round = new HashMap<Particle, RoundLedger>();
+			rounds.put(t, round);
+		}
+
+		RoundLedger l = round.get(p);
+		if (l == null) {
+			l = new RoundLedger(p, t);
+			round.put(p, l);
+		}
+		return l;
+	}
+
+	// Hand over the ledger of the particle for round t, or null if nothing was recorded
+	public RoundLedger take(Particle p, int t) {
+		Map<Particle, RoundLedger> round = rounds.get(t);
+		return round != null ? round.remove(p) : null;
+	}
+
+	// Drop ledgers of rounds before t, e.g. of particles that were in no network
+	public void discardBefore(int t) {
+		for (Iterator<Integer> it = rounds.keySet().iterator(); it.hasNext();) {
+			if (it.next() < t)
+				it.remove();
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Map<Particle, RoundLedger> round : rounds.values()) {
+			size += round.size();
+		}
+		return size;
+	}
+
+}
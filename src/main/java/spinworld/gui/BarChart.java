@@ -15,13 +15,12 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.renderer.category.BarRenderer;
 import org.jfree.data.category.DefaultCategoryDataset;
 
-import uk.ac.imperial.presage2.core.db.persistent.PersistentAgent;
 import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
-import uk.ac.imperial.presage2.core.db.persistent.TransientAgentState;
 
 public class BarChart implements Chart {
 
 	final PersistentSimulation sim;
+	final ParticleValues values;
 	final int windowSize;
 
 	final DefaultCategoryDataset data;
@@ -31,10 +30,11 @@ public class BarChart implements Chart {
 	final String property;
 	final String shortName;
 	
-	BarChart(PersistentSimulation sim, int windowSize, String title, 
+	BarChart(PersistentSimulation sim, ParticleValues values, int windowSize, String title, 
 			String yAxis, String property, String shortName, double lb, double ub) {
 		super();
 		this.sim = sim;
+		this.values = values;
 		this.windowSize = windowSize;
 		this.property = property;
 		this.shortName = shortName;
@@ -73,31 +73,30 @@ public class BarChart implements Chart {
 		int length = Math.min(windowSize, finish - start);
 
 		if (agentData.size() == 0) {
-			for (PersistentAgent a : sim.getAgents()) {
+			for (int a = 0; a < values.size(); a++) {
 				DescriptiveStatistics props = new DescriptiveStatistics(windowSize);
-				agentData.put(a.getName(), props);
+				agentData.put(values.getName(a), props);
 				for (int i = 0; i < length; i++) {
 					int t = start + i + 1;
-					TransientAgentState s = a.getState(t);
+					double p = values.get(a, t, this.property);
 
-					if (s != null && s.getProperty(this.property) != null) {
-						double p = Double.parseDouble(s.getProperty(this.property));
+					if (!Double.isNaN(p)) {
 						props.addValue(p);
 					}
 				}
 			}
 		} else {
-			for (PersistentAgent a : sim.getAgents()) {
-				if (!agentData.containsKey(a.getName())) {
-					agentData.put(a.getName(), new DescriptiveStatistics(windowSize));
+			for (int a = 0; a < values.size(); a++) {
+				String name = values.getName(a);
+				if (!agentData.containsKey(name)) {
+					agentData.put(name, new DescriptiveStatistics(windowSize));
 				}
 
-				TransientAgentState s = a.getState(finish);
-				if (s != null && s.getProperty(this.property) != null) {
-					double p = Double.parseDouble(s.getProperty(this.property));
-					agentData.get(a.getName()).addValue(p);
+				double p = values.get(a, finish, this.property);
+				if (!Double.isNaN(p)) {
+					agentData.get(name).addValue(p);
 				} else {
-					agentData.put(a.getName(), new DescriptiveStatistics(new double[] { 0 }));
+					agentData.put(name, new DescriptiveStatistics(new double[] { 0 }));
 				}
 			}
 		}
@@ -13,13 +13,12 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.xy.DefaultXYDataset;
 import org.jfree.ui.RectangleEdge;
 
-import uk.ac.imperial.presage2.core.db.persistent.PersistentAgent;
 import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
-import uk.ac.imperial.presage2.core.db.persistent.TransientAgentState;
 
 public class DistributionChart implements Chart {
 
 	final PersistentSimulation sim;
+	final ParticleValues values;
 	final int windowSize;
 	
 	final DefaultXYDataset data;
@@ -27,9 +26,10 @@ public class DistributionChart implements Chart {
 	final ChartPanel panel;
 	final String shortName;
 
-	DistributionChart(PersistentSimulation sim, int windowSize, String shortName, double lb, double ub) {
+	DistributionChart(PersistentSimulation sim, ParticleValues values, int windowSize, String shortName, double lb, double ub) {
 		super();
 		this.sim = sim;
+		this.values = values;
 		this.windowSize = windowSize;
 		this.shortName = shortName;
 		
@@ -69,32 +69,23 @@ public class DistributionChart implements Chart {
 
 		List<Pair<Integer, Double>> c = new ArrayList<Pair<Integer, Double>>();
 		List<Pair<Integer, Double>> nc = new ArrayList<Pair<Integer, Double>>();
-		for (PersistentAgent a : sim.getAgents()) {
+		for (int a = 0; a < values.size(); a++) {
 			int compliantRounds = 0;
 			SummaryStatistics utility = new SummaryStatistics();
-			boolean compliant = a.getName().startsWith("c");
+			boolean compliant = values.getName(a).startsWith("c");
 			
 			for (int i = 0; i < length; i++) {
 				int t = start + i + 1;
-				TransientAgentState s = a.getState(t);
+				double u = values.get(a, t, "U");
 				
-				if (s != null && s.getProperty("U") != null) {
-					try {
-						double u = Double.parseDouble(s.getProperty("U"));
-						utility.addValue(u);
-					} catch (NumberFormatException e) {
-						continue;
-					}
+				if (!Double.isNaN(u)) {
+					utility.addValue(u);
 					
-					try {
-						double g = Double.parseDouble(s.getProperty("g"));
-						double p = Double.parseDouble(s.getProperty("p"));
-						
-						if (Math.abs(g - p) <= 1E-4)
-							compliantRounds++;
-					} catch (NumberFormatException e) {
-						continue;
-					}
+					double g = values.get(a, t, "g");
+					double p = values.get(a, t, "p");
+					
+					if (Math.abs(g - p) <= 1E-4)
+						compliantRounds++;
 				}
 			}
 			
@@ -5,21 +5,21 @@ import java.util.ArrayList;
 
 import edu.uci.ics.jung.algorithms.layout.FRLayout;
 import edu.uci.ics.jung.graph.UndirectedSparseGraph;
-import uk.ac.imperial.presage2.core.db.persistent.PersistentAgent;
 import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
-import uk.ac.imperial.presage2.core.db.persistent.TransientAgentState;
 
 public class NetworkGraph extends Container {
     
     static final long serialVersionUID = 420007L;
 
 	final PersistentSimulation sim;
+	final ParticleValues values;
 	
     // Graph<V, E> where V is the type of the vertices and E is the type of the edges
 	private UndirectedSparseGraph<String, String> graph;
 		  	
-	NetworkGraph(PersistentSimulation sim) {
+	NetworkGraph(PersistentSimulation sim, ParticleValues values) {
 		this.sim = sim;		
+		this.values = values;
 		graph = new UndirectedSparseGraph<String, String>();
 	}
 	
@@ -44,43 +44,42 @@ public class NetworkGraph extends Container {
 		// double xScale = layout.getSize().getWidth();
 		// double yScale = layout.getSize().getHeight();
 
-		for (PersistentAgent a : sim.getAgents()) {
-			TransientAgentState as = a.getState(t);
+		for (int a = 0; a < values.size(); a++) {
+			double aNet = values.get(a, t, "network");
 			
-			if (as != null && as.getProperty("network") != null) {
-				String aNet = as.getProperty("network");
-				if (!graph.containsVertex(a.getName())) {
-					graph.addVertex(a.getName());
+			if (!Double.isNaN(aNet)) {
+				String aName = values.getName(a);
+				if (!graph.containsVertex(aName)) {
+					graph.addVertex(aName);
 					// IF PHYSICAL LOCATIONS
 					/* double x = (Double.parseDouble(as.getProperty("x")) + Random.randomDouble())/relation;
 					x = (x > relation) ? relation * xScale : x * xScale;
 					double y = (Double.parseDouble(as.getProperty("y")) + Random.randomDouble())/relation;
 					y = (y > relation) ? relation * yScale : y * yScale;
-					layout.setLocation(a.getName(), x, y);
-					layout.lock(a.getName(), true); */
+					layout.setLocation(aName, x, y);
+					layout.lock(aName, true); */
 				}
 
-				if (!aNet.equals("-1")) {
-					for (PersistentAgent b : sim.getAgents()) {
-						if (!a.equals(b)) {
-							TransientAgentState bs = b.getState(t);
+				if (aNet != -1) {
+					for (int b = 0; b < values.size(); b++) {
+						if (a != b) {
+							String bName = values.getName(b);
 							
-							if (bs != null && bs.getProperty("network") != null
-									&& bs.getProperty("network").equals(aNet)) {
-								if (!graph.containsVertex(b.getName())) {
-									graph.addVertex(b.getName());
+							if (values.get(b, t, "network") == aNet) {
+								if (!graph.containsVertex(bName)) {
+									graph.addVertex(bName);
 									// IF PHYSICAL LOCATIONS
 									/* double x = (Double.parseDouble(bs.getProperty("x")) + Random.randomDouble())/relation;
 									x = (x > relation) ? relation * xScale : x * xScale;
 									double y = (Double.parseDouble(bs.getProperty("y")) + Random.randomDouble())/relation;
 									y = (y > relation) ? relation * yScale : y * yScale;
-									layout.setLocation(b.getName(), x, y);
-									layout.lock(b.getName(), true); */
+									layout.setLocation(bName, x, y);
+									layout.lock(bName, true); */
 								}
 								
-								String edge = a.getName() + "-N" + aNet + "-" + b.getName();
+								String edge = aName + "-N" + (int) aNet + "-" + bName;
 								if (!graph.containsEdge(edge))
-									graph.addEdge(edge, a.getName(), b.getName());
+									graph.addEdge(edge, aName, bName);
 							}
 						}
 					}
@@ -0,0 +1,118 @@
+package spinworld.gui;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.db.persistent.PersistentAgent;
+import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
+import uk.ac.imperial.presage2.core.db.persistent.TransientAgentState;
+
+import spinworld.db.ParticleColumn;
+import spinworld.db.ParticleColumnReader;
+import spinworld.db.ParticleColumnWriter;
+
+/*
+ * Per-round particle values for the charts, by transient state property. Read from the
+ * simulation's column file when there is one, otherwise from the agents' states.
+ */
+abstract class ParticleValues {
+
+	private static final Logger logger = Logger.getLogger(ParticleValues.class);
+
+	abstract int size();
+
+	abstract String getName(int particle);
+
+	// Value of the property for the particle in round t, NaN if it has none
+	abstract double get(int particle, int t, String property);
+
+	static ParticleValues of(PersistentSimulation sim, Properties jdbcInfo) {
+		Path file = ParticleColumnWriter.getFile(jdbcInfo, sim.getID());
+		if (file != null && file.toFile().exists()) {
+			try {
+				ParticleColumnReader columns = ParticleColumnReader.open(file);
+				// Columns stay mapped once the file is closed
+				columns.close();
+
+				List<String> agents = new ArrayList<String>();
+				for (PersistentAgent a : sim.getAgents()) {
+					agents.add(a.getName());
+				}
+				if (columns.isOf(sim.getID(), agents))
+					return new Columns(columns);
+				logger.warn(file + " is not of sim " + sim.getID() + " in this database, using agent states");
+			} catch (IOException e) {
+				logger.warn("Could not read " + file + ", using agent states", e);
+			}
+		}
+		return new States(sim);
+	}
+
+	static class Columns extends ParticleValues {
+
+		final ParticleColumnReader columns;
+
+		Columns(ParticleColumnReader columns) {
+			this.columns = columns;
+		}
+
+		@Override
+		int size() {
+			return columns.getSize();
+		}
+
+		@Override
+		String getName(int particle) {
+			return columns.getName(particle);
+		}
+
+		@Override
+		double get(int particle, int t, String property) {
+			if ("network".equals(property))
+				return columns.has(particle, t) ? columns.getNetwork(particle, t) : Double.NaN;
+
+			ParticleColumn column = ParticleColumn.forProperty(property);
+			return column != null ? columns.get(column, particle, t) : Double.NaN;
+		}
+
+	}
+
+	static class States extends ParticleValues {
+
+		final List<PersistentAgent> agents;
+
+		States(PersistentSimulation sim) {
+			this.agents = new ArrayList<PersistentAgent>(sim.getAgents());
+		}
+
+		@Override
+		int size() {
+			return agents.size();
+		}
+
+		@Override
+		String getName(int particle) {
+			return agents.get(particle).getName();
+		}
+
+		@Override
+		double get(int particle, int t, String property) {
+			TransientAgentState s = agents.get(particle).getState(t);
+			if (s == null || s.getProperty(property) == null)
+				return Double.NaN;
+
+			try {
+				return Double.parseDouble(s.getProperty(property));
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+
+	}
+
+}
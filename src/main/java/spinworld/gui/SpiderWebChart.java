@@ -11,12 +11,14 @@ import org.jfree.chart.title.LegendTitle;
 import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.ui.RectangleEdge;
 
-import uk.ac.imperial.presage2.core.db.persistent.PersistentEnvironment;
 import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
 
+import spinworld.db.NetworkRoundStats;
+
 public class SpiderWebChart implements Chart {
 
 	final PersistentSimulation sim;
+	final NetworkRoundStats.Rows stats;
 	final int windowSize;
 
 	final DefaultCategoryDataset data;
@@ -25,10 +27,11 @@ public class SpiderWebChart implements Chart {
 	final RadarPlot plot;
 	final String shortName;
 
-	SpiderWebChart(PersistentSimulation sim, int windowSize, String title, 
-			String shortName, double utiMin, double utiMax) {
+	SpiderWebChart(PersistentSimulation sim, NetworkRoundStats.Rows stats, int windowSize, 
+			String title, String shortName, double utiMin, double utiMax) {
 		super();
 		this.sim = sim;
+		this.stats = stats;
 		this.windowSize = windowSize;
 		this.shortName = shortName;
 		
@@ -69,26 +72,18 @@ public class SpiderWebChart implements Chart {
 	
 	@Override
 	public void redraw(int t) {				
-		PersistentEnvironment pEnv = sim.getEnvironment();
 		Set<String> netsToRemove = new HashSet<String>();
 		
-		for (String prop : pEnv.getProperties(t).keySet()) {
-			String net = prop.substring(0, prop.indexOf("-"));
-			Double val = Double.parseDouble(pEnv.getProperty(prop, t));
+		for (int i = stats.first(t); i < stats.size() && stats.getRound(i) == t; i++) {
+			String net = "n" + stats.getNetwork(i);
 			
-			if (sim.getEnvironment().getProperty(prop, t + 1) != null) {
-				if (prop.contains("longevity")) {
-					double perc = (val/(sim.getFinishTime()/2)) * 100;
-					data.addValue(perc, net, "Longevity (%)");
-				} else if (prop.contains("utility-avg")) {
-					data.addValue(val, net, "Utility Avg.");
-				} else if (prop.contains("utility-std")) {
-					data.addValue(val, net, "Utility Std.");
-				} else if (prop.contains("utility-sum")) {
-					data.addValue(val, net, "Utility Cumulative Sum");
-				} else if (prop.contains("monitoringLevel")) {
-					data.addValue(val, net, "Monitoring Level");
-				}
+			if (stats.indexOf(stats.getNetwork(i), t + 1) >= 0) {
+				double perc = (stats.getLongevity(i)/(double)(sim.getFinishTime()/2)) * 100;
+				data.addValue(perc, net, "Longevity (%)");
+				data.addValue(stats.getUtilityAvg(i), net, "Utility Avg.");
+				data.addValue(stats.getUtilityStd(i), net, "Utility Std.");
+				data.addValue(stats.getUtilitySum(i), net, "Utility Cumulative Sum");
+				data.addValue(stats.getMonitoringLevel(i), net, "Monitoring Level");
 			} else {
 				netsToRemove.add(net);
 			}
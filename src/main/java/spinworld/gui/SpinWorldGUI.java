@@ -8,12 +8,14 @@ import java.awt.GridLayout;
 import java.awt.Panel;
 import java.io.File;
 import java.io.IOException;
+import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import javax.swing.JFrame;
 
@@ -37,13 +39,12 @@ import org.jfree.ui.RectangleEdge;
 import uk.ac.imperial.presage2.core.db.DatabaseModule;
 import uk.ac.imperial.presage2.core.db.DatabaseService;
 import uk.ac.imperial.presage2.core.db.StorageService;
-import uk.ac.imperial.presage2.core.db.persistent.PersistentAgent;
 import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
-import uk.ac.imperial.presage2.core.db.persistent.TransientAgentState;
 
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.name.Named;
 
 import edu.uci.ics.jung.algorithms.layout.FRLayout;
 import edu.uci.ics.jung.visualization.VisualizationViewer;
@@ -51,12 +52,17 @@ import edu.uci.ics.jung.visualization.control.DefaultModalGraphMouse;
 import edu.uci.ics.jung.visualization.decorators.ToStringLabeller;
 import edu.uci.ics.jung.visualization.renderers.Renderer.VertexLabel.Position;
 
+import spinworld.db.NetworkRoundStats;
+import spinworld.db.SpinWorldStorage;
+
 public class SpinWorldGUI {
 	
 	private final Logger logger = Logger.getLogger(this.getClass());
 
 	final DatabaseService db;
 	final StorageService sto;
+	Connection conn = null;
+	Properties jdbcInfo = null;
 	
 	PersistentSimulation sim;
 	int t = 5;
@@ -109,6 +115,17 @@ public class SpinWorldGUI {
 		this.db = db;
 		this.sto = sto;
 	}
+
+	@Inject(optional = true)
+	public void setConnection(Connection conn) {
+		this.conn = conn;
+	}
+
+	// Which database the simulations are in, to find their column files
+	@Inject(optional = true)
+	public void setJdbcInfo(@Named("sql.info") Properties jdbcInfo) {
+		this.jdbcInfo = jdbcInfo;
+	}
 	
 	private void init(String[] args) throws Exception {
 		try {
@@ -200,13 +217,15 @@ public class SpinWorldGUI {
 					System.exit(60);
 			}
 			
-			TimeSeriesChart riskTimeChart = new TimeSeriesChart(sim, windowSize, 
+			ParticleValues values = ParticleValues.of(sim, jdbcInfo);
+			
+			TimeSeriesChart riskTimeChart = new TimeSeriesChart(sim, values, windowSize, 
 					"Moving Avg. Perceived Risk", "Risk", "risk", "RiskTime", 0.0, 1.0);
-			TimeSeriesChart catchTimeChart = new TimeSeriesChart(sim, windowSize, 
+			TimeSeriesChart catchTimeChart = new TimeSeriesChart(sim, values, windowSize, 
 					"Moving Avg. Perceived Catch Rate", "Catch Rate", "catchRate", "CatchTime", 0.0, 1.0);
-			TimeSeriesChart pCheatTimeChart = new TimeSeriesChart(sim, windowSize, 
+			TimeSeriesChart pCheatTimeChart = new TimeSeriesChart(sim, values, windowSize, 
 					"Moving Avg. Propensity to Cheat", "PCheat", "pCheat", "PchTime", 0.0, 1.0);
-			TimeSeriesChart satTimeChart = new TimeSeriesChart(sim, windowSize, 
+			TimeSeriesChart satTimeChart = new TimeSeriesChart(sim, values, windowSize, 
 					"Moving Avg. Satisfaction", "Satisfaction", "o", "SatTime", 0.0, 1.0);
 				
 			List<Chart> timeCharts = new ArrayList<Chart>();
@@ -215,14 +234,14 @@ public class SpinWorldGUI {
 			timeCharts.add(pCheatTimeChart);
 			timeCharts.add(riskTimeChart);
 			
-			BarChart allocChart = new BarChart(sim, windowSize, "Allocated Resource Bar Plot", "Allocation", "r", "AllBar", 0.0, 1.0);
-			BarChart pCheatChart = new BarChart(sim, windowSize, "Propensity to Cheat Bar Plot", "PCheat", "pCheat", "PchBar", 0.0, 1.0);
+			BarChart allocChart = new BarChart(sim, values, windowSize, "Allocated Resource Bar Plot", "Allocation", "r", "AllBar", 0.0, 1.0);
+			BarChart pCheatChart = new BarChart(sim, values, windowSize, "Propensity to Cheat Bar Plot", "PCheat", "pCheat", "PchBar", 0.0, 1.0);
 			
 			double utiMax = 
 					((Double.parseDouble(sim.getParameters().get("a")) + Double.parseDouble(sim.getParameters().get("b"))) >= Double.parseDouble(sim.getParameters().get("c")))
 						? Double.parseDouble(sim.getParameters().get("a")) + Double.parseDouble(sim.getParameters().get("b")) : Double.parseDouble(sim.getParameters().get("c"));
-			BarChart utilityChart = new BarChart(sim, windowSize, "Utility Bar Plot", "Utility", "U", "UtiBar", -utiMax, utiMax);
-			DistributionChart utDistrChart = new DistributionChart(sim, windowSize, "UtiDistr", -utiMax, utiMax);
+			BarChart utilityChart = new BarChart(sim, values, windowSize, "Utility Bar Plot", "Utility", "U", "UtiBar", -utiMax, utiMax);
+			DistributionChart utDistrChart = new DistributionChart(sim, values, windowSize, "UtiDistr", -utiMax, utiMax);
 
 			List<Chart> otherCharts = new ArrayList<Chart>();
 			otherCharts.add(allocChart);
@@ -230,7 +249,7 @@ public class SpinWorldGUI {
 			otherCharts.add(utilityChart);
 			otherCharts.add(utDistrChart);
 			
-			SpiderWebChart spiderChart = new SpiderWebChart(sim, windowSize, 
+			SpiderWebChart spiderChart = new SpiderWebChart(sim, getNetworkStats(simId), windowSize, 
 					"Radar Chart of Networks", "SpiPlot", -utiMax, utiMax);
 	
 			final Frame fTime = new Frame("Time Series Plots");
@@ -243,7 +262,7 @@ public class SpinWorldGUI {
 			final Panel pSpider = new Panel(new GridLayout(1, 1));
 						
 			final JFrame jf = new JFrame("Social Network Visualiser");
-	        NetworkGraph ng = new NetworkGraph(sim);
+	        NetworkGraph ng = new NetworkGraph(sim, values);
 	        							
 	        FRLayout<String, String> layout = new FRLayout<String, String>(ng.getGraph());
 	        layout.setAttractionMultiplier(0.25);
@@ -509,6 +528,8 @@ public class SpinWorldGUI {
 				sim = sto.getSimulationById(simId);
 
 				String method = sim.getName();
+				NetworkRoundStats.Rows networkStats = getNetworkStats(simId);
+				ParticleValues values = ParticleValues.of(sim, jdbcInfo);
 				
 				Map<String, Double> uSums = new HashMap<String, Double>();
 				for (String k : keys) {
@@ -525,9 +546,8 @@ public class SpinWorldGUI {
 				
 				int totalNumNetworks = 0;
 				
-				String bestNet = "";
+				int best = -1;
 				double bestLongevity = 0.0;
-				int bestTime = 0;
 				
 				double[][] satMean = new double[2][length];
 				double[][] pchMean = new double[2][length];
@@ -554,68 +574,53 @@ public class SpinWorldGUI {
 					catchMean[1][t-1] = t;
 					SummaryStatistics catchR = new SummaryStatistics();
 					
-					for (String prop : sim.getEnvironment().getProperties(t).keySet()) {
-						double val = Double.parseDouble(sim.getEnvironment().getProperty(prop, t));
-						
-						if (t == length || sim.getEnvironment().getProperty(prop, t + 1) == null) {
+					for (int i = networkStats.first(t); i < networkStats.size() && networkStats.getRound(i) == t; i++) {
+						// Last round of the network
+						if (t == length || networkStats.indexOf(networkStats.getNetwork(i), t + 1) < 0) {
 							totalNumNetworks++;
 							
-							if (prop.contains("longevity")) {
-								networkLongevity.addValue(val);
-								
-								if (val > bestLongevity) {
-									bestLongevity = val;
-									bestNet = prop.substring(0, prop.indexOf("-"));
-									bestTime = t;
-								}
+							double longevity = networkStats.getLongevity(i);
+							networkLongevity.addValue(longevity);
+							
+							if (longevity > bestLongevity) {
+								bestLongevity = longevity;
+								best = i;
 							}
-							else if (prop.contains("utility-avg"))
-								networkAvgUt.addValue(val);
-							else if (prop.contains("utility-std"))
-								networkStdUt.addValue(val);
-							else if (prop.contains("utility-sum"))
-								networkSumUt.addValue(val);
-							else if (prop.contains("monitoringLevel"))
-								networkMonitoring.addValue(val);	
+							
+							networkAvgUt.addValue(networkStats.getUtilityAvg(i));
+							networkStdUt.addValue(networkStats.getUtilityStd(i));
+							networkSumUt.addValue(networkStats.getUtilitySum(i));
+							networkMonitoring.addValue(networkStats.getMonitoringLevel(i));
 						}
 					}
 					
-					for (PersistentAgent a : sim.getAgents()) {
-						final String name = a.getName();
-						boolean compliant = name.startsWith("c");
-						TransientAgentState s = a.getState(t);
+					for (int a = 0; a < values.size(); a++) {
+						boolean compliant = values.getName(a).startsWith("c");
 						
-						if (s != null) {			
-							if (s.getProperty("U") != null) {
-								double u = Double.parseDouble(s.getProperty("U"));
-	
-								if (compliant)
-									uSums.put("c", uSums.get("c") + u);
-								else
-									uSums.put("nc", uSums.get("nc") + u);
-							}
-							
-							if (s.getProperty("o") != null) {
-								double o = Double.parseDouble(s.getProperty("o"));
-								sat.addValue(o);
-							}
-							
-							if (s.getProperty("pCheat") != null) {
-								double pc = Double.parseDouble(s.getProperty("pCheat"));
-								pch.addValue(pc);
-							}
-							
-							if (s.getProperty("risk") != null) {
-								double r = Double.parseDouble(s.getProperty("risk"));
-								risk.addValue(r);
-							}
-							
-							if (s.getProperty("catchRate") != null) {
-								double cr = Double.parseDouble(s.getProperty("catchRate"));
-								catchR.addValue(cr);
-							}
+						double u = values.get(a, t, "U");
+						if (!Double.isNaN(u)) {
+							if (compliant)
+								uSums.put("c", uSums.get("c") + u);
+							else
+								uSums.put("nc", uSums.get("nc") + u);
 						}
 						
+						double o = values.get(a, t, "o");
+						if (!Double.isNaN(o))
+							sat.addValue(o);
+						
+						double pc = values.get(a, t, "pCheat");
+						if (!Double.isNaN(pc))
+							pch.addValue(pc);
+						
+						double r = values.get(a, t, "risk");
+						if (!Double.isNaN(r))
+							risk.addValue(r);
+						
+						double cr = values.get(a, t, "catchRate");
+						if (!Double.isNaN(cr))
+							catchR.addValue(cr);
+						
 						satMean[0][t-1] = sat.getMean();
 						pchMean[0][t-1] = pch.getMean();
 						riskMean[0][t-1] = risk.getMean();
@@ -642,21 +647,15 @@ public class SpinWorldGUI {
 				spiderWebData.addValue(networkAvgUt.getMean(), method, "Ut. Avg.");
 				spiderWebData.addValue(networkStdUt.getMean(), method, "Ut. Std.");
 				spiderWebData.addValue(networkMonitoring.getMean(), method, "Monitoring Frequency");
-				spiderWebData.addValue((double)(totalNumNetworks)/5.0, method, "Total No. of Networks Formed");
+				spiderWebData.addValue((double)totalNumNetworks, method, "Total No. of Networks Formed");
 				
 				bestWebData.addValue((bestLongevity/length) * 100, method, "Longevity (%)");
-				bestWebData.addValue(Double.parseDouble(sim.getEnvironment()
-						.getProperty(bestNet + "-utility-sum", bestTime)), 
-						method, "Ut. Sum");
-				bestWebData.addValue(Double.parseDouble(sim.getEnvironment()
-						.getProperty(bestNet + "-utility-avg", bestTime)), 
-						method, "Ut. Avg");
-				bestWebData.addValue(Double.parseDouble(sim.getEnvironment()
-						.getProperty(bestNet + "-utility-std", bestTime)), 
-						method, "Ut. Std");
-				bestWebData.addValue(Double.parseDouble(sim.getEnvironment()
-						.getProperty(bestNet + "-monitoringLevel", bestTime)), 
-						method, "Monitoring Frequency");
+				if (best >= 0) {
+					bestWebData.addValue(networkStats.getUtilitySum(best), method, "Ut. Sum");
+					bestWebData.addValue(networkStats.getUtilityAvg(best), method, "Ut. Avg");
+					bestWebData.addValue(networkStats.getUtilityStd(best), method, "Ut. Std");
+					bestWebData.addValue(networkStats.getMonitoringLevel(best), method, "Monitoring Frequency");
+				}
 			}	
 			
 			if (exportMode) {
@@ -687,6 +686,18 @@ public class SpinWorldGUI {
 		return result;
 	}
 	
+	// Network scores as stored by the rules, for the radar charts. Read through a
+	// connection of the GUI's own when another storage is bound
+	private NetworkRoundStats.Rows getNetworkStats(long simId) {
+		if (sto instanceof SpinWorldStorage)
+			return ((SpinWorldStorage) sto).getNetworkRoundStats(simId);
+		if (conn != null)
+			return SpinWorldStorage.getNetworkRoundStats(conn, simId);
+
+		logger.warn("No sql connection to read network scores of sim " + simId + " from");
+		return new NetworkRoundStats.Rows();
+	}
+	
 	private void finish() {
 		db.stop();
 	}
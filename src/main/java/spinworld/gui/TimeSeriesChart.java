@@ -11,13 +11,12 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.xy.DefaultXYDataset;
 import org.jfree.ui.RectangleEdge;
 
-import uk.ac.imperial.presage2.core.db.persistent.PersistentAgent;
 import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
-import uk.ac.imperial.presage2.core.db.persistent.TransientAgentState;
 
 public class TimeSeriesChart implements Chart {
 
 	final PersistentSimulation sim;
+	final ParticleValues values;
 	final int windowSize;
 
 	final DefaultXYDataset data;
@@ -26,10 +25,11 @@ public class TimeSeriesChart implements Chart {
 	final String property;
 	final String shortName;
 
-	TimeSeriesChart(PersistentSimulation sim, int windowSize, String title, 
+	TimeSeriesChart(PersistentSimulation sim, ParticleValues values, int windowSize, String title, 
 			String yAxis, String property, String shortName, double lb, double ub) {
 		super();
 		this.sim = sim;
+		this.values = values;
 		this.windowSize = windowSize;
 		this.property = property;
 		this.shortName = shortName;
@@ -81,13 +81,11 @@ public class TimeSeriesChart implements Chart {
 			SummaryStatistics statC = new SummaryStatistics();
 			SummaryStatistics statNC = new SummaryStatistics();
 			
-			for (PersistentAgent a : sim.getAgents()) {
-				boolean compliant = a.getName().startsWith("c");
-				TransientAgentState s = a.getState(t);
+			for (int a = 0; a < values.size(); a++) {
+				boolean compliant = values.getName(a).startsWith("c");
+				double prop = values.get(a, t, property);
 				
-				if (s != null && s.getProperty(property) != null) {
-					double prop = Double.parseDouble(s.getProperty(property));
-					
+				if (!Double.isNaN(prop)) {
 					if (compliant)
 						statC.addValue(prop);
 					else
@@ -8,7 +8,6 @@ import uk.ac.imperial.presage2.core.environment.ParticipantSharedState;
 import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
 import uk.ac.imperial.presage2.core.messaging.Input;
 import uk.ac.imperial.presage2.core.simulator.SimTime;
-import uk.ac.imperial.presage2.core.util.random.Random;
 import uk.ac.imperial.presage2.util.location.Location;
 import uk.ac.imperial.presage2.util.location.Move;
 import uk.ac.imperial.presage2.util.location.ParticipantLocationService;
@@ -32,16 +31,21 @@ public class MobileAgent extends AbstractParticipant {
 	MobilityService mobilityService;
 	SpinWorldService resourcesGame;
 	
+	// Per-agent stream, so draws do not depend on how agents are scheduled across threads
+	protected java.util.Random rnd;
+	
 	// Injection is the process of setting dependencies into an object
 	@Inject
 	@Named("params.size")
 	int size;
 
-	public MobileAgent(UUID id, String name, Location myLocation, int velocity, double radius) {
+	public MobileAgent(UUID id, String name, Location myLocation, int velocity, double radius,
+			long rndSeed) {
 		super(id, name);
 		this.myLocation = myLocation;
 		this.velocity = velocity;
 		this.radius = radius;
+		this.rnd = new java.util.Random(rndSeed);
 	}
 	
 	@Override
@@ -79,7 +83,7 @@ public class MobileAgent extends AbstractParticipant {
 		logger.info("My location is: " + this.myLocation + " and my velocity is " + this.velocity);
 	 	
 		if (velocity != 0 && resourcesGame.getRound() == RoundType.DEMAND) {
-			Move m = new Move(velocity*(Random.randomInt(3) - 1), velocity*(Random.randomInt(3) - 1));
+			Move m = new Move(velocity*(rnd.nextInt(3) - 1), velocity*(rnd.nextInt(3) - 1));
 			submitMove(m);
 		}
 		
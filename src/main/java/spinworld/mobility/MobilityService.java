@@ -1,6 +1,5 @@
 package spinworld.mobility;
 
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -8,7 +7,6 @@ import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.apache.log4j.Logger;
-import org.drools.runtime.ObjectFilter;
 import org.drools.runtime.StatefulKnowledgeSession;
 
 import com.google.inject.Inject;
@@ -16,6 +14,7 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
 import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
 import uk.ac.imperial.presage2.core.environment.EnvironmentRegistrationRequest;
 import uk.ac.imperial.presage2.core.environment.EnvironmentService;
 import uk.ac.imperial.presage2.core.environment.EnvironmentServiceProvider;
@@ -33,10 +32,13 @@ public class MobilityService extends EnvironmentService {
 
 	final private Logger logger = Logger.getLogger(this.getClass());
 	final StatefulKnowledgeSession session;
+	final ParticleRegistry particles;
 
-	Map<UUID, Particle> particles = new HashMap<UUID, Particle>();
 	Map<UUID, Set<Particle>> collisions = new HashMap<UUID, Set<Particle>>();
 	int noCollisions = 0;
+	
+	// Spatial index of particle positions, built lazily once the dimensions are injected
+	volatile SpatialGrid<UUID> grid = null;
 
 	final protected EnvironmentServiceProvider serviceProvider;
 	LocationService locationService = null;
@@ -50,14 +52,19 @@ public class MobilityService extends EnvironmentService {
 	@Inject
 	@Named("params.vConst")
 	private int vConst;
+	
+	@Inject
+	@Named("params.radius")
+	private int radius;
 		
 	@Inject
 	protected MobilityService(EnvironmentSharedStateAccess sharedState,
 			EnvironmentServiceProvider serviceProvider,
-			StatefulKnowledgeSession session, EventBus eb) {
+			StatefulKnowledgeSession session, ParticleRegistry particles, EventBus eb) {
 		super(sharedState);
 		this.serviceProvider = serviceProvider;
 		this.session = session;
+		this.particles = particles;
 		eb.subscribe(this);
 	}
 	
@@ -74,28 +81,31 @@ public class MobilityService extends EnvironmentService {
 		return locationService;
 	}
 	
+	protected SpatialGrid<UUID> getGrid() {
+		if (grid == null) {
+			synchronized (this) {
+				if (grid == null)
+					grid = new SpatialGrid<UUID>(size, radius);
+			}
+		}
+		
+		// Particles are indexed at their starting location until they first move
+		if (grid.size() < particles.size()) {
+			for (Particle p : particles.getParticles()) {
+				if (!grid.contains(p.getId()) && p.getLoc() != null)
+					grid.put(p.getId(), p.getLoc().getX(), p.getLoc().getY());
+			}
+		}
+		
+		return grid;
+	}
+	
 	@Override
 	public void registerParticipant(EnvironmentRegistrationRequest req) {
 
 	}
 	
-	// Query session in order to access players within environment shared state
-	private synchronized Particle getParticle(final UUID id) {
-		if (!particles.containsKey(id)) {
-			Collection<Object> rawParticles = session
-					.getObjects(new ObjectFilter() {
-						@Override
-						public boolean accept(Object object) {
-							return object instanceof Particle;
-						}
-					});
-			
-			for (Object pObj : rawParticles) {
-				Particle p = (Particle) pObj;
-				particles.put(p.getId(), p);
-			}
-		}
-		
+	private Particle getParticle(final UUID id) {
 		return particles.get(id);
 	}
 	
@@ -108,6 +118,7 @@ public class MobilityService extends EnvironmentService {
 		locationService = getLocationService();
 		locationService.setAgentLocation(pId, loc);
 		getParticle(pId).setLoc(loc);
+		getGrid().put(pId, loc.getX(), loc.getY());
 	}
 	
 	public int getVelocity(UUID pId) {
@@ -135,7 +146,7 @@ public class MobilityService extends EnvironmentService {
 			return 0;
 	}
 	
-	public synchronized Set<Particle> getCollisions(final UUID pId) {	
+	public Set<Particle> getCollisions(final UUID pId) {	
 		if (this.collisions.containsKey(pId))
 			return this.collisions.get(pId);
 		else
@@ -149,13 +160,17 @@ public class MobilityService extends EnvironmentService {
 	public void checkForCollisions(final UUID pId, final Location target) {		
 		Set<Particle> collisionCandidates = new CopyOnWriteArraySet<Particle>();
 		boolean collisionHappened = false;
+		Particle p = getParticle(pId);
 		
-		for (UUID otherId : this.particles.keySet()) {			
-			if (!getParticle(pId).equals(getParticle(otherId)) && target.equals(getLocation(otherId))) {
-				collisionCandidates.add(getParticle(otherId));
+		// Only particles in the target's cell or its neighbours can be at the target
+		for (UUID otherId : getGrid().getNeighbours(target.getX(), target.getY())) {
+			Particle other = getParticle(otherId);
+			
+			if (!p.equals(other) && target.equals(getLocation(otherId))) {
+				collisionCandidates.add(other);
 				
-				logger.info("Collision between particles " + getParticle(pId).getName() + 
-						" and " + getParticle(otherId).getName());
+				logger.info("Collision between particles " + p.getName() + 
+						" and " + other.getName());
 				this.noCollisions++;
 				
 				collisionHappened = true;
@@ -0,0 +1,111 @@
+package spinworld.mobility;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Uniform hash grid over the wrapping (torus) environment, keyed by cell coordinates
+public class SpatialGrid<T> {
+
+	final int size;
+	final int cellSize;
+	final int cellsPerSide;
+
+	final Map<Integer, Set<T>> cells = new ConcurrentHashMap<Integer, Set<T>>();
+	final Map<T, Integer> cellOf = new ConcurrentHashMap<T, Integer>();
+
+	public SpatialGrid(int size, int radius) {
+		super();
+		this.size = Math.max(1, size);
+		// A cell spans the diameter of a particle so that contacts are at most one cell away
+		this.cellSize = Math.min(this.size, Math.max(1, 2 * radius));
+		this.cellsPerSide = (this.size + this.cellSize - 1) / this.cellSize;
+	}
+
+	private int wrap(int c) {
+		c %= cellsPerSide;
+		return c < 0 ? c + cellsPerSide : c;
+	}
+
+	private int coordinate(double v) {
+		return wrap((int) Math.floor(v) / cellSize);
+	}
+
+	private int key(int cx, int cy) {
+		return cx * cellsPerSide + cy;
+	}
+
+	int cellFor(double x, double y) {
+		return key(coordinate(x), coordinate(y));
+	}
+
+	public void put(T item, double x, double y) {
+		int cell = cellFor(x, y);
+		Integer previous = cellOf.put(item, cell);
+
+		if (previous != null && previous.intValue() == cell)
+			return;
+
+		if (previous != null) {
+			Set<T> old = cells.get(previous);
+			if (old != null)
+				old.remove(item);
+		}
+
+		Set<T> occupants = cells.get(cell);
+		if (occupants == null) {
+			synchronized (cells) {
+				occupants = cells.get(cell);
+				if (occupants == null) {
+					occupants = Collections
+							.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+					cells.put(cell, occupants);
+				}
+			}
+		}
+		occupants.add(item);
+	}
+
+	public void remove(T item) {
+		Integer cell = cellOf.remove(item);
+		if (cell != null) {
+			Set<T> occupants = cells.get(cell);
+			if (occupants != null)
+				occupants.remove(item);
+		}
+	}
+
+	public boolean contains(T item) {
+		return cellOf.containsKey(item);
+	}
+
+	public int size() {
+		return cellOf.size();
+	}
+
+	public void clear() {
+		cells.clear();
+		cellOf.clear();
+	}
+
+	// Items in the cell containing (x, y) and its eight neighbours, wrapping at the edges
+	public Set<T> getNeighbours(double x, double y) {
+		Set<T> neighbours = new HashSet<T>();
+		int cx = coordinate(x);
+		int cy = coordinate(y);
+		int reach = Math.min(1, cellsPerSide / 2);
+
+		for (int dx = -reach; dx <= reach; dx++) {
+			for (int dy = -reach; dy <= reach; dy++) {
+				Set<T> occupants = cells.get(key(wrap(cx + dx), wrap(cy + dy)));
+				if (occupants != null)
+					neighbours.addAll(occupants);
+			}
+		}
+
+		return neighbours;
+	}
+
+}
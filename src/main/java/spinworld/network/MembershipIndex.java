@@ -0,0 +1,94 @@
+package spinworld.network;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.drools.event.rule.DefaultWorkingMemoryEventListener;
+import org.drools.event.rule.ObjectInsertedEvent;
+import org.drools.event.rule.ObjectRetractedEvent;
+
+// Network, MemberOf and NetworkLedger facts in working memory, kept current from insert and retract events
+public class MembershipIndex extends DefaultWorkingMemoryEventListener {
+
+	final Set<Network> networks = new CopyOnWriteArraySet<Network>();
+	final Map<Network, Set<MemberOf>> netMembers = new ConcurrentHashMap<Network, Set<MemberOf>>();
+	final Map<UUID, MemberOf> memberships = new ConcurrentHashMap<UUID, MemberOf>();
+	final Map<Network, NetworkLedger> ledgers = new ConcurrentHashMap<Network, NetworkLedger>();
+
+	@Override
+	public void objectInserted(ObjectInsertedEvent event) {
+		add(event.getObject());
+	}
+
+	@Override
+	public void objectRetracted(ObjectRetractedEvent event) {
+		remove(event.getOldObject());
+	}
+
+	public void add(Object fact) {
+		if (fact instanceof Network) {
+			networks.add((Network) fact);
+		} else if (fact instanceof MemberOf) {
+			MemberOf m = (MemberOf) fact;
+			membersOf(m.getNetwork()).add(m);
+			memberships.put(m.getParticle().getId(), m);
+		} else if (fact instanceof NetworkLedger) {
+			NetworkLedger l = (NetworkLedger) fact;
+			ledgers.put(l.getNetwork(), l);
+		}
+	}
+
+	void remove(Object fact) {
+		if (fact instanceof Network) {
+			networks.remove(fact);
+			netMembers.remove(fact);
+		} else if (fact instanceof MemberOf) {
+			MemberOf m = (MemberOf) fact;
+			Set<MemberOf> members = netMembers.get(m.getNetwork());
+			if (members != null)
+				members.remove(m);
+			memberships.remove(m.getParticle().getId(), m);
+		} else if (fact instanceof NetworkLedger) {
+			NetworkLedger l = (NetworkLedger) fact;
+			ledgers.remove(l.getNetwork(), l);
+		}
+	}
+
+	private Set<MemberOf> membersOf(Network net) {
+		Set<MemberOf> members = netMembers.get(net);
+		if (members == null) {
+			synchronized (netMembers) {
+				members = netMembers.get(net);
+				if (members == null) {
+					members = Collections.newSetFromMap(new ConcurrentHashMap<MemberOf, Boolean>());
+					netMembers.put(net, members);
+				}
+			}
+		}
+		return members;
+	}
+
+	public Set<Network> getNetworks() {
+		return Collections.unmodifiableSet(networks);
+	}
+
+	public Set<MemberOf> getMembers(Network net) {
+		Set<MemberOf> members = netMembers.get(net);
+		if (members == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(members);
+	}
+
+	public MemberOf getMemberOf(UUID pId) {
+		return memberships.get(pId);
+	}
+
+	public NetworkLedger getLedger(Network net) {
+		return ledgers.get(net);
+	}
+
+}
@@ -0,0 +1,139 @@
+package spinworld.network;
+
+/*
+ * Resources of a network through the phases of a round: provisions pooled, monitoring
+ * paid from the pool, the rest allocated, appropriations served and the surplus dropped.
+ * One fact per network, called from rule consequences without modify, so no rule matches
+ * on its quantities. The figures of the latest round are kept for telemetry.
+ */
+public class NetworkLedger {
+
+	final Network network;
+
+	// Pool provisions go into and allocations are made from
+	double provisionPool = 0;
+	// Pool appropriations are served from, raised along with the provision pool
+	double allocationPool = 0;
+
+	int round = 0;
+	double provided;
+	double monitoringSpent;
+	int monitored;
+	double allocated;
+	double appropriated;
+	double surplus;
+
+	public NetworkLedger(Network network) {
+		super();
+		this.network = network;
+	}
+
+	public Network getNetwork() {
+		return network;
+	}
+
+	// Figures are started over as a new round reaches the ledger, the pools carry on
+	private void at(int t) {
+		if (round == t)
+			return;
+
+		round = t;
+		provided = 0;
+		monitoringSpent = 0;
+		monitored = 0;
+		allocated = 0;
+		appropriated = 0;
+		surplus = 0;
+	}
+
+	public void provide(int t, double quantity) {
+		at(t);
+		provided += quantity;
+		provisionPool += quantity;
+		if (allocationPool < provisionPool)
+			allocationPool = provisionPool;
+	}
+
+	// Pay for monitoring one particle, if the pool holds more than it costs
+	public boolean chargeMonitoring(int t, double cost) {
+		at(t);
+		if (!(provisionPool > cost))
+			return false;
+
+		provisionPool -= cost;
+		allocationPool = provisionPool;
+		monitoringSpent += cost;
+		monitored++;
+		return true;
+	}
+
+	// Empty the provision pool for allocation, returning what is to be allocated
+	public double allocate(int t) {
+		at(t);
+		double quantity = provisionPool;
+		allocated += quantity;
+		provisionPool = 0;
+		return quantity;
+	}
+
+	// Serve an appropriation from the allocation pool, returning what could be taken
+	public double appropriate(int t, double quantity) {
+		at(t);
+		double canTake = Math.min(allocationPool, quantity);
+		appropriated += canTake;
+		allocationPool -= canTake;
+		return canTake;
+	}
+
+	// Drop whatever was not appropriated, returning it
+	public double settleSurplus(int t) {
+		at(t);
+		double quantity = allocationPool;
+		surplus += quantity;
+		allocationPool = 0;
+		return quantity;
+	}
+
+	public double getProvisionPool() {
+		return provisionPool;
+	}
+
+	public double getAllocationPool() {
+		return allocationPool;
+	}
+
+	public int getRound() {
+		return round;
+	}
+
+	public double getProvided() {
+		return provided;
+	}
+
+	public double getMonitoringSpent() {
+		return monitoringSpent;
+	}
+
+	public int getMonitored() {
+		return monitored;
+	}
+
+	public double getAllocated() {
+		return allocated;
+	}
+
+	public double getAppropriated() {
+		return appropriated;
+	}
+
+	public double getSurplus() {
+		return surplus;
+	}
+
+	@Override
+	public String toString() {
+		return "NetworkLedger [network=" + network + ", round=" + round + ", provisionPool="
+				+ provisionPool + ", allocationPool=" + allocationPool + "]";
+	}
+
+}
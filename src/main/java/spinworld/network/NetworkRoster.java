@@ -0,0 +1,75 @@
+package spinworld.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import spinworld.facts.Particle;
+
+// Members of a network as one fact, kept in step with MemberOf by the bookkeeping rules
+public class NetworkRoster {
+
+	// Order members are shuffled from, so a shuffle depends on the draws alone and not on
+	// the order members were added in
+	public static final Comparator<Particle> CANONICAL = new Comparator<Particle>() {
+		@Override
+		public int compare(Particle a, Particle b) {
+			int c = a.getName().compareTo(b.getName());
+			return c != 0 ? c : a.getId().compareTo(b.getId());
+		}
+	};
+
+	final Network network;
+	final Set<Particle> members = new LinkedHashSet<Particle>();
+
+	// Reused for shuffled orders, as rules only need them within a consequence
+	final List<Particle> order = new ArrayList<Particle>();
+
+	public NetworkRoster(Network network) {
+		super();
+		this.network = network;
+	}
+
+	public Network getNetwork() {
+		return network;
+	}
+
+	public Set<Particle> getMembers() {
+		return Collections.unmodifiableSet(members);
+	}
+
+	public int getSize() {
+		return members.size();
+	}
+
+	public boolean contains(Particle p) {
+		return members.contains(p);
+	}
+
+	public void add(Particle p) {
+		members.add(p);
+	}
+
+	public void remove(Particle p) {
+		members.remove(p);
+	}
+
+	// Members in random order. The list is reused by the next call
+	public List<Particle> shuffled(Random rnd) {
+		order.clear();
+		order.addAll(members);
+		Collections.sort(order, CANONICAL);
+		Collections.shuffle(order, rnd);
+		return order;
+	}
+
+	@Override
+	public String toString() {
+		return "NetworkRoster [network=" + network + ", size=" + members.size() + "]";
+	}
+
+}
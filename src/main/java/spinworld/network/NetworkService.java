@@ -1,23 +1,16 @@
 package spinworld.network;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.apache.log4j.Logger;
-import org.drools.runtime.ObjectFilter;
 import org.drools.runtime.StatefulKnowledgeSession;
-import org.drools.runtime.rule.QueryResults;
-import org.drools.runtime.rule.QueryResultsRow;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
 import uk.ac.imperial.presage2.core.Time;
 import uk.ac.imperial.presage2.core.environment.EnvironmentRegistrationRequest;
 import uk.ac.imperial.presage2.core.environment.EnvironmentService;
@@ -31,9 +24,8 @@ public class NetworkService extends EnvironmentService {
 	final private Logger logger = Logger.getLogger(this.getClass());
 	final StatefulKnowledgeSession session;
 
-	Map<UUID, Particle> particles = new HashMap<UUID, Particle>();
-	Map<UUID, MemberOf> members = new HashMap<UUID, MemberOf>();
-	Set<Network> networks = new CopyOnWriteArraySet<Network>();
+	final ParticleRegistry particles;
+	final MembershipIndex index = new MembershipIndex();
 	
 	private int numNetworks = 0;
 	final protected EnvironmentServiceProvider serviceProvider;
@@ -41,10 +33,18 @@ public class NetworkService extends EnvironmentService {
 	@Inject
 	protected NetworkService(EnvironmentSharedStateAccess sharedState,
 			EnvironmentServiceProvider serviceProvider,
-			StatefulKnowledgeSession session, EventBus eb) {
+			StatefulKnowledgeSession session, ParticleRegistry particles, EventBus eb) {
 		super(sharedState);
 		this.serviceProvider = serviceProvider;
 		this.session = session;
+		this.particles = particles;
+		
+		// Index whatever is already in working memory, then follow inserts and retracts
+		for (Object fact : session.getObjects()) {
+			index.add(fact);
+		}
+		session.addEventListener(index);
+		
 		eb.subscribe(this);
 	}
 	
@@ -53,61 +53,19 @@ public class NetworkService extends EnvironmentService {
 
 	}
 	
-	// Query session in order to access players within environment shared state
-	private synchronized Particle getParticle(final UUID id) {
-		if (!particles.containsKey(id)) {
-			Collection<Object> rawParticles = session
-					.getObjects(new ObjectFilter() {
-						@Override
-						public boolean accept(Object object) {
-							return object instanceof Particle;
-						}
-					});
-			
-			for (Object pObj : rawParticles) {
-				Particle p = (Particle) pObj;
-				particles.put(p.getId(), p);
-			}
-		}
-		
+	private Particle getParticle(final UUID id) {
 		return particles.get(id);
 	}
 	
-	// Similarly query session for access to MemberOf structures
-	private synchronized MemberOf getMemberOf(final UUID id) {
-		MemberOf m = members.get(id);
-		
-		if (m == null || session.getFactHandle(m) == null) {
-			members.remove(id);
-			QueryResults results = session.getQueryResults("getMemberOf",
-					new Object[] { getParticle(id) });
-			
-			for (QueryResultsRow row : results) {
-				members.put(id, (MemberOf) row.get("m"));
-				return members.get(id);
-			}
-			
-			return null;
-		}
-		
-		return m;
+	private MemberOf getMemberOf(final UUID id) {
+		return index.getMemberOf(id);
 	}
 	
-	// Similarly query session for access to MemberOf structures
-	private synchronized Set<MemberOf> getMembersOfNet(final Network net) {	
-		Set<MemberOf> netMembers = new CopyOnWriteArraySet<MemberOf>();
-		
-		QueryResults results = session.getQueryResults("networkMembers",
-				new Object[] { net });
-		
-		for (QueryResultsRow row : results) {
-			netMembers.add((MemberOf) row.get("m"));
-		}
-		
-		return Collections.unmodifiableSet(netMembers);
+	private Set<MemberOf> getMembersOfNet(final Network net) {	
+		return index.getMembers(net);
 	}
 	
-	public synchronized Network getNetwork(final UUID pId) {
+	public Network getNetwork(final UUID pId) {
 		MemberOf m = getMemberOf(pId);
 					
 		if (m != null)
@@ -116,25 +74,8 @@ public class NetworkService extends EnvironmentService {
 			return null;
 	}
 
-	public synchronized Set<Network> getNetworks() {
-		networks.clear();
-		
-		// If we allow for dynamic creation of clusters,
-		// we must check which ones exist every time
-		Collection<Object> netSearch = session
-				.getObjects(new ObjectFilter() {
-
-					@Override
-					public boolean accept(Object object) {
-						return object instanceof Network;
-					}
-				});
-			
-		for (Object object : netSearch) {
-			networks.add((Network) object);
-		}
-		
-		return Collections.unmodifiableSet(networks);
+	public Set<Network> getNetworks() {
+		return index.getNetworks();
 	}
 	
 	public int getNumNetworks(){
@@ -147,8 +88,10 @@ public class NetworkService extends EnvironmentService {
 	}
 	
 	public int getNoLinks(final UUID pId, final Network net) {
-		if (!getMembersOfNet(net).isEmpty())
-			return getMembersOfNet(net).size() - 1;
+		int members = getMembersOfNet(net).size();
+		
+		if (members > 0)
+			return members - 1;
 		else
 			return 0;
 	}
@@ -166,8 +109,10 @@ public class NetworkService extends EnvironmentService {
 	
 	// Retract membership of this particle from a network
 	public void retractMembership(final UUID pId) {
-		if (session.getFactHandle(getMemberOf(pId)) != null)
-			session.retract(session.getFactHandle(getMemberOf(pId)));
+		MemberOf m = getMemberOf(pId);
+		
+		if (m != null && session.getFactHandle(m) != null)
+			session.retract(session.getFactHandle(m));
 	}
 
 	public boolean isBanned(final UUID pId, final Network net) {
@@ -178,6 +123,11 @@ public class NetworkService extends EnvironmentService {
 		return net.getWarningCount(getParticle(pId));
 	}
 	
+	// Resources of the network in its latest round, or null if it has no ledger yet
+	public NetworkLedger getLedger(final Network net) {
+		return index.getLedger(net);
+	}
+	
 	public void printNetworks(Time t) {	
 		Set<Network> roundNetworks = getNetworks();
 
@@ -0,0 +1,52 @@
+package spinworld.rules;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.drools.command.CommandFactory;
+import org.drools.runtime.StatefulKnowledgeSession;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import spinworld.RoundType;
+
+// Rounds played by the rule pipeline, see RoundPhases
+@Singleton
+public class DroolsRoundEngine implements RoundEngine {
+
+	final StatefulKnowledgeSession session;
+
+	@Inject
+	public DroolsRoundEngine(StatefulKnowledgeSession session) {
+		super();
+		this.session = session;
+	}
+
+	@Override
+	public void setGlobal(String name, Object value) {
+		session.setGlobal(name, value);
+	}
+
+	@Override
+	public void insert(Object fact) {
+		session.insert(fact);
+	}
+
+	@Override
+	public void insert(Collection<?> facts) {
+		if (facts.isEmpty())
+			return;
+
+		// One command, so the session is entered once for the whole batch
+		session.execute(CommandFactory.newInsertElements(new ArrayList<Object>(facts)));
+	}
+
+	@Override
+	public void play(RoundType round) {
+		RoundPhases.focus(session, round);
+		session.fireAllRules();
+		RoundPhases.tick(session);
+	}
+
+}
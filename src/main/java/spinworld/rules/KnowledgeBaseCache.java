@@ -0,0 +1,324 @@
+package spinworld.rules;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.log4j.Logger;
+import org.drools.KnowledgeBase;
+import org.drools.KnowledgeBaseConfiguration;
+import org.drools.KnowledgeBaseFactory;
+import org.drools.builder.KnowledgeBuilder;
+import org.drools.builder.KnowledgeBuilderFactory;
+import org.drools.builder.ResourceType;
+import org.drools.common.DroolsObjectInputStream;
+import org.drools.common.DroolsObjectOutputStream;
+import org.drools.conf.EventProcessingOption;
+import org.drools.io.ResourceFactory;
+import org.drools.runtime.KnowledgeSessionConfiguration;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.conf.ClockTypeOption;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Module;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.google.inject.util.Modules;
+
+/*
+ * Compiled knowledge bases, keyed by a hash of their DRL sources and the classes they are
+ * compiled against. A knowledge base is shared by sequential simulations in the same JVM
+ * and serialized to a cache directory (system property spinworld.kbcache, ~/.spinworld/kb
+ * by default, "off" to disable) for later runs. Each simulation still gets a fresh session,
+ * which it disposes of when it ends. Knowledge bases run in stream mode, so declared
+ * @expires retract old events as the session's pseudo clock advances.
+ */
+public class KnowledgeBaseCache {
+
+	private static final Logger logger = Logger.getLogger(KnowledgeBaseCache.class);
+
+	static final Map<String, KnowledgeBase> loaded = new ConcurrentHashMap<String, KnowledgeBase>();
+
+	// Compile times of the cached knowledge bases, to report what loading saved
+	static final Map<String, Long> compileTimes = new ConcurrentHashMap<String, Long>();
+
+	// The given rule module (with state translators etc.) using the cached knowledge base
+	public static AbstractModule override(final Module rules, final String... drlFiles) {
+		final KnowledgeBase kbase = get(drlFiles);
+
+		return new AbstractModule() {
+			@Override
+			protected void configure() {
+				install(Modules.override(rules).with(new AbstractModule() {
+					@Override
+					protected void configure() {
+						bind(KnowledgeBase.class).toInstance(kbase);
+					}
+
+					@Provides
+					@Singleton
+					StatefulKnowledgeSession getSession() {
+						return newSession(kbase);
+					}
+				}));
+			}
+		};
+	}
+
+	// Sessions run on a pseudo clock, advanced once per time cycle by RoundPhases.tick
+	public static StatefulKnowledgeSession newSession(KnowledgeBase kbase) {
+		KnowledgeSessionConfiguration conf = KnowledgeBaseFactory.newKnowledgeSessionConfiguration();
+		conf.setOption(ClockTypeOption.get("pseudo"));
+		return kbase.newStatefulKnowledgeSession(conf, null);
+	}
+
+	public static synchronized KnowledgeBase get(String... drlFiles) {
+		long start = System.nanoTime();
+		String key = hash(drlFiles);
+
+		KnowledgeBase kbase = loaded.get(key);
+		if (kbase != null) {
+			report("Reused knowledge base", key, start);
+			return kbase;
+		}
+
+		File file = cacheFile(key);
+		if (file != null && file.exists()) {
+			kbase = read(file, key);
+			if (kbase != null) {
+				loaded.put(key, kbase);
+				report("Loaded knowledge base from " + file, key, start);
+				return kbase;
+			}
+		}
+
+		kbase = compile(drlFiles);
+		long compileTime = (System.nanoTime() - start) / 1000000;
+		compileTimes.put(key, compileTime);
+		loaded.put(key, kbase);
+		logger.info("Compiled knowledge base in " + compileTime + "ms");
+
+		if (file != null)
+			write(file, kbase, compileTime);
+
+		return kbase;
+	}
+
+	private static void report(String what, String key, long start) {
+		long time = (System.nanoTime() - start) / 1000000;
+		Long compileTime = compileTimes.get(key);
+		if (compileTime != null)
+			logger.info(what + " in " + time + "ms, saving " + (compileTime - time) + "ms of compilation");
+		else
+			logger.info(what + " in " + time + "ms");
+	}
+
+	static KnowledgeBase compile(String... drlFiles) {
+		KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder();
+		for (String drl : drlFiles) {
+			kbuilder.add(ResourceFactory.newClassPathResource(drl), ResourceType.DRL);
+		}
+
+		if (kbuilder.hasErrors()) {
+			logger.warn(kbuilder.getErrors());
+			throw new RuntimeException("Unable to compile rules: " + kbuilder.getErrors());
+		}
+
+		// Stream mode, so that events expire on the session clock
+		KnowledgeBaseConfiguration conf = KnowledgeBaseFactory.newKnowledgeBaseConfiguration();
+		conf.setOption(EventProcessingOption.STREAM);
+
+		KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase(conf);
+		kbase.addKnowledgePackages(kbuilder.getKnowledgePackages());
+		return kbase;
+	}
+
+	private static KnowledgeBase read(File file, String key) {
+		try {
+			ObjectInputStream in = new DroolsObjectInputStream(new BufferedInputStream(
+					new FileInputStream(file)), KnowledgeBaseCache.class.getClassLoader());
+			try {
+				compileTimes.put(key, in.readLong());
+				return (KnowledgeBase) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			// Stale or unreadable, so compile afresh and overwrite it
+			logger.warn("Could not load cached knowledge base " + file + ": " + e);
+			return null;
+		}
+	}
+
+	private static void write(File file, KnowledgeBase kbase, long compileTime) {
+		try {
+			file.getParentFile().mkdirs();
+			File tmp = new File(file.getPath() + ".tmp");
+			ObjectOutputStream out = new DroolsObjectOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			try {
+				out.writeLong(compileTime);
+				out.writeObject(kbase);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file))
+				tmp.delete();
+		} catch (IOException e) {
+			logger.warn("Could not cache knowledge base to " + file, e);
+		}
+	}
+
+	private static File cacheFile(String key) {
+		String dir = System.getProperty("spinworld.kbcache",
+				Paths.get(System.getProperty("user.home"), ".spinworld", "kb").toString());
+		if (dir.equalsIgnoreCase("off"))
+			return null;
+
+		// Cached files are deserialized, so only use a directory no one else can write to
+		File cacheDir = new File(dir);
+		cacheDir.mkdirs();
+		if (!isPrivate(cacheDir.toPath())) {
+			logger.warn("Not caching knowledge bases in " + cacheDir + ", which is not owned by "
+					+ System.getProperty("user.name") + " or can be written by others");
+			return null;
+		}
+		return new File(cacheDir, key + ".kb");
+	}
+
+	static boolean isPrivate(Path dir) {
+		try {
+			if (!Files.isDirectory(dir))
+				return false;
+
+			String owner = Files.getOwner(dir).getName();
+			String user = System.getProperty("user.name");
+			// Windows owners are qualified by their domain
+			if (!owner.equals(user) && !owner.endsWith("\\" + user))
+				return false;
+
+			PosixFileAttributeView posix = Files.getFileAttributeView(dir, PosixFileAttributeView.class);
+			return posix == null || !posix.readAttributes().permissions().contains(PosixFilePermission.OTHERS_WRITE);
+		} catch (IOException e) {
+			logger.warn(e);
+			return false;
+		}
+	}
+
+	// Hash of the DRL sources, the Drools version and the classes they are compiled against
+	static String hash(String... drlFiles) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		byte[] buf = new byte[8192];
+		for (String drl : drlFiles) {
+			md.update(drl.getBytes());
+			InputStream in = KnowledgeBaseCache.class.getClassLoader().getResourceAsStream(drl);
+			if (in == null)
+				throw new RuntimeException("No rules file " + drl + " on the classpath");
+			try {
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0)
+						md.update(buf, 0, n);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		md.update(String.valueOf(KnowledgeBase.class.getPackage().getImplementationVersion()).getBytes());
+		CodeSource source = KnowledgeBaseCache.class.getProtectionDomain().getCodeSource();
+		if (source != null) {
+			try {
+				hashClasses(md, Paths.get(source.getLocation().toURI()));
+			} catch (URISyntaxException e) {
+				throw new RuntimeException(e);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : md.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/*
+	 * The spinworld classes the rules use as facts and globals: the bytes of each class file
+	 * of a build directory, whose own modification time does not change when they are
+	 * rebuilt, or the CRC of each class in a jar.
+	 */
+	private static void hashClasses(MessageDigest md, Path location) throws IOException {
+		if (Files.isDirectory(location)) {
+			final Path root = location.resolve("spinworld");
+			final List<Path> classes = new ArrayList<Path>();
+			if (Files.isDirectory(root)) {
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						if (file.toString().endsWith(".class"))
+							classes.add(file);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+			Collections.sort(classes);
+			for (Path file : classes) {
+				md.update(location.relativize(file).toString().getBytes());
+				md.update(Files.readAllBytes(file));
+			}
+		} else if (Files.isRegularFile(location)) {
+			JarFile jar = new JarFile(location.toFile());
+			try {
+				List<String> classes = new ArrayList<String>();
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					JarEntry entry = entries.nextElement();
+					if (entry.getName().startsWith("spinworld/") && entry.getName().endsWith(".class"))
+						classes.add(entry.getName() + ":" + entry.getCrc());
+				}
+				Collections.sort(classes);
+				for (String c : classes)
+					md.update(c.getBytes());
+			} finally {
+				jar.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,657 @@
+package spinworld.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.rule.FactHandle;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import spinworld.GraduationLevel;
+import spinworld.RoundType;
+import spinworld.actions.Appropriate;
+import spinworld.actions.CreateNetwork;
+import spinworld.actions.Demand;
+import spinworld.actions.Generate;
+import spinworld.actions.JoinNetwork;
+import spinworld.actions.LeaveNetwork;
+import spinworld.actions.Provision;
+import spinworld.db.NetworkRoundStats;
+import spinworld.facts.Allocation;
+import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
+import spinworld.facts.Round;
+import spinworld.network.MemberOf;
+import spinworld.network.MembershipIndex;
+import spinworld.network.Network;
+import spinworld.network.NetworkLedger;
+import spinworld.network.NetworkRoster;
+
+/*
+ * Rounds played in plain Java, for runs that need none of the flexibility of the rule
+ * files. Each cycle runs the phases of SpinWorld.drl, Institution.drl and
+ * RandomAllocation.drl in the order their rules fire, over arrays indexed by particle
+ * (see ParticleRegistry) and by network id instead of facts. The session is given no
+ * rules; it holds particles, networks, memberships and network ledgers, which are
+ * followed through a MembershipIndex, and expulsions and deleted networks are retracted
+ * from it.
+ *
+ * Draws come from RoundDraws, so for the same seed the rounds play out as under Drools.
+ * The one order the rules leave open is that of several violations by one particle in
+ * the same round, which are sanctioned here on provision, demand and then appropriation.
+ */
+@Singleton
+public class NativeRoundEngine implements RoundEngine {
+
+	// Rounds of actions kept, as g and q arrive a round ahead (cf. RoundLedgers)
+	static final int SLOTS = 3;
+
+	static final byte GENERATED = 1;
+	static final byte PROVIDED = 2;
+	static final byte DEMANDED = 4;
+	static final byte ALLOCATED = 8;
+	static final byte APPROPRIATED = 16;
+
+	static final Comparator<Network> byId = new Comparator<Network>() {
+		@Override
+		public int compare(Network a, Network b) {
+			return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+		}
+	};
+
+	final StatefulKnowledgeSession session;
+	final ParticleRegistry particles;
+	final MembershipIndex index = new MembershipIndex();
+
+	RuleLogger logger = new RuleLogger(Logger.getLogger("spinworld.RuleEngine"));
+	NetworkRoundStats stats = null;
+	RoundDraws draws = new RoundDraws(0);
+
+	// Facts inserted since the last cycle, and actions waiting for the phase that takes them
+	final List<Object> inserted = new ArrayList<Object>();
+	final List<Provision> provisions = new ArrayList<Provision>();
+	final List<Demand> demands = new ArrayList<Demand>();
+	final List<Appropriate> appropriations = new ArrayList<Appropriate>();
+
+	Round round = null;
+	int demandPlayed = -1;
+	int appropriatePlayed = -1;
+
+	// What each particle did in the rounds in play, by slot and particle index
+	final int[] slotRound = new int[SLOTS];
+	byte[][] flags = new byte[SLOTS][0];
+	double[][] g = new double[SLOTS][0];
+	double[][] q = new double[SLOTS][0];
+	double[][] provision = new double[SLOTS][0];
+	double[][] demand = new double[SLOTS][0];
+	double[][] allocation = new double[SLOTS][0];
+	double[][] order = new double[SLOTS][0];
+	double[][] appropriation = new double[SLOTS][0];
+	// Id + 1 of the network that monitored the particle, 0 if none did
+	int[][] monitoredBy = new int[SLOTS][0];
+
+	// Scratch by particle index, for the round being played
+	double[] provided = new double[0];
+	double[] requested = new double[0];
+	boolean[] requesting = new boolean[0];
+
+	// Network state by network id
+	NetworkLedger[] ledgers = new NetworkLedger[0];
+	boolean[] left = new boolean[0];
+	NetworkRoster[] rosters = new NetworkRoster[0];
+
+	// Sanctions of the round being played
+	int sanctions = 0;
+	int[] sanctioned = new int[8];
+	Network[] sanctionedBy = new Network[8];
+	GraduationLevel[] levels = new GraduationLevel[8];
+	boolean[] appealed = new boolean[8];
+	boolean[] retracted = new boolean[8];
+
+	@Inject
+	public NativeRoundEngine(StatefulKnowledgeSession session, ParticleRegistry particles) {
+		super();
+		this.session = session;
+		this.particles = particles;
+		Arrays.fill(slotRound, Integer.MIN_VALUE);
+
+		// Index whatever is already in working memory, then follow inserts and retracts
+		for (Object fact : session.getObjects()) {
+			index.add(fact);
+		}
+		session.addEventListener(index);
+	}
+
+	@Override
+	public void setGlobal(String name, Object value) {
+		if (name.equals("logger"))
+			this.logger = (RuleLogger) value;
+		else if (name.equals("stats"))
+			this.stats = (NetworkRoundStats) value;
+		else if (name.equals("draws"))
+			this.draws = (RoundDraws) value;
+	}
+
+	@Override
+	public void insert(Object fact) {
+		inserted.add(fact);
+	}
+
+	@Override
+	public void insert(Collection<?> facts) {
+		inserted.addAll(facts);
+	}
+
+	@Override
+	public void play(RoundType type) {
+		grow(particles.size());
+
+		// Bookkeeping and generate, as the auto-focus rules take the facts first
+		List<LeaveNetwork> leaves = new ArrayList<LeaveNetwork>();
+		for (Object fact : inserted) {
+			if (fact instanceof Round) {
+				round = (Round) fact;
+				logger.info(RuleLogger.ROUNDS, round);
+			} else if (fact instanceof Generate) {
+				generate((Generate) fact);
+			} else if (fact instanceof Provision) {
+				provisions.add((Provision) fact);
+			} else if (fact instanceof Demand) {
+				demands.add((Demand) fact);
+			} else if (fact instanceof Appropriate) {
+				appropriations.add((Appropriate) fact);
+			} else if (fact instanceof LeaveNetwork) {
+				leaves.add((LeaveNetwork) fact);
+			} else if (fact instanceof CreateNetwork) {
+				CreateNetwork c = (CreateNetwork) fact;
+				logger.info(RuleLogger.NETWORKS, "Created ", c.getNetwork(), " for particles: ",
+						c.getParticle(), ", ", c.getCollidedParticle());
+			} else if (fact instanceof JoinNetwork) {
+				JoinNetwork j = (JoinNetwork) fact;
+				logger.info(RuleLogger.NETWORKS, "Joined network: ", j.getParticle(), ", ", j.getNetwork());
+			}
+		}
+		inserted.clear();
+
+		List<Network> networks = syncRosters();
+		deleteEmptyNetworks(networks);
+
+		if (round != null && round.getType() == type) {
+			if (type == RoundType.DEMAND && demandPlayed != round.getNumber()) {
+				demandPlayed = round.getNumber();
+				provision(networks, round.getNumber());
+				monitor(networks, round.getNumber());
+				allocate(networks, round.getNumber());
+				// Networks left empty are not updated, so this need not wait for leaving below
+				updateNetworks(networks, round.getNumber());
+			} else if (type == RoundType.APPROPRIATE && appropriatePlayed != round.getNumber()) {
+				appropriatePlayed = round.getNumber();
+				appropriate(networks, round.getNumber());
+				sanction(networks, round.getNumber());
+				networks = syncRosters();
+			}
+		}
+
+		// Main agenda
+		for (LeaveNetwork l : leaves) {
+			left(l.getNetwork());
+			logger.info(RuleLogger.NETWORKS, "Left ", l.getNetwork(), " : ", l.getParticle());
+		}
+		deleteEmptyNetworks(networks);
+	}
+
+	private void generate(Generate a) {
+		Particle p = a.getParticle();
+		int i = indexOf(p);
+		int s = slot(a.getT());
+
+		p.setG(a.getG());
+		p.setQ(a.getQ());
+		g[s][i] = a.getG();
+		q[s][i] = a.getQ();
+		flags[s][i] |= GENERATED;
+
+		logger.info(RuleLogger.ACTIONS, a);
+	}
+
+	// Pools for provisions and the demands of the round
+	private void provision(List<Network> networks, int t) {
+		Arrays.fill(provided, 0);
+		for (Provision a : provisions) {
+			int i = indexOf(a.getParticle());
+			int s = slot(a.getT());
+			provision[s][i] = a.getQuantity();
+			flags[s][i] |= PROVIDED;
+
+			if (a.getT() == t)
+				provided[i] += a.getQuantity();
+		}
+		provisions.clear();
+
+		for (Network n : networks) {
+			NetworkRoster roster = rosters[n.getId()];
+			if (roster.getSize() == 0)
+				continue;
+
+			double sum = 0;
+			for (Particle p : roster.getMembers()) {
+				sum += provided[indexOf(p)];
+			}
+			if (sum > 0) {
+				NetworkLedger ledger = ledgers[n.getId()];
+				ledger.provide(t, sum);
+				logger.info(RuleLogger.POOLS, n, " provided ", sum, ", pool is now ", ledger);
+			}
+		}
+
+		for (Demand a : demands) {
+			if (a.getT() != t)
+				continue;
+
+			int i = indexOf(a.getParticle());
+			int s = slot(t);
+			a.getParticle().setD(a.getQuantity());
+			demand[s][i] = a.getQuantity();
+			flags[s][i] |= DEMANDED;
+			logger.info(RuleLogger.ACTIONS, a);
+		}
+		demands.clear();
+	}
+
+	private void monitor(List<Network> networks, int t) {
+		int s = slot(t);
+		for (Network n : networks) {
+			NetworkRoster roster = rosters[n.getId()];
+			if (n.getMonitoringLevel() <= 0 || roster.getSize() == 0)
+				continue;
+
+			int toMonitor = (int) Math.ceil(roster.getSize() * n.getMonitoringLevel());
+			NetworkLedger ledger = ledgers[n.getId()];
+
+			for (Particle p : roster.shuffled(draws.forNetwork(n, t, RoundDraws.MONITOR))) {
+				if (!(toMonitor-- > 0 && ledger.chargeMonitoring(t, n.getMonitoringCost())))
+					break;
+				monitoredBy[s][indexOf(p)] = n.getId() + 1;
+			}
+
+			logger.info(RuleLogger.POOLS, "Pool is now: ", ledger);
+		}
+	}
+
+	private void allocate(List<Network> networks, int t) {
+		int s = slot(t);
+		for (Network n : networks) {
+			NetworkRoster roster = rosters[n.getId()];
+			if (n.getAllocationMethod() != Allocation.RANDOM || roster.getSize() == 0)
+				continue;
+
+			Random rnd = draws.forNetwork(n, t, RoundDraws.ALLOCATE);
+			double pool = ledgers[n.getId()].allocate(t);
+
+			// As RandomAllocator, taking the same draws
+			for (Particle p : roster.shuffled(rnd)) {
+				int i = indexOf(p);
+				double allocated = Math.min(p.getD(), pool);
+				order[s][i] = rnd.nextDouble();
+				allocation[s][i] = allocated;
+				flags[s][i] |= ALLOCATED;
+				p.setAllocated(allocated);
+				pool -= allocated;
+			}
+		}
+	}
+
+	// Appropriations served from each pool in allocation order, then any surplus dropped
+	private void appropriate(List<Network> networks, int t) {
+		final int s = slot(t);
+		Arrays.fill(requesting, false);
+		for (Appropriate a : appropriations) {
+			if (a.getT() == t) {
+				int i = indexOf(a.getParticle());
+				requested[i] = a.getQuantity();
+				requesting[i] = true;
+			}
+		}
+		appropriations.clear();
+
+		List<Particle> served = new ArrayList<Particle>();
+		for (Network n : networks) {
+			NetworkRoster roster = rosters[n.getId()];
+			if (roster.getSize() == 0)
+				continue;
+
+			served.clear();
+			for (Particle p : roster.getMembers()) {
+				int i = indexOf(p);
+				if (requesting[i] && (flags[s][i] & ALLOCATED) != 0)
+					served.add(p);
+			}
+			Collections.sort(served, new Comparator<Particle>() {
+				@Override
+				public int compare(Particle a, Particle b) {
+					return Double.compare(order[s][indexOf(b)], order[s][indexOf(a)]);
+				}
+			});
+
+			NetworkLedger ledger = ledgers[n.getId()];
+			for (Particle p : served) {
+				int i = indexOf(p);
+				p.setAppropriated(ledger.appropriate(t, requested[i]));
+				appropriation[s][i] = requested[i];
+				flags[s][i] |= APPROPRIATED;
+			}
+		}
+
+		for (Network n : networks) {
+			double surplus = ledgers[n.getId()].settleSurplus(t);
+			if (surplus > 0)
+				logger.info(RuleLogger.POOLS, n, " surplus ", surplus);
+		}
+	}
+
+	private void sanction(List<Network> networks, int t) {
+		int s = slot(t);
+		sanctions = 0;
+
+		// Members' actions of the round, checked once each
+		for (Network n : networks) {
+			NetworkRoster roster = rosters[n.getId()];
+			for (Particle p : roster.getMembers()) {
+				int i = indexOf(p);
+				byte f = flags[s][i];
+				if ((f & GENERATED) == 0)
+					continue;
+				flags[s][i] = 0;
+
+				boolean monitored = monitoredBy[s][i] == n.getId() + 1;
+				if ((f & PROVIDED) != 0 && provision[s][i] < g[s][i])
+					cheat(p, n, monitored, g[s][i] - provision[s][i]);
+				if ((f & DEMANDED) != 0 && demand[s][i] > q[s][i])
+					cheat(p, n, monitored, demand[s][i] - q[s][i]);
+				if ((f & ALLOCATED) != 0 && (f & APPROPRIATED) != 0 && appropriation[s][i] > allocation[s][i])
+					cheat(p, n, monitored, appropriation[s][i] - allocation[s][i]);
+			}
+		}
+
+		for (int k = 0; k < sanctions; k++) {
+			if (appealed[k])
+				appeal(k, t);
+		}
+
+		// Other members see every sanction that stands, then the expulsions are carried out
+		for (int k = 0; k < sanctions; k++) {
+			if (retracted[k])
+				continue;
+			Particle p = particles.get(sanctioned[k]);
+			for (Particle member : rosters[sanctionedBy[k].getId()].getMembers()) {
+				if (!p.equals(member)) {
+					member.updateObservedCatchHistory(Boolean.TRUE);
+					member.updateObservedSanctionHistory(levels[k]);
+				}
+			}
+		}
+
+		for (int k = 0; k < sanctions; k++) {
+			if (!retracted[k] && levels[k] == GraduationLevel.EXPULSION)
+				expel(particles.get(sanctioned[k]), sanctionedBy[k]);
+		}
+		deleteEmptyNetworks(networks);
+
+		for (Network n : networks) {
+			adjustMonitoring(n);
+		}
+	}
+
+	private void cheat(Particle p, Network n, boolean monitored, double severity) {
+		p.updateObservedCatchHistory(monitored);
+		if (!monitored)
+			return;
+
+		double lb = n.getSeverityLB();
+		double ub = n.getSeverityUB();
+		if (severity <= lb) {
+			p.updateObservedSanctionHistory(GraduationLevel.NO_SANCTION);
+			addSanction(p, n, GraduationLevel.NO_SANCTION, false);
+		} else if (severity <= ub) {
+			n.warn(p);
+			GraduationLevel level = n.getWarningCount(p) >= n.getNoWarnings()
+					? GraduationLevel.EXPULSION : GraduationLevel.WARNING;
+			addSanction(p, n, level, !(severity - lb > ((lb + ub) / 2)));
+		} else {
+			addSanction(p, n, GraduationLevel.EXPULSION, true);
+		}
+	}
+
+	private void addSanction(Particle p, Network n, GraduationLevel level, boolean appeal) {
+		if (sanctions == sanctioned.length) {
+			int capacity = sanctions * 2;
+			sanctioned = Arrays.copyOf(sanctioned, capacity);
+			sanctionedBy = Arrays.copyOf(sanctionedBy, capacity);
+			levels = Arrays.copyOf(levels, capacity);
+			appealed = Arrays.copyOf(appealed, capacity);
+			retracted = Arrays.copyOf(retracted, capacity);
+		}
+
+		sanctioned[sanctions] = indexOf(p);
+		sanctionedBy[sanctions] = n;
+		levels[sanctions] = level;
+		appealed[sanctions] = appeal;
+		retracted[sanctions] = false;
+		sanctions++;
+
+		logger.info(RuleLogger.SANCTIONS, "Sanctioned ", p, " in ", n, ": ", level);
+	}
+
+	private void appeal(int k, int t) {
+		Particle p = particles.get(sanctioned[k]);
+		Network n = sanctionedBy[k];
+		double chance = draws.forParticle(p, t, RoundDraws.APPEAL).nextDouble();
+
+		if (chance > n.getForgiveness()) {
+			p.updateObservedSanctionHistory(GraduationLevel.NO_SANCTION);
+			if (levels[k] == GraduationLevel.WARNING || n.getWarningCount(p) >= n.getNoWarnings())
+				n.removeWarning(p);
+			retracted[k] = true;
+			logger.info(RuleLogger.SANCTIONS, "Appeal won: ", p, " in ", n);
+		} else {
+			p.updateObservedSanctionHistory(levels[k]);
+			logger.info(RuleLogger.SANCTIONS, "Appeal lost: ", p, " in ", n);
+		}
+	}
+
+	private void expel(Particle p, Network n) {
+		MemberOf m = index.getMemberOf(p.getId());
+		if (m == null || !m.getNetwork().equals(n))
+			return;
+
+		n.banParticle(p);
+		FactHandle handle = session.getFactHandle(m);
+		if (handle != null)
+			session.retract(handle);
+		left(n);
+		logger.info(RuleLogger.SANCTIONS, "Expulsion: ", p, " from ", n);
+	}
+
+	private void adjustMonitoring(Network n) {
+		boolean any = false;
+		boolean warned = false;
+		boolean expelled = false;
+		for (int k = 0; k < sanctions; k++) {
+			if (retracted[k] || !sanctionedBy[k].equals(n))
+				continue;
+			any = true;
+			warned |= levels[k] == GraduationLevel.WARNING;
+			expelled |= levels[k] == GraduationLevel.EXPULSION;
+		}
+
+		if (!any) {
+			int compliant = n.getCompliantRounds();
+			if (compliant > 2) {
+				double mFreq = n.getMonitoringLevel();
+				n.setMonitoringLevel(mFreq - 0.1 * mFreq);
+				n.setCompliantRounds(0);
+			} else {
+				n.setCompliantRounds(compliant + 1);
+			}
+		}
+		if (warned) {
+			double mFreq = n.getMonitoringLevel();
+			n.setMonitoringLevel(mFreq + 0.1 * (1 - mFreq));
+			n.setCompliantRounds(0);
+		}
+		if (expelled) {
+			double mFreq = n.getMonitoringLevel();
+			n.setMonitoringLevel(mFreq + 0.2 * (1 - mFreq));
+			n.setCompliantRounds(0);
+		}
+	}
+
+	private void updateNetworks(List<Network> networks, int t) {
+		for (Network n : networks) {
+			NetworkRoster roster = rosters[n.getId()];
+			if (roster.getSize() == 0)
+				continue;
+
+			n.incrementLongevity();
+			for (Particle p : roster.getMembers()) {
+				n.getUtilityData().addValue(p.getUtility());
+			}
+
+			if (stats != null)
+				stats.append(n, t);
+		}
+	}
+
+	// Networks in id order, each with a roster matching its memberships
+	private List<Network> syncRosters() {
+		List<Network> networks = new ArrayList<Network>(index.getNetworks());
+		Collections.sort(networks, byId);
+
+		Set<Particle> members = new HashSet<Particle>();
+		List<Particle> joined = new ArrayList<Particle>();
+		for (Network n : networks) {
+			NetworkRoster roster = roster(n);
+			members.clear();
+			for (MemberOf m : index.getMembers(n)) {
+				members.add(m.getParticle());
+			}
+
+			for (Particle p : new ArrayList<Particle>(roster.getMembers())) {
+				if (!members.contains(p))
+					roster.remove(p);
+			}
+
+			// Joiners are added in canonical order, as the index's sets have none
+			joined.clear();
+			for (Particle p : members) {
+				if (!roster.contains(p))
+					joined.add(p);
+			}
+			Collections.sort(joined, NetworkRoster.CANONICAL);
+			for (Particle p : joined) {
+				roster.add(p);
+			}
+		}
+		return networks;
+	}
+
+	// Networks that have been left by their last member are deleted, also from the list
+	private void deleteEmptyNetworks(List<Network> networks) {
+		for (Iterator<Network> it = networks.iterator(); it.hasNext();) {
+			Network n = it.next();
+			int id = n.getId();
+			if (!left[id] || !index.getMembers(n).isEmpty())
+				continue;
+
+			FactHandle handle = session.getFactHandle(n);
+			if (handle != null)
+				session.retract(handle);
+			handle = session.getFactHandle(ledgers[id]);
+			if (handle != null)
+				session.retract(handle);
+			left[id] = false;
+			rosters[id] = null;
+			ledgers[id] = null;
+			it.remove();
+			logger.info(RuleLogger.NETWORKS, "Deleting network: ", n);
+		}
+	}
+
+	private void left(Network n) {
+		network(n.getId());
+		left[n.getId()] = true;
+	}
+
+	private NetworkRoster roster(Network n) {
+		network(n.getId());
+		if (rosters[n.getId()] == null) {
+			rosters[n.getId()] = new NetworkRoster(n);
+			// Ledgers go into working memory as under Drools, where NetworkService finds them
+			ledgers[n.getId()] = new NetworkLedger(n);
+			session.insert(ledgers[n.getId()]);
+		}
+		return rosters[n.getId()];
+	}
+
+	private void network(int id) {
+		if (id < rosters.length)
+			return;
+
+		int capacity = Math.max(id + 1, rosters.length * 2);
+		ledgers = Arrays.copyOf(ledgers, capacity);
+		left = Arrays.copyOf(left, capacity);
+		rosters = Arrays.copyOf(rosters, capacity);
+	}
+
+	private int indexOf(Particle p) {
+		int i = particles.indexOf(p.getId());
+		if (i < 0) {
+			i = particles.register(p);
+			grow(particles.size());
+		}
+		return i;
+	}
+
+	// Slot of round t, cleared if it last held an older round
+	private int slot(int t) {
+		int s = ((t % SLOTS) + SLOTS) % SLOTS;
+		if (slotRound[s] != t) {
+			Arrays.fill(flags[s], (byte) 0);
+			Arrays.fill(monitoredBy[s], 0);
+			slotRound[s] = t;
+		}
+		return s;
+	}
+
+	private void grow(int size) {
+		if (size <= provided.length)
+			return;
+
+		for (int s = 0; s < SLOTS; s++) {
+			flags[s] = Arrays.copyOf(flags[s], size);
+			g[s] = Arrays.copyOf(g[s], size);
+			q[s] = Arrays.copyOf(q[s], size);
+			provision[s] = Arrays.copyOf(provision[s], size);
+			demand[s] = Arrays.copyOf(demand[s], size);
+			allocation[s] = Arrays.copyOf(allocation[s], size);
+			order[s] = Arrays.copyOf(order[s], size);
+			appropriation[s] = Arrays.copyOf(appropriation[s], size);
+			monitoredBy[s] = Arrays.copyOf(monitoredBy[s], size);
+		}
+		provided = Arrays.copyOf(provided, size);
+		requested = Arrays.copyOf(requested, size);
+		requesting = Arrays.copyOf(requesting, size);
+	}
+
+}
@@ -0,0 +1,202 @@
+package spinworld.rules;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+/*
+ * Asynchronous log4j appender over a fixed ring of events, for logging rule firings
+ * without holding up the engine. Appending never blocks: if the writer thread falls
+ * behind, the oldest events are overwritten and a count of them is written instead.
+ * Events are written to File, or standard out if none is given. For example:
+ *
+ * log4j.appender.R=spinworld.rules.RingBufferAppender
+ * log4j.appender.R.File=rules.log
+ * log4j.appender.R.BufferSize=65536
+ * log4j.appender.R.layout=org.apache.log4j.PatternLayout
+ */
+public class RingBufferAppender extends AppenderSkeleton {
+
+	int bufferSize = 8192;
+	String file = null;
+
+	final Object lock = new Object();
+	LoggingEvent[] ring = null;
+	long head = 0;
+	long tail = 0;
+	long dropped = 0;
+	long totalDropped = 0;
+	boolean stopping = false;
+
+	Writer out = null;
+	Thread writer = null;
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	// Events overwritten before they could be written
+	public long getDropped() {
+		synchronized (lock) {
+			return totalDropped;
+		}
+	}
+
+	@Override
+	public void activateOptions() {
+		// Round up to a power of two so slots can be masked
+		int size = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+		ring = new LoggingEvent[size];
+
+		try {
+			if (file != null)
+				out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 1 << 16);
+			else
+				out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+		} catch (IOException e) {
+			errorHandler.error("Could not open " + file, e, ErrorCode.FILE_OPEN_FAILURE);
+			return;
+		}
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "RingBufferAppender-" + getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	protected void append(LoggingEvent event) {
+		if (writer == null)
+			return;
+
+		// Render on the logging thread, as facts change once the rule has fired
+		event.getRenderedMessage();
+		event.getThreadName();
+		event.getNDC();
+		event.getThrowableStrRep();
+
+		synchronized (lock) {
+			if (head - tail == ring.length) {
+				tail++;
+				dropped++;
+				totalDropped++;
+			}
+			ring[(int) (head++ & (ring.length - 1))] = event;
+			lock.notify();
+		}
+	}
+
+	void drain() {
+		LoggingEvent[] batch = new LoggingEvent[ring.length];
+
+		while (true) {
+			int n = 0;
+			long lost;
+
+			synchronized (lock) {
+				while (head == tail && !stopping) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (head == tail)
+					return;
+
+				while (tail < head) {
+					int slot = (int) (tail++ & (ring.length - 1));
+					batch[n++] = ring[slot];
+					ring[slot] = null;
+				}
+				lost = dropped;
+				dropped = 0;
+			}
+
+			write(batch, n, lost);
+		}
+	}
+
+	private void write(LoggingEvent[] batch, int n, long lost) {
+		try {
+			if (lost > 0)
+				out.write("... " + lost + " log events dropped" + Layout.LINE_SEP);
+
+			for (int i = 0; i < n; i++) {
+				out.write(layout.format(batch[i]));
+				if (layout.ignoresThrowable()) {
+					String[] trace = batch[i].getThrowableStrRep();
+					if (trace != null) {
+						for (String line : trace) {
+							out.write(line);
+							out.write(Layout.LINE_SEP);
+						}
+					}
+				}
+				batch[i] = null;
+			}
+			out.flush();
+		} catch (IOException e) {
+			errorHandler.error("Could not write log events", e, ErrorCode.WRITE_FAILURE);
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+			stopping = true;
+			lock.notify();
+		}
+
+		if (writer != null) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (out != null) {
+			try {
+				if (file != null)
+					out.close();
+				else
+					out.flush();
+			} catch (IOException e) {
+				errorHandler.error("Could not close " + file, e, ErrorCode.CLOSE_FAILURE);
+			}
+		}
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return true;
+	}
+
+}
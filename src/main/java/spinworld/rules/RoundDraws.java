@@ -0,0 +1,50 @@
+package spinworld.rules;
+
+import java.util.Random;
+
+import spinworld.facts.Particle;
+import spinworld.network.Network;
+
+/*
+ * Random draws of the round rules, set as the "draws" global. Each draw comes from a
+ * generator seeded by what it is drawn for (a network or particle, the round and the
+ * purpose) rather than from one shared stream, so the outcome of a round does not depend
+ * on the order rules happen to fire in. Engines given the same seed draw the same values.
+ */
+public class RoundDraws {
+
+	public static final int MONITOR = 1;
+	public static final int ALLOCATE = 2;
+	public static final int APPEAL = 3;
+
+	final long seed;
+
+	public RoundDraws(long seed) {
+		super();
+		this.seed = seed;
+	}
+
+	public Random forNetwork(Network n, int t, int purpose) {
+		return new Random(key(purpose, n.getId(), t));
+	}
+
+	// Particles are keyed by name, as their ids are not drawn from the simulation seed
+	public Random forParticle(Particle p, int t, int purpose) {
+		return new Random(key(purpose, p.getName().hashCode(), t));
+	}
+
+	long key(int purpose, int id, int t) {
+		long z = seed + 0x9E3779B97F4A7C15L * purpose;
+		z = mix(z ^ id);
+		z = mix(z ^ t);
+		return z;
+	}
+
+	// SplitMix64 finaliser, so neighbouring ids and rounds give unrelated seeds
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+}
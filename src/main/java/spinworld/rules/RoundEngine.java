@@ -0,0 +1,31 @@
+package spinworld.rules;
+
+import java.util.Collection;
+
+import spinworld.RoundType;
+
+/*
+ * Plays the rounds of the resource game over the actions applied each time cycle. The
+ * Drools engine runs the rule pipeline of SpinWorld.drl, Institution.drl and
+ * RandomAllocation.drl; the native engine plays the same rounds in plain Java. Particles,
+ * networks and memberships stay in the session either way, where NetworkService and the
+ * agents find them.
+ */
+public interface RoundEngine {
+
+	// Parameter value selecting the engine, see SpinWorldSimulation
+	public static final String DROOLS = "drools";
+	public static final String NATIVE = "native";
+
+	// Globals of the rule files (logger, stats, draws, ...); an engine ignores those it has no use for
+	void setGlobal(String name, Object value);
+
+	void insert(Object fact);
+
+	// Facts applied together, e.g. by a commit, in the order they were applied
+	void insert(Collection<?> facts);
+
+	// Settle everything inserted so far as a cycle of the given round type
+	void play(RoundType round);
+
+}
@@ -0,0 +1,69 @@
+package spinworld.rules;
+
+import java.util.concurrent.TimeUnit;
+
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.rule.Agenda;
+import org.drools.time.SessionClock;
+import org.drools.time.SessionPseudoClock;
+
+import spinworld.RoundType;
+
+/*
+ * Agenda groups of the round pipeline. A demand round runs provision, monitor and
+ * allocate; an appropriate round runs appropriate and sanction. Rules in a phase match
+ * each action once, so no markers are needed to stop them firing again. Bookkeeping and
+ * generate rules are auto-focus and also run whenever they activate.
+ *
+ * Each time cycle is one second on the session clock, so a round takes two. Event
+ * @expires in the DRL files are given in these seconds.
+ */
+public class RoundPhases {
+
+	public static final String BOOKKEEPING = "bookkeeping";
+	public static final String GENERATE = "generate";
+	public static final String PROVISION = "provision";
+	public static final String MONITOR = "monitor";
+	public static final String ALLOCATE = "allocate";
+	public static final String APPROPRIATE = "appropriate";
+	public static final String SANCTION = "sanction";
+
+	public static final long CYCLE_SECONDS = 1;
+
+	static final String[] INIT_PHASES = { BOOKKEEPING, GENERATE };
+	static final String[] DEMAND_PHASES = { BOOKKEEPING, GENERATE, PROVISION, MONITOR, ALLOCATE };
+	static final String[] APPROPRIATE_PHASES = { BOOKKEEPING, GENERATE, APPROPRIATE, SANCTION };
+
+	public static String[] getPhases(RoundType type) {
+		switch (type) {
+		case DEMAND:
+			return DEMAND_PHASES.clone();
+		case APPROPRIATE:
+			return APPROPRIATE_PHASES.clone();
+		default:
+			return INIT_PHASES.clone();
+		}
+	}
+
+	// Focus the phases of the round so the next fireAllRules runs them in order
+	public static void focus(StatefulKnowledgeSession session, RoundType type) {
+		String[] phases = getPhases(type);
+		Agenda agenda = session.getAgenda();
+
+		// The focus is a stack, so the first phase goes on last
+		for (int i = phases.length - 1; i >= 0; i--) {
+			agenda.getAgendaGroup(phases[i]).setFocus();
+		}
+	}
+
+	// Move a pseudo clock session on by one time cycle, retracting expired events. On a
+	// realtime clock events would expire by wall-clock time instead, so that is an error
+	public static void tick(StatefulKnowledgeSession session) {
+		SessionClock clock = session.getSessionClock();
+		if (!(clock instanceof SessionPseudoClock))
+			throw new IllegalStateException("Session is not on a pseudo clock: "
+					+ (clock != null ? clock.getClass().getName() : null));
+		((SessionPseudoClock) clock).advanceTime(CYCLE_SECONDS, TimeUnit.SECONDS);
+	}
+
+}
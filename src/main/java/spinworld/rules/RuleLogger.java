@@ -0,0 +1,74 @@
+package spinworld.rules;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/*
+ * Logging for rule consequences, set as the "logger" global. Each category of rules logs
+ * to its own log4j logger below the base one (e.g. spinworld.RuleEngine.pools), so
+ * categories are switched on and off in log4j.properties. Messages are passed in parts
+ * and only put together once the category is known to be enabled.
+ */
+public class RuleLogger {
+
+	public static final String ROUNDS = "rounds";
+	public static final String ACTIONS = "actions";
+	public static final String POOLS = "pools";
+	public static final String NETWORKS = "networks";
+	public static final String MONITORING = "monitoring";
+	public static final String SANCTIONS = "sanctions";
+
+	final String name;
+	final Map<String, Logger> categories = new ConcurrentHashMap<String, Logger>();
+
+	public RuleLogger(Logger base) {
+		super();
+		this.name = base.getName();
+	}
+
+	public Logger getLogger(String category) {
+		Logger logger = categories.get(category);
+		if (logger == null) {
+			logger = Logger.getLogger(name + "." + category);
+			categories.put(category, logger);
+		}
+		return logger;
+	}
+
+	// For consequences that would do work just to log
+	public boolean isEnabled(String category) {
+		return getLogger(category).isInfoEnabled();
+	}
+
+	public void info(String category, Object message) {
+		Logger logger = getLogger(category);
+		if (logger.isInfoEnabled())
+			logger.info(message);
+	}
+
+	public void info(String category, Object a, Object b) {
+		Logger logger = getLogger(category);
+		if (logger.isInfoEnabled())
+			logger.info(String.valueOf(a) + b);
+	}
+
+	public void info(String category, Object a, Object b, Object c) {
+		Logger logger = getLogger(category);
+		if (logger.isInfoEnabled())
+			logger.info(String.valueOf(a) + b + c);
+	}
+
+	public void info(String category, Object... parts) {
+		Logger logger = getLogger(category);
+		if (logger.isInfoEnabled()) {
+			StringBuilder message = new StringBuilder();
+			for (Object part : parts) {
+				message.append(part);
+			}
+			logger.info(message.toString());
+		}
+	}
+
+}
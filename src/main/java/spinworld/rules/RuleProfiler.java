@@ -0,0 +1,279 @@
+package spinworld.rules;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.drools.event.rule.ActivationCreatedEvent;
+import org.drools.event.rule.AfterActivationFiredEvent;
+import org.drools.event.rule.AgendaEventListener;
+import org.drools.event.rule.BeforeActivationFiredEvent;
+import org.drools.event.rule.DefaultAgendaEventListener;
+import org.drools.event.rule.DefaultWorkingMemoryEventListener;
+import org.drools.event.rule.ObjectInsertedEvent;
+import org.drools.event.rule.ObjectRetractedEvent;
+import org.drools.event.rule.WorkingMemoryEventListener;
+import org.drools.runtime.StatefulKnowledgeSession;
+
+import spinworld.RoundType;
+import spinworld.facts.Round;
+
+/*
+ * Per-rule activation and firing counts, time spent in consequences and the facts each
+ * rule inserts and retracts, taken from agenda and working memory events. Counts are
+ * written as tab separated rows for every round as the next one starts, then for the
+ * whole run on close:
+ *
+ * round	rule	activations	fires	rhsMillis	inserts	retracts
+ *
+ * with "run" in place of the round number for the totals.
+ */
+public class RuleProfiler {
+
+	// Facts inserted or retracted outside of a consequence are counted against this
+	public static final String EXTERNAL = "(external)";
+	public static final String RUN = "run";
+
+	static final String HEADER = "round\trule\tactivations\tfires\trhsMillis\tinserts\tretracts";
+
+	public static class Counts {
+		long activations = 0;
+		long fires = 0;
+		long nanos = 0;
+		long inserts = 0;
+		long retracts = 0;
+
+		public long getActivations() {
+			return activations;
+		}
+
+		public long getFires() {
+			return fires;
+		}
+
+		public double getRhsMillis() {
+			return nanos / 1e6;
+		}
+
+		public long getInserts() {
+			return inserts;
+		}
+
+		public long getRetracts() {
+			return retracts;
+		}
+
+		void add(Counts c) {
+			activations += c.activations;
+			fires += c.fires;
+			nanos += c.nanos;
+			inserts += c.inserts;
+			retracts += c.retracts;
+		}
+	}
+
+	final Map<String, Counts> round = new HashMap<String, Counts>();
+	final Map<String, Counts> run = new HashMap<String, Counts>();
+	final Writer out;
+
+	int roundNumber = 0;
+	String firing = null;
+	long started = 0;
+	boolean headed = false;
+	boolean closed = false;
+
+	final AgendaEventListener agendaListener = new DefaultAgendaEventListener() {
+		@Override
+		public void activationCreated(ActivationCreatedEvent event) {
+			activated(event.getActivation().getRule().getName());
+		}
+
+		@Override
+		public void beforeActivationFired(BeforeActivationFiredEvent event) {
+			firing = event.getActivation().getRule().getName();
+			started = System.nanoTime();
+		}
+
+		@Override
+		public void afterActivationFired(AfterActivationFiredEvent event) {
+			fired(event.getActivation().getRule().getName(), System.nanoTime() - started);
+			firing = null;
+		}
+	};
+
+	final WorkingMemoryEventListener memoryListener = new DefaultWorkingMemoryEventListener() {
+		@Override
+		public void objectInserted(ObjectInsertedEvent event) {
+			inserted(event.getObject());
+		}
+
+		@Override
+		public void objectRetracted(ObjectRetractedEvent event) {
+			retracted();
+		}
+	};
+
+	public RuleProfiler(Writer out) {
+		super();
+		this.out = out;
+	}
+
+	public RuleProfiler(Path file) throws IOException {
+		this(Files.newBufferedWriter(file, Charset.forName("UTF-8")));
+	}
+
+	public void attach(StatefulKnowledgeSession session) {
+		session.addEventListener(agendaListener);
+		session.addEventListener(memoryListener);
+	}
+
+	public void detach(StatefulKnowledgeSession session) {
+		session.removeEventListener(agendaListener);
+		session.removeEventListener(memoryListener);
+	}
+
+	private Counts counts(String rule) {
+		Counts c = round.get(rule);
+		if (c == null) {
+			c = new Counts();
+			round.put(rule, c);
+		}
+		return c;
+	}
+
+	synchronized void activated(String rule) {
+		counts(rule).activations++;
+	}
+
+	synchronized void fired(String rule, long nanos) {
+		Counts c = counts(rule);
+		c.fires++;
+		c.nanos += nanos;
+	}
+
+	synchronized void inserted(Object fact) {
+		counts(firing != null ? firing : EXTERNAL).inserts++;
+
+		// A new round starts with its DEMAND phase
+		if (fact instanceof Round && ((Round) fact).getType() == RoundType.DEMAND) {
+			endRound();
+			roundNumber = ((Round) fact).getNumber();
+		}
+	}
+
+	synchronized void retracted() {
+		counts(firing != null ? firing : EXTERNAL).retracts++;
+	}
+
+	// Write out the current round and add it to the run totals
+	synchronized void endRound() {
+		if (round.isEmpty())
+			return;
+
+		write(Integer.toString(roundNumber), round);
+		for (Map.Entry<String, Counts> e : round.entrySet()) {
+			Counts total = run.get(e.getKey());
+			if (total == null) {
+				total = new Counts();
+				run.put(e.getKey(), total);
+			}
+			total.add(e.getValue());
+		}
+		round.clear();
+	}
+
+	// Counts of the round in progress
+	public synchronized Map<String, Counts> getRound() {
+		return new HashMap<String, Counts>(round);
+	}
+
+	// Counts of rounds already written
+	public synchronized Map<String, Counts> getRun() {
+		return new HashMap<String, Counts>(run);
+	}
+
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+
+		endRound();
+		write(RUN, run);
+		out.close();
+	}
+
+	private void write(String key, Map<String, Counts> counts) {
+		try {
+			if (!headed) {
+				out.write(HEADER + "\n");
+				headed = true;
+			}
+			for (Map.Entry<String, Counts> e : hottest(counts, counts.size())) {
+				Counts c = e.getValue();
+				out.write(key + "\t" + e.getKey() + "\t" + c.activations + "\t" + c.fires + "\t"
+						+ String.format(Locale.ROOT, "%.3f", c.getRhsMillis()) + "\t" + c.inserts + "\t" + c.retracts + "\n");
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Rules ordered by time spent in their consequences, most first
+	public static List<Map.Entry<String, Counts>> hottest(Map<String, Counts> counts, int n) {
+		List<Map.Entry<String, Counts>> rules = new ArrayList<Map.Entry<String, Counts>>(counts.entrySet());
+		Collections.sort(rules, new Comparator<Map.Entry<String, Counts>>() {
+			@Override
+			public int compare(Map.Entry<String, Counts> a, Map.Entry<String, Counts> b) {
+				int c = Long.compare(b.getValue().nanos, a.getValue().nanos);
+				return c != 0 ? c : Long.compare(b.getValue().activations, a.getValue().activations);
+			}
+		});
+		return rules.subList(0, Math.min(n, rules.size()));
+	}
+
+	/*
+	 * Counts of a written report for one round, or for the run when round is RUN. The run
+	 * totals are summed from the rounds if the report was never closed.
+	 */
+	public static Map<String, Counts> read(BufferedReader in, String round) throws IOException {
+		Map<String, Counts> counts = new HashMap<String, Counts>();
+		Map<String, Counts> rounds = new HashMap<String, Counts>();
+		String line;
+		while ((line = in.readLine()) != null) {
+			String[] cols = line.split("\t");
+			if (cols.length < 7 || cols[0].equals("round"))
+				continue;
+
+			Counts c = new Counts();
+			c.activations = Long.parseLong(cols[2]);
+			c.fires = Long.parseLong(cols[3]);
+			c.nanos = (long) (Double.parseDouble(cols[4]) * 1e6);
+			c.inserts = Long.parseLong(cols[5]);
+			c.retracts = Long.parseLong(cols[6]);
+
+			if (cols[0].equals(round)) {
+				counts.put(cols[1], c);
+			} else if (round.equals(RUN)) {
+				Counts total = rounds.get(cols[1]);
+				if (total == null) {
+					total = new Counts();
+					rounds.put(cols[1], total);
+				}
+				total.add(c);
+			}
+		}
+		return counts.isEmpty() ? rounds : counts;
+	}
+
+}
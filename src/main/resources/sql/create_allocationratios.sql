@@ -1,9 +1,8 @@
-CREATE OR REPLACE VIEW "allocationRatios" AS 
-	SELECT t."simId",
-	a.name,
-	t."time",
-	t.state->'network' AS "network",
-	LEAST(CAST(t.state->'r' AS float) / CAST( t.state->'d' AS float) ,1) AS "ratio"
-	FROM agenttransient AS t
-	JOIN agents AS a ON a."simId" = t."simId" AND a.aid = t.aid
-	WHERE CAST(t.state->'d' AS float) > 0
+DROP VIEW IF EXISTS "allocationRatios";
+CREATE VIEW "allocationRatios" AS 
+	SELECT "simId",
+	particle AS name,
+	round AS "time",
+	network,
+	ratio
+	FROM "roundAllocationRatios"
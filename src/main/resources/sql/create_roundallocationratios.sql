@@ -0,0 +1,8 @@
+CREATE TABLE IF NOT EXISTS "roundAllocationRatios" (
+	"simId" bigint NOT NULL REFERENCES simulations ON DELETE CASCADE,
+	particle varchar(10) NOT NULL,
+	round int NOT NULL,
+	network int NOT NULL,
+	ratio float NOT NULL,
+	PRIMARY KEY ("simId", particle, round)
+)
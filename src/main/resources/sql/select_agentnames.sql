@@ -0,0 +1,3 @@
+SELECT "name"
+FROM agents
+WHERE "simId" = ?
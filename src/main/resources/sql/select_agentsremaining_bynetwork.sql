@@ -0,0 +1,8 @@
+SELECT network,
+	COUNT(CASE WHEN particle LIKE 'c%' THEN 1 ELSE NULL END),
+	COUNT(CASE WHEN particle LIKE 'nc%' THEN 1 ELSE NULL END)
+FROM "particleScore"
+WHERE "simId" = ?
+	AND "round" = ?
+	AND network >= 0
+GROUP BY network
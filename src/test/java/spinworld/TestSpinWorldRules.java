@@ -2,6 +2,7 @@ package spinworld;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -13,20 +14,29 @@ import java.util.UUID;
 import org.apache.log4j.Logger;
 import org.drools.runtime.ObjectFilter;
 import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.rule.FactHandle;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import spinworld.actions.Allocate;
 import spinworld.actions.Appropriate;
 import spinworld.actions.Demand;
 import spinworld.actions.Generate;
 import spinworld.actions.JoinNetwork;
 import spinworld.actions.Provision;
-import spinworld.allocators.RandomAllocator;
 import spinworld.facts.Allocation;
 import spinworld.facts.Particle;
 import spinworld.facts.Round;
+import spinworld.facts.RoundLedger;
+import spinworld.facts.RoundLedgers;
+import spinworld.network.MemberOf;
 import spinworld.network.Network;
+import spinworld.network.NetworkRoster;
+import spinworld.rules.KnowledgeBaseCache;
+import spinworld.rules.RoundDraws;
+import spinworld.rules.RoundPhases;
+import spinworld.rules.RuleLogger;
 import uk.ac.imperial.presage2.core.util.random.Random;
 import uk.ac.imperial.presage2.rules.RuleModule;
 import uk.ac.imperial.presage2.rules.RuleStorage;
@@ -45,17 +55,17 @@ public class TestSpinWorldRules {
 
 	@Before
 	public void setUp() throws Exception {
-		injector = Guice.createInjector(new RuleModule()
-				.addClasspathDrlFile("SpinWorld.drl")
-				.addClasspathDrlFile("Institution.drl")
-				.addClasspathDrlFile("RandomAllocation.drl"));
+		injector = Guice.createInjector(KnowledgeBaseCache.override(new RuleModule(),
+				"SpinWorld.drl", "Institution.drl", "RandomAllocation.drl"));
 		
 		rules = injector.getInstance(RuleStorage.class);
 		
 		session = injector.getInstance(StatefulKnowledgeSession.class);
-		session.setGlobal("logger", this.logger);
+		session.setGlobal("logger", new RuleLogger(this.logger));
 		session.setGlobal("session", session);
-		session.setGlobal("storage", null);
+		session.setGlobal("stats", null);
+		session.setGlobal("ledgers", new RoundLedgers());
+		session.setGlobal("draws", new RoundDraws(new java.util.Random().nextLong()));
 	}
 
 	@After
@@ -103,7 +113,6 @@ public class TestSpinWorldRules {
 	public void testRandomSingleNetwork() {
 		SimulatedWorld world = new SimulatedWorld();
 
-		RandomAllocator.rnd = new java.util.Random();
 		world.addNetwork(Allocation.RANDOM);
 		int agents = Random.randomInt(30);
 		int size = 20;
@@ -153,6 +162,189 @@ public class TestSpinWorldRules {
 		}
 	}
 
+	@Test
+	public void testPhasesFireActionsOnce() {
+		SimulatedWorld world = new SimulatedWorld();
+
+		world.addNetwork(Allocation.RANDOM);
+		char name = 'a';
+
+		for (int n = 0; n < 10; n++) {
+			world.addPlayer(String.valueOf(name), 0.1, 0.1, 0, 1, new Location(n, n));
+			name++;
+		}
+
+		for (Particle p : world.particles) {
+			session.insert(new MemberOf(p, world.networks.get(0)));
+		}
+
+		world.initRound();
+
+		for (Particle p : world.particles) {
+			session.insert(new Provision(world.currentRound, p, p.getG()));
+			session.insert(new Demand(world.currentRound, p, p.getQ()));
+		}
+
+		world.demandRound();
+		assertEquals(world.particles.size(), count(Allocate.class));
+
+		// Focusing the demand phases again finds nothing left to do
+		RoundPhases.focus(session, RoundType.DEMAND);
+		rules.incrementTime();
+		assertEquals(world.particles.size(), count(Allocate.class));
+
+		for (Particle p : world.particles) {
+			session.insert(new Appropriate(world.currentRound, p, p.getAllocated()));
+		}
+
+		world.appropriateRound();
+
+		// A second pass would serve appropriations from the emptied pool
+		RoundPhases.focus(session, RoundType.APPROPRIATE);
+		rules.incrementTime();
+
+		for (Particle p : world.particles) {
+			assertEquals(p.getAllocated(), p.getAppropriated(), 0.000001);
+		}
+	}
+
+	@Test
+	public void testActionsExpire() {
+		SimulatedWorld world = new SimulatedWorld();
+
+		world.addNetwork(Allocation.RANDOM);
+		char name = 'a';
+
+		for (int n = 0; n < 5; n++) {
+			world.addPlayer(String.valueOf(name), 0.1, 0.1, 0, 1, new Location(n, n));
+			name++;
+		}
+
+		for (Particle p : world.particles) {
+			session.insert(new MemberOf(p, world.networks.get(0)));
+		}
+
+		world.initRound();
+
+		for (int i = 0; i < 20; i++) {
+			for (Particle p : world.particles) {
+				session.insert(new Provision(world.currentRound, p, p.getG()));
+				session.insert(new Demand(world.currentRound, p, p.getQ()));
+			}
+
+			world.demandRound();
+
+			for (Particle p : world.particles) {
+				session.insert(new Appropriate(world.currentRound, p, p.getAllocated()));
+			}
+
+			world.appropriateRound();
+		}
+
+		// Only the last six rounds of actions are left
+		int perRound = world.particles.size();
+		assertTrue(count(Provision.class) <= 6 * perRound);
+		assertTrue(count(Demand.class) <= 6 * perRound);
+		assertTrue(count(Allocate.class) <= 6 * perRound);
+		assertTrue(count(Appropriate.class) <= 6 * perRound);
+		assertEquals(0, count(Generate.class));
+	}
+
+	@Test
+	public void testDetectionFromLedgers() {
+		SimulatedWorld world = new SimulatedWorld();
+
+		Network n = new Network(0, Allocation.RANDOM, 1.0, 0.01, 3, 0.0, 1.0, 0.0);
+		world.networks.add(n);
+		session.insert(n);
+		char name = 'a';
+
+		for (int i = 0; i < 10; i++) {
+			world.addPlayer(String.valueOf(name), 0.1, 0.1, 0, 1, new Location(i, i));
+			name++;
+		}
+
+		for (Particle p : world.particles) {
+			session.insert(new MemberOf(p, n));
+		}
+
+		world.initRound();
+
+		// Only the first particle provides less than it generated
+		for (Particle p : world.particles) {
+			double g = p == world.particles.get(0) ? p.getG() / 2 : p.getG();
+			session.insert(new Provision(world.currentRound, p, g));
+			session.insert(new Demand(world.currentRound, p, p.getQ()));
+		}
+
+		world.demandRound();
+
+		for (Particle p : world.particles) {
+			session.insert(new Appropriate(world.currentRound, p, p.getAllocated()));
+		}
+
+		world.appropriateRound();
+
+		assertEquals(world.particles.size(), count(RoundLedger.class));
+		assertEquals(1, session.getObjects(new ObjectFilter() {
+			@Override
+			public boolean accept(Object object) {
+				return object.getClass().getSimpleName().equals("Violation");
+			}
+		}).size());
+	}
+
+	@Test
+	public void testRosterFollowsMembership() {
+		SimulatedWorld world = new SimulatedWorld();
+		world.addNetwork(Allocation.RANDOM);
+		Network n = world.networks.get(0);
+		char name = 'a';
+
+		for (int i = 0; i < 4; i++) {
+			world.addPlayer(String.valueOf(name), 0.1, 0.1, -1, 1, new Location(i, i));
+			name++;
+		}
+
+		List<FactHandle> memberships = new ArrayList<FactHandle>();
+		for (Particle p : world.particles) {
+			memberships.add(session.insert(new MemberOf(p, n)));
+		}
+		rules.incrementTime();
+
+		NetworkRoster roster = roster(n);
+		assertEquals(4, roster.getSize());
+
+		session.retract(memberships.get(1));
+		session.retract(memberships.get(3));
+		rules.incrementTime();
+
+		assertEquals(2, roster.getSize());
+		assertTrue(roster.contains(world.particles.get(0)));
+		assertFalse(roster.contains(world.particles.get(1)));
+		assertTrue(roster.contains(world.particles.get(2)));
+	}
+
+	private NetworkRoster roster(final Network n) {
+		Collection<Object> rosters = session.getObjects(new ObjectFilter() {
+			@Override
+			public boolean accept(Object object) {
+				return object instanceof NetworkRoster && ((NetworkRoster) object).getNetwork() == n;
+			}
+		});
+		assertEquals(1, rosters.size());
+		return (NetworkRoster) rosters.iterator().next();
+	}
+
+	private int count(final Class<?> type) {
+		return session.getObjects(new ObjectFilter() {
+			@Override
+			public boolean accept(Object object) {
+				return type.isInstance(object);
+			}
+		}).size();
+	}
+
 	class SimulatedWorld {
 
 		List<Network> networks = new ArrayList<Network>();
@@ -208,12 +400,16 @@ public class TestSpinWorldRules {
 				assertEquals(g.getQ(), p.getQ(), 0.000001);
 			}
 
+			RoundPhases.focus(session, RoundType.DEMAND);
 			rules.incrementTime();
+			RoundPhases.tick(session);
 		}
 
 		void appropriateRound() {
 			session.insert(new Round(currentRound, RoundType.APPROPRIATE));
+			RoundPhases.focus(session, RoundType.APPROPRIATE);
 			rules.incrementTime();
+			RoundPhases.tick(session);
 			currentRound++;
 		}
 
@@ -0,0 +1,125 @@
+package spinworld;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.drools.KnowledgeBase;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import spinworld.rules.KnowledgeBaseCache;
+import uk.ac.imperial.presage2.core.db.DatabaseModule;
+import uk.ac.imperial.presage2.core.db.DatabaseService;
+import uk.ac.imperial.presage2.core.db.StorageService;
+import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
+import uk.ac.imperial.presage2.core.simulator.RunnableSimulation;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/*
+ * Whole simulations, run in this JVM on the local database of src/test/resources/db.properties.
+ */
+public class TestSpinWorldSimulation {
+
+	static final int ROUNDS = 20;
+
+	static final String PARTICLE_SCORES = "SELECT * FROM \"particleScore\" WHERE \"simId\" = ? "
+			+ "ORDER BY \"particle\", \"round\"";
+	static final String NETWORK_SCORES = "SELECT * FROM \"networkScore\" WHERE \"simId\" = ? "
+			+ "ORDER BY \"network\", \"round\"";
+
+	static Injector injector;
+	static DatabaseService db;
+	static StorageService storage;
+
+	@BeforeClass
+	public static void startDatabase() throws Exception {
+		injector = Guice.createInjector(DatabaseModule.load());
+		db = injector.getInstance(DatabaseService.class);
+		db.start();
+		storage = injector.getInstance(StorageService.class);
+	}
+
+	@AfterClass
+	public static void stopDatabase() {
+		db.stop();
+	}
+
+	private long insert(String name, int seed) {
+		PersistentSimulation sim = storage.createSimulation(name, "spinworld.SpinWorldSimulation", "AUTO START",
+				ROUNDS);
+		sim.addParameter("finishTime", Integer.toString(ROUNDS));
+		sim.addParameter("size", Integer.toString(5));
+		sim.addParameter("alpha", Double.toString(0.1));
+		sim.addParameter("beta", Double.toString(0.1));
+		sim.addParameter("theta", Double.toString(0.1));
+		sim.addParameter("phi", Double.toString(0.1));
+		sim.addParameter("cAgents", Integer.toString(6));
+		sim.addParameter("cPCheat", Double.toString(0.025));
+		sim.addParameter("ncAgents", Integer.toString(6));
+		sim.addParameter("ncPCheat", Double.toString(0.4));
+		sim.addParameter("seed", Integer.toString(seed));
+		sim.addParameter("cheatOn", Cheat.PROVISION.name());
+		return sim.getID();
+	}
+
+	// Every row of a simulation but its id, which comes first, in a fixed order
+	private List<String> rows(Connection conn, String query, long simId) throws SQLException {
+		List<String> rows = new ArrayList<String>();
+		PreparedStatement st = conn.prepareStatement(query);
+		try {
+			st.setLong(1, simId);
+			ResultSet rs = st.executeQuery();
+			int columns = rs.getMetaData().getColumnCount();
+			while (rs.next()) {
+				StringBuilder row = new StringBuilder();
+				for (int c = 2; c <= columns; c++) {
+					row.append(rs.getString(c)).append('\t');
+				}
+				rows.add(row.toString());
+			}
+			rs.close();
+		} finally {
+			st.close();
+		}
+		return rows;
+	}
+
+	@Test
+	public void testSameResultsAtAnyThreadCount() throws Exception {
+		long single = insert("THREADS_1", 7);
+		long parallel = insert("THREADS_4", 7);
+		RunnableSimulation.runSimulationID(single, 1);
+		RunnableSimulation.runSimulationID(parallel, 4);
+
+		Connection conn = injector.getInstance(Connection.class);
+		List<String> particles = rows(conn, PARTICLE_SCORES, single);
+		List<String> networks = rows(conn, NETWORK_SCORES, single);
+		assertFalse(particles.isEmpty());
+		assertFalse(networks.isEmpty());
+		assertEquals(particles, rows(conn, PARTICLE_SCORES, parallel));
+		assertEquals(networks, rows(conn, NETWORK_SCORES, parallel));
+	}
+
+	@Test
+	public void testSessionsDisposed() throws Exception {
+		KnowledgeBase kbase = KnowledgeBaseCache.get("SpinWorld.drl", "Institution.drl", "RandomAllocation.drl");
+		int sessions = kbase.getStatefulKnowledgeSessions().size();
+
+		// Sequential simulations share the cached knowledge base, but not their sessions
+		RunnableSimulation.runSimulationID(insert("SESSIONS_1", 1), 1);
+		RunnableSimulation.runSimulationID(insert("SESSIONS_2", 2), 1);
+
+		assertEquals(sessions, kbase.getStatefulKnowledgeSessions().size());
+	}
+
+}
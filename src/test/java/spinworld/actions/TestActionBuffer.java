@@ -0,0 +1,134 @@
+package spinworld.actions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
+import uk.ac.imperial.presage2.core.Action;
+
+public class TestActionBuffer {
+
+	ParticleRegistry particles;
+	ActionBuffer buffer;
+	List<String> applied;
+	UUID[] ids;
+
+	static class Named implements Action {
+		final String name;
+
+		Named(String name) {
+			this.name = name;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		particles = new ParticleRegistry();
+		buffer = new ActionBuffer(particles);
+		applied = new ArrayList<String>();
+
+		ids = new UUID[4];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = UUID.randomUUID();
+			particles.register(new Particle(ids[i]));
+		}
+
+		buffer.setCommitter(new ActionBuffer.Committer() {
+			@Override
+			public void beginCommit() {
+				applied.add("begin");
+			}
+
+			@Override
+			public void apply(UUID actor, Action action) {
+				assertTrue(buffer.isCommitting());
+				applied.add(((Named) action).name);
+			}
+
+			@Override
+			public void endCommit() {
+				assertTrue(buffer.isCommitting());
+				applied.add("end");
+			}
+		});
+	}
+
+	@Test
+	public void testCanonicalOrder() throws InterruptedException {
+		// Each agent emits from its own thread, in reverse creation order
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = ids.length - 1; i >= 0; i--) {
+			final int n = i;
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					buffer.add(ids[n], new Named(n + "a"));
+					buffer.defer(ids[n], new Runnable() {
+						@Override
+						public void run() {
+							applied.add(n + "t");
+						}
+					});
+					buffer.add(ids[n], new Named(n + "b"));
+				}
+			});
+			threads.add(t);
+			t.start();
+			t.join();
+		}
+
+		assertFalse(buffer.isEmpty());
+		assertFalse(buffer.isCommitting());
+		buffer.commit();
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("begin");
+		for (int i = 0; i < ids.length; i++) {
+			expected.add(i + "a");
+			expected.add(i + "t");
+			expected.add(i + "b");
+		}
+		expected.add("end");
+		assertEquals(expected, applied);
+		assertTrue(buffer.isEmpty());
+		assertFalse(buffer.isCommitting());
+	}
+
+	@Test
+	public void testFinishedThreadsDropped() throws InterruptedException {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				buffer.add(ids[0], new Named("x"));
+			}
+		});
+		t.start();
+		t.join();
+		buffer.add(ids[1], new Named("y"));
+		assertEquals(2, buffer.buffers.size());
+
+		buffer.commit();
+		assertEquals(4, applied.size());
+		assertEquals(1, buffer.buffers.size());
+	}
+
+	@Test
+	public void testCommitClearsBuffers() {
+		buffer.add(ids[1], new Named("x"));
+		buffer.commit();
+		applied.clear();
+
+		buffer.commit();
+		assertEquals(2, applied.size());
+	}
+
+}
@@ -0,0 +1,64 @@
+package spinworld.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNetworkRoundStats {
+
+	NetworkRoundStats stats;
+
+	@Before
+	public void setUp() {
+		stats = new NetworkRoundStats();
+	}
+
+	private void append(int network, int round) {
+		stats.append(network, round, round, 0, network * 10.0, network, 0.5, 0.25);
+	}
+
+	@Test
+	public void testDrainAndRecycle() {
+		for (int i = 0; i < 100; i++) {
+			append(i % 4, i / 4);
+		}
+		assertEquals(100, stats.size());
+
+		NetworkRoundStats.Rows rows = stats.drain();
+		assertEquals(0, stats.size());
+		assertEquals(100, rows.size());
+		assertEquals(3, rows.getNetwork(99));
+		assertEquals(24, rows.getRound(99));
+		assertEquals(30.0, rows.getUtilitySum(99), 0.0);
+		assertEquals(0.25, rows.getMonitoringLevel(99), 0.0);
+
+		// Recycled rows are appended to after the next drain
+		stats.recycle(rows);
+		stats.drain();
+		append(1, 25);
+		assertSame(rows, stats.drain());
+		assertEquals(1, rows.size());
+		assertEquals(25, rows.getRound(0));
+	}
+
+	@Test
+	public void testLookup() {
+		NetworkRoundStats.Rows rows = new NetworkRoundStats.Rows(2);
+		int[][] keys = { { 1, 1 }, { 2, 1 }, { 1, 2 }, { 3, 2 }, { 3, 4 } };
+		for (int[] k : keys) {
+			rows.add(k[0], k[1], k[1], 0, 0.0, 0.0, 0.0, 0.0);
+		}
+
+		assertEquals(0, rows.first(1));
+		assertEquals(2, rows.first(2));
+		assertEquals(4, rows.first(3));
+		assertEquals(5, rows.first(5));
+		assertEquals(3, rows.indexOf(3, 2));
+		assertEquals(-1, rows.indexOf(2, 2));
+		assertEquals(-1, rows.indexOf(3, 3));
+		assertEquals(4, rows.indexOf(3, 4));
+	}
+
+}
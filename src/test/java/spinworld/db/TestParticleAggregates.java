@@ -0,0 +1,92 @@
+package spinworld.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import spinworld.db.RecordWriter.Format;
+
+public class TestParticleAggregates {
+
+	private ParticleRoundRecord record(double u, double d, double r, int network) {
+		ParticleRoundRecord rec = new ParticleRoundRecord();
+		rec.u = u;
+		rec.d = d;
+		rec.r = r;
+		rec.network = network;
+		return rec;
+	}
+
+	@Test
+	public void testUtilitySummedPerNetwork() {
+		ParticleAggregates aggregates = new ParticleAggregates();
+		aggregates.add("c1", 1, record(0.5, 0, 0, 2));
+		aggregates.add("c1", 2, record(0.25, 0, 0, 2));
+		aggregates.add("c1", 3, record(1.0, 0, 0, 3));
+		aggregates.add("c1", 4, record(8.0, 0, 0, -1));
+		aggregates.add("nc1", 1, record(-0.5, 0, 0, 2));
+
+		assertEquals(0.75, aggregates.getUtilitySum("c1", 2), 0);
+		assertEquals(1.0, aggregates.getUtilitySum("c1", 3), 0);
+		assertEquals(0, aggregates.getUtilitySum("c1", -1), 0);
+		assertEquals(-0.5, aggregates.getUtilitySum("nc1", 2), 0);
+		assertEquals(0, aggregates.getRatioCount());
+	}
+
+	@Test
+	public void testRatiosCappedAndWithoutDemandSkipped() {
+		ParticleAggregates aggregates = new ParticleAggregates();
+		for (int t = 0; t < 200; t++) {
+			aggregates.add("c1", t, record(0, 0.5, 0.25, 1));
+		}
+		aggregates.add("c1", 200, record(0, 0.5, 1.0, 1));
+		aggregates.add("c1", 201, record(0, 0, 1.0, 1));
+
+		assertEquals(201, aggregates.getRatioCount());
+		assertEquals(0.5, aggregates.getRatio(0), 0);
+		assertEquals(1.0, aggregates.getRatio(200), 0);
+
+		aggregates.clear();
+		assertTrue(aggregates.isEmpty());
+	}
+
+	@Test
+	public void testWrittenAsRecords() throws IOException {
+		ParticleAggregates aggregates = new ParticleAggregates();
+		aggregates.add("c1", 4, record(0.5, 0.5, 0.25, 2));
+		aggregates.add("c1", 5, record(0.5, 0.5, 0.5, 2));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RecordWriter out = new RecordWriter(Channels.newChannel(bytes), Format.BINARY);
+		aggregates.writeUtility(out, 9);
+		aggregates.writeRatios(out, 9);
+		out.close();
+
+		RecordReader in = new RecordReader(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())),
+				Format.BINARY);
+		assertTrue(in.next());
+		assertEquals(9, in.readLong());
+		assertEquals("c1", in.readString());
+		assertEquals(2, in.readInt());
+		assertEquals(1.0, in.readDouble(), 0);
+
+		for (int t = 4; t <= 5; t++) {
+			assertTrue(in.next());
+			assertEquals(9, in.readLong());
+			assertEquals("c1", in.readString());
+			assertEquals(t, in.readInt());
+			assertEquals(2, in.readInt());
+			assertEquals(t == 4 ? 0.5 : 1.0, in.readDouble(), 0);
+		}
+		assertFalse(in.next());
+		in.close();
+	}
+
+}
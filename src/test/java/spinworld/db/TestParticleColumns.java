@@ -0,0 +1,119 @@
+package spinworld.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TestParticleColumns {
+
+	private ParticleRoundRecord record(double g, double u, int network) {
+		ParticleRoundRecord r = new ParticleRoundRecord();
+		r.g = g;
+		r.u = u;
+		r.satisfaction = g / 2;
+		r.risk = u / 2;
+		r.network = network;
+		return r;
+	}
+
+	private ParticleColumnReader writeAndOpen(ParticleColumnWriter writer, long simId) throws IOException {
+		File file = File.createTempFile("particles", ".cols");
+		file.deleteOnExit();
+		writer.write(file.toPath(), simId);
+		return ParticleColumnReader.open(file.toPath());
+	}
+
+	@Test
+	public void testReadByParticleAndRound() throws IOException {
+		ParticleColumnWriter writer = new ParticleColumnWriter();
+		for (int t = 3; t <= 6; t++) {
+			writer.add(0, "c0", t, record(t, -t, 1));
+			// nc1 only joins from round 5
+			if (t >= 5)
+				writer.add(1, "nc1", t, record(10 * t, 0.5, t == 6 ? -1 : 2));
+		}
+
+		ParticleColumnReader columns = writeAndOpen(writer, 42);
+		assertEquals(42, columns.getSimId());
+		assertEquals(2, columns.getSize());
+		assertEquals(1, columns.indexOf("nc1"));
+		assertEquals(-1, columns.indexOf("c9"));
+		assertEquals(3, columns.getFirstRound());
+		assertEquals(6, columns.getLastRound());
+
+		assertEquals(4.0, columns.get(ParticleColumn.g, 0, 4), 0);
+		assertEquals(-4.0, columns.get(ParticleColumn.U, 0, 4), 0);
+		assertEquals(2.0, columns.get(ParticleColumn.satisfaction, 0, 4), 0);
+		assertEquals(60.0, columns.get(ParticleColumn.g, 1, 6), 0);
+		assertEquals(0.25, columns.get(ParticleColumn.risk, 1, 5), 0);
+		assertEquals(1, columns.getNetwork(0, 3));
+		assertEquals(2, columns.getNetwork(1, 5));
+		assertEquals(-1, columns.getNetwork(1, 6));
+
+		assertFalse(columns.has(1, 4));
+		assertTrue(Double.isNaN(columns.get(ParticleColumn.g, 1, 4)));
+		assertTrue(Double.isNaN(columns.get(ParticleColumn.g, 0, 7)));
+		assertEquals(-1, columns.getNetwork(1, 3));
+
+		DoubleBuffer series = columns.getSeries(ParticleColumn.U, 0);
+		assertEquals(4, series.remaining());
+		for (int i = 0; i < 4; i++)
+			assertEquals(-(3 + i), series.get(i), 0);
+
+		columns.close();
+		// Still mapped once closed
+		assertEquals(5.0, columns.get(ParticleColumn.g, 0, 5), 0);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		ParticleColumnReader columns = writeAndOpen(new ParticleColumnWriter(), 1);
+		assertEquals(0, columns.getSize());
+		assertFalse(columns.has(0, 1));
+		columns.close();
+	}
+
+	@Test
+	public void testOfSimulation() throws IOException {
+		ParticleColumnWriter writer = new ParticleColumnWriter();
+		writer.add(0, "c0", 1, record(1, 1, 1));
+		writer.add(1, "nc1", 1, record(1, 1, 1));
+		ParticleColumnReader columns = writeAndOpen(writer, 7);
+
+		assertTrue(columns.isOf(7, Arrays.asList("c0", "nc1", "c2")));
+		// Another simulation with the same id, in another database
+		assertFalse(columns.isOf(7, Arrays.asList("c0", "c1")));
+		assertFalse(columns.isOf(8, Arrays.asList("c0", "nc1")));
+		columns.close();
+	}
+
+	@Test
+	public void testKeptPerDatabase() {
+		Properties a = new Properties();
+		a.setProperty("url", "jdbc:postgresql://localhost:5432/spinworld");
+		Properties b = new Properties();
+		b.setProperty("url", "jdbc:postgresql://otherhost/spinworld");
+
+		assertEquals("postgresql_localhost_5432_spinworld", ParticleColumnWriter.getDatabaseKey(a));
+		assertFalse(ParticleColumnWriter.getFile(a, 1).equals(ParticleColumnWriter.getFile(b, 1)));
+		assertEquals(ParticleColumnWriter.getFile(a, 1), ParticleColumnWriter.getFile(a, 1));
+	}
+
+	@Test
+	public void testColumnsByProperty() {
+		assertEquals(ParticleColumn.rP, ParticleColumn.forProperty("r'"));
+		assertEquals(ParticleColumn.satisfaction, ParticleColumn.forProperty("o"));
+		assertEquals(ParticleColumn.U, ParticleColumn.forProperty("U"));
+		assertNull(ParticleColumn.forProperty("network"));
+	}
+
+}
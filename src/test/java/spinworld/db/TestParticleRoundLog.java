@@ -0,0 +1,84 @@
+package spinworld.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
+
+public class TestParticleRoundLog {
+
+	ParticleRegistry particles;
+	ParticleRoundLog log;
+	UUID[] ids;
+
+	@Before
+	public void setUp() {
+		particles = new ParticleRegistry();
+		log = new ParticleRoundLog(particles);
+		ids = new UUID[3];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = UUID.randomUUID();
+			particles.register(new Particle(ids[i]));
+		}
+	}
+
+	private ParticleRoundRecord record(double g, int network) {
+		ParticleRoundRecord r = new ParticleRoundRecord();
+		r.g = g;
+		r.u = -g;
+		r.risk = g / 2;
+		r.network = network;
+		return r;
+	}
+
+	@Test
+	public void testAppendAndRead() {
+		log.append(ids[2], 5, record(0.5, 1));
+		log.append(ids[0], 5, record(0.25, -1));
+
+		int[] rounds = log.getRounds();
+		assertEquals(1, rounds.length);
+		assertEquals(5, rounds[0]);
+		assertEquals(3, log.getSize(5));
+
+		ParticleRoundRecord r = new ParticleRoundRecord();
+		assertTrue(log.read(5, 0, r));
+		assertEquals(0.25, r.g, 0);
+		assertEquals(-1, r.network);
+		assertFalse(log.read(5, 1, r));
+		assertTrue(log.read(5, 2, r));
+		assertEquals(-0.5, r.u, 0);
+		assertEquals(0.25, r.risk, 0);
+		assertFalse(log.read(6, 2, r));
+	}
+
+	@Test
+	public void testReleaseAndGrow() {
+		// More outstanding rounds than the initial ring holds
+		for (int round = 1; round <= 20; round++) {
+			log.append(ids[round % 3], round, record(round, 0));
+		}
+		assertEquals(20, log.getRounds().length);
+
+		ParticleRoundRecord r = new ParticleRoundRecord();
+		for (int round = 1; round <= 20; round++) {
+			assertTrue(log.read(round, round % 3, r));
+			assertEquals(round, r.g, 0);
+			log.release(round);
+		}
+		assertEquals(0, log.getRounds().length);
+
+		// Released blocks are reused without stale rows
+		log.append(ids[0], 21, record(1, 0));
+		assertFalse(log.read(21, 1, r));
+		assertFalse(log.read(21, 2, r));
+	}
+
+}
@@ -0,0 +1,119 @@
+package spinworld.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import spinworld.db.RecordWriter.Format;
+
+public class TestRecordWriter {
+
+	static final double[] values = { 0.0, 1.0, -1.5, 0.1, 1.0 / 3, 0.999999999999999, 123456.789, -0.000001,
+			2.5e20, Double.NaN };
+
+	private byte[] write(Format format) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RecordWriter out = new RecordWriter(Channels.newChannel(bytes), format);
+		for (int i = 0; i < values.length; i++) {
+			out.writeLong(1234567890123L).writeString("c" + i).writeInt(-i).writeDouble(values[i]).endRecord();
+		}
+		out.writeLong(7).writeString("tab\there\\").writeInt(0).writeDouble(0).endRecord();
+		out.close();
+		assertEquals(values.length + 1, out.getRecordCount());
+		return bytes.toByteArray();
+	}
+
+	private void readBack(Format format, byte[] data, double tolerance) throws IOException {
+		RecordReader in = new RecordReader(Channels.newChannel(new ByteArrayInputStream(data)), format);
+		for (int i = 0; i < values.length; i++) {
+			assertTrue(in.next());
+			assertEquals(1234567890123L, in.readLong());
+			assertEquals("c" + i, in.readString());
+			assertEquals(-i, in.readInt());
+			assertEquals(values[i], in.readDouble(), tolerance);
+		}
+		assertTrue(in.next());
+		assertEquals(7, in.readLong());
+		assertEquals("tab\there\\", in.readString());
+		assertFalse(in.next());
+		in.close();
+	}
+
+	@Test
+	public void testTextRoundTrip() throws IOException {
+		readBack(Format.TEXT, write(Format.TEXT), 1e-12);
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException {
+		readBack(Format.BINARY, write(Format.BINARY), 0);
+	}
+
+	@Test
+	public void testTextLayout() throws IOException {
+		String text = new String(write(Format.TEXT), RecordWriter.UTF8);
+		String[] lines = text.split("\n");
+		assertEquals(values.length + 1, lines.length);
+		assertEquals("1234567890123\tc0\t0\t0.0", lines[0]);
+		assertEquals("1234567890123\tc2\t-2\t-1.5", lines[2]);
+		assertEquals("1234567890123\tc3\t-3\t0.1", lines[3]);
+		assertEquals("1234567890123\tc4\t-4\t0.333333333333", lines[4]);
+		assertEquals("7\ttab\\there\\\\\t0\t0.0", lines[values.length]);
+	}
+
+	@Test
+	public void testNonAsciiEscaped() throws IOException {
+		String[] names = { "\u00e9\tx", "na\u00efve\\path\nnext", "\ud83d\ude00\r\u00e9", "\ud83d" };
+		for (Format format : Format.values()) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			RecordWriter out = new RecordWriter(Channels.newChannel(bytes), format);
+			for (String name : names)
+				out.writeString(name).writeInt(1).endRecord();
+			out.close();
+
+			if (format == Format.TEXT) {
+				String text = new String(bytes.toByteArray(), RecordWriter.UTF8);
+				assertEquals("\u00e9\\tx\t1\nna\u00efve\\\\path\\nnext\t1\n\ud83d\ude00\\r\u00e9\t1\n?\t1\n", text);
+			}
+
+			RecordReader in = new RecordReader(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())),
+					format);
+			for (int i = 0; i < 3; i++) {
+				assertTrue(in.next());
+				assertEquals(names[i], in.readString());
+				assertEquals(1, in.readInt());
+			}
+			assertTrue(in.next());
+			assertEquals("?", in.readString());
+			assertFalse(in.next());
+			in.close();
+		}
+	}
+
+	@Test
+	public void testExactDoubles() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RecordWriter out = new RecordWriter(Channels.newChannel(bytes), Format.TEXT).exactDoubles();
+		for (double v : new double[] { 1.0 / 3, 4e-13, -0.000001, 2.5e20 })
+			out.writeDouble(v).endRecord();
+		out.close();
+
+		byte[] data = bytes.toByteArray();
+		assertEquals("0.3333333333333333\n4.0E-13\n-1.0E-6\n2.5E20\n", new String(data, RecordWriter.UTF8));
+
+		RecordReader in = new RecordReader(Channels.newChannel(new ByteArrayInputStream(data)), Format.TEXT);
+		assertTrue(in.next());
+		assertEquals(1.0 / 3, in.readDouble(), 0);
+		assertTrue(in.next());
+		assertEquals(4e-13, in.readDouble(), 0);
+		in.close();
+	}
+
+}
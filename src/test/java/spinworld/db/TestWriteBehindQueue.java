@@ -0,0 +1,241 @@
+package spinworld.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import spinworld.db.WriteBehindQueue.WhenFull;
+import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
+
+public class TestWriteBehindQueue {
+
+	// Keeps every batch written; holds writers back until released
+	static class Sinks implements WriteBehindQueue.SinkFactory {
+		final List<ParticleRoundBatch> written = Collections.synchronizedList(new ArrayList<ParticleRoundBatch>());
+		final CountDownLatch release;
+		int closed = 0;
+
+		Sinks(boolean held) {
+			release = new CountDownLatch(held ? 1 : 0);
+		}
+
+		@Override
+		public WriteBehindQueue.Sink open() {
+			return new WriteBehindQueue.Sink() {
+				@Override
+				public void write(List<ParticleRoundBatch> batches) throws IOException {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					written.addAll(batches);
+				}
+
+				@Override
+				public void close() {
+					synchronized (Sinks.this) {
+						closed++;
+					}
+				}
+			};
+		}
+
+		ParticleRoundBatch get(int round) {
+			synchronized (written) {
+				for (ParticleRoundBatch batch : written) {
+					if (batch.getRound() == round)
+						return batch;
+				}
+			}
+			return null;
+		}
+	}
+
+	private ParticleRoundBatch batch(int round) {
+		double[] values = new double[2 * ParticleRoundBatch.DOUBLES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = round + i / 100.0;
+		return new ParticleRoundBatch(round, new int[] { 0, 2 }, new String[] { "c1", "nc1" }, new int[] { 1, -1 },
+				values, ParticleRoundBatch.DOUBLES);
+	}
+
+	@Test
+	public void testCopiedFromRoundLog() {
+		ParticleRegistry particles = new ParticleRegistry();
+		ParticleRoundLog log = new ParticleRoundLog(particles);
+		UUID[] ids = new UUID[3];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = UUID.randomUUID();
+			particles.register(new Particle(ids[i]));
+		}
+
+		ParticleRoundRecord r = new ParticleRoundRecord();
+		r.g = 0.5;
+		r.risk = 0.25;
+		r.network = 3;
+		log.append(ids[2], 7, r);
+
+		ParticleRoundBatch batch = ParticleRoundBatch.copyOf(log, 7, new ParticleRoundRecord());
+		log.release(7);
+		assertEquals(7, batch.getRound());
+		assertEquals(1, batch.size());
+		assertEquals(2, batch.getIndex(0));
+
+		ParticleRoundRecord read = new ParticleRoundRecord();
+		batch.read(0, read);
+		assertEquals(0.5, read.g, 0);
+		assertEquals(0.25, read.risk, 0);
+		assertEquals(3, read.network);
+
+		batch.withoutDiagnostics().read(0, read);
+		assertEquals(0.5, read.g, 0);
+		assertTrue(Double.isNaN(read.risk));
+		assertEquals(3, read.network);
+	}
+
+	@Test
+	public void testEveryRoundWritten() throws Exception {
+		Sinks sinks = new Sinks(false);
+		WriteBehindQueue queue = new WriteBehindQueue(sinks, 2, 4, WhenFull.BLOCK);
+		for (int round = 1; round <= 100; round++)
+			queue.put(batch(round));
+		queue.close();
+
+		assertEquals(100, sinks.written.size());
+		for (int round = 1; round <= 100; round++)
+			assertEquals(round, sinks.get(round).getRound());
+		assertEquals(200, queue.getRowCount());
+		assertEquals(0, queue.getDepth());
+		assertTrue(queue.getMaxDepth() <= 4);
+		assertEquals(2, sinks.closed);
+	}
+
+	@Test
+	public void testSpilledWhenFull() throws Exception {
+		Sinks sinks = new Sinks(true);
+		WriteBehindQueue queue = new WriteBehindQueue(sinks, 1, 2, WhenFull.SPILL);
+		for (int round = 1; round <= 10; round++)
+			queue.put(batch(round));
+		assertTrue(queue.getSpilledRounds() >= 8);
+		sinks.release.countDown();
+		queue.close();
+
+		assertEquals(10, sinks.written.size());
+		ParticleRoundBatch spilled = sinks.get(10);
+		ParticleRoundRecord expected = new ParticleRoundRecord();
+		ParticleRoundRecord read = new ParticleRoundRecord();
+		batch(10).read(1, expected);
+		spilled.read(1, read);
+		assertEquals(expected.toString(), read.toString());
+		assertEquals("nc1", spilled.getName(1));
+		assertEquals(2, spilled.getIndex(1));
+	}
+
+	@Test
+	public void testDiagnosticsDroppedWhenFull() throws Exception {
+		Sinks sinks = new Sinks(true);
+		WriteBehindQueue queue = new WriteBehindQueue(sinks, 1, 2, WhenFull.DROP_DIAGNOSTICS);
+		for (int round = 1; round <= 3; round++)
+			queue.put(batch(round));
+		sinks.release.countDown();
+		queue.close();
+
+		assertEquals(1, queue.getSlimmedRounds());
+		assertTrue(sinks.get(1).hasDiagnostics());
+		assertFalse(sinks.get(3).hasDiagnostics());
+
+		ParticleRoundRecord read = new ParticleRoundRecord();
+		sinks.get(3).read(0, read);
+		assertEquals(3.0, read.g, 0);
+		assertTrue(Double.isNaN(read.satisfaction));
+	}
+
+	@Test
+	public void testWriterFailureReported() throws Exception {
+		WriteBehindQueue queue = new WriteBehindQueue(new WriteBehindQueue.SinkFactory() {
+			@Override
+			public WriteBehindQueue.Sink open() throws SQLException {
+				throw new SQLException("no connection");
+			}
+		}, 1, 2, WhenFull.BLOCK);
+		try {
+			queue.put(batch(1));
+			queue.close();
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof SQLException);
+		}
+	}
+
+	// A writer that fails its first write once released
+	private WriteBehindQueue.SinkFactory failing(final CountDownLatch release) {
+		return new WriteBehindQueue.SinkFactory() {
+			@Override
+			public WriteBehindQueue.Sink open() {
+				return new WriteBehindQueue.Sink() {
+					@Override
+					public void write(List<ParticleRoundBatch> batches) throws IOException {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+						throw new IOException("disk full");
+					}
+
+					@Override
+					public void close() {
+					}
+				};
+			}
+		};
+	}
+
+	@Test
+	public void testBlockedPutWokenByFailure() throws Exception {
+		WriteBehindQueue queue = new WriteBehindQueue(failing(new CountDownLatch(0)), 1, 1, WhenFull.BLOCK);
+		try {
+			queue.put(batch(1));
+			queue.put(batch(2));
+			queue.put(batch(3));
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void testSpillRemovedOnFailure() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		WriteBehindQueue queue = new WriteBehindQueue(failing(release), 1, 1, WhenFull.SPILL);
+		for (int round = 1; round <= 5; round++)
+			queue.put(batch(round));
+		Path spillFile = queue.spillFile;
+		assertTrue(Files.exists(spillFile));
+
+		release.countDown();
+		try {
+			queue.close();
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertFalse(Files.exists(spillFile));
+	}
+
+}
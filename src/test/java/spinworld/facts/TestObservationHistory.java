@@ -0,0 +1,46 @@
+package spinworld.facts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestObservationHistory {
+
+	@Test
+	public void testUnboundedCounts() {
+		ObservationHistory history = new ObservationHistory(3);
+		assertTrue(history.isEmpty());
+
+		for (int i = 0; i < 1000; i++) {
+			history.add(i % 3);
+		}
+
+		assertEquals(1000, history.size());
+		assertEquals(334, history.count(0));
+		assertEquals(333, history.count(1));
+		assertEquals(333, history.count(2));
+	}
+
+	@Test
+	public void testWindowForgetsOldest() {
+		ObservationHistory history = new ObservationHistory(2, 4);
+		history.add(1);
+		history.add(1);
+		history.add(0);
+		history.add(0);
+		assertEquals(4, history.size());
+		assertEquals(2, history.count(1));
+
+		history.add(0);
+		history.add(0);
+		assertEquals(4, history.size());
+		assertEquals(0, history.count(1));
+		assertEquals(4, history.count(0));
+
+		history.add(1);
+		assertEquals(1, history.count(1));
+		assertEquals(3, history.count(0));
+	}
+
+}
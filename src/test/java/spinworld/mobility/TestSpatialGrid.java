@@ -0,0 +1,53 @@
+package spinworld.mobility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestSpatialGrid {
+
+	@Test
+	public void testNeighbourhood() {
+		SpatialGrid<String> grid = new SpatialGrid<String>(20, 1);
+		grid.put("a", 5, 5);
+		grid.put("b", 6, 6);
+		grid.put("c", 15, 15);
+
+		Set<String> near = grid.getNeighbours(5, 5);
+		assertTrue(near.contains("a"));
+		assertTrue(near.contains("b"));
+		assertFalse(near.contains("c"));
+	}
+
+	@Test
+	public void testWrapsAtEdges() {
+		SpatialGrid<String> grid = new SpatialGrid<String>(20, 1);
+		grid.put("a", 0, 0);
+		grid.put("b", 19, 19);
+		grid.put("c", 19, 10);
+
+		Set<String> near = grid.getNeighbours(0, 0);
+		assertTrue(near.contains("b"));
+		assertFalse(near.contains("c"));
+	}
+
+	@Test
+	public void testMove() {
+		SpatialGrid<String> grid = new SpatialGrid<String>(20, 1);
+		grid.put("a", 2, 2);
+		grid.put("a", 12, 12);
+
+		assertEquals(1, grid.size());
+		assertFalse(grid.getNeighbours(2, 2).contains("a"));
+		assertTrue(grid.getNeighbours(12, 12).contains("a"));
+
+		grid.remove("a");
+		assertEquals(0, grid.size());
+		assertTrue(grid.getNeighbours(12, 12).isEmpty());
+	}
+
+}
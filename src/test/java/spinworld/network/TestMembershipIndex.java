@@ -0,0 +1,91 @@
+package spinworld.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.drools.KnowledgeBaseFactory;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.rule.FactHandle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import spinworld.facts.Allocation;
+import spinworld.facts.Particle;
+
+public class TestMembershipIndex {
+
+	StatefulKnowledgeSession session;
+	MembershipIndex index;
+
+	final Network n1 = new Network(1, Allocation.RANDOM);
+	final Network n2 = new Network(2, Allocation.RANDOM);
+	final Particle a = new Particle(UUID.randomUUID());
+	final Particle b = new Particle(UUID.randomUUID());
+	final Particle c = new Particle(UUID.randomUUID());
+
+	@Before
+	public void setUp() {
+		session = KnowledgeBaseFactory.newKnowledgeBase().newStatefulKnowledgeSession();
+		index = new MembershipIndex();
+		session.addEventListener(index);
+	}
+
+	@After
+	public void tearDown() {
+		session.dispose();
+	}
+
+	@Test
+	public void testMembershipsFollowInsertAndRetract() {
+		session.insert(n1);
+		session.insert(n2);
+		session.insert(new MemberOf(a, n1));
+		FactHandle bInN1 = session.insert(new MemberOf(b, n1));
+		session.insert(new MemberOf(c, n2));
+
+		assertEquals(2, index.getNetworks().size());
+		assertEquals(2, index.getMembers(n1).size());
+		assertTrue(index.getMembers(n1).contains(new MemberOf(b, n1)));
+		assertEquals(n2, index.getMemberOf(c.getId()).getNetwork());
+
+		// Leaving one network for another
+		session.retract(bInN1);
+		session.insert(new MemberOf(b, n2));
+
+		assertEquals(1, index.getMembers(n1).size());
+		assertEquals(2, index.getMembers(n2).size());
+		assertEquals(n2, index.getMemberOf(b.getId()).getNetwork());
+	}
+
+	@Test
+	public void testDeletedNetworkForgotten() {
+		FactHandle network = session.insert(n1);
+		FactHandle aInN1 = session.insert(new MemberOf(a, n1));
+
+		session.retract(aInN1);
+		assertNull(index.getMemberOf(a.getId()));
+		assertTrue(index.getMembers(n1).isEmpty());
+
+		session.retract(network);
+		assertTrue(index.getNetworks().isEmpty());
+		assertTrue(index.getMembers(n1).isEmpty());
+	}
+
+	@Test
+	public void testLaterMembershipNotRemovedByOlderOne() {
+		session.insert(n1);
+		session.insert(n2);
+		FactHandle aInN1 = session.insert(new MemberOf(a, n1));
+		session.insert(new MemberOf(a, n2));
+
+		// The old membership leaving must not drop the particle's current one
+		session.retract(aInN1);
+		assertEquals(n2, index.getMemberOf(a.getId()).getNetwork());
+		assertTrue(index.getMembers(n1).isEmpty());
+	}
+
+}
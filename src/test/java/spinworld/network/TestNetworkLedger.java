@@ -0,0 +1,74 @@
+package spinworld.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import spinworld.facts.Allocation;
+
+public class TestNetworkLedger {
+
+	static final double EPSILON = 1e-9;
+
+	final Network network = new Network(0, Allocation.RANDOM, 0.5, 0.1, 2, 0.1, 0.6, 0.5);
+
+	@Test
+	public void testRoundPhases() {
+		NetworkLedger ledger = new NetworkLedger(network);
+		ledger.provide(1, 1.0);
+		ledger.provide(1, 0.5);
+		assertEquals(1.5, ledger.getProvisionPool(), EPSILON);
+		assertEquals(1.5, ledger.getAllocationPool(), EPSILON);
+
+		assertTrue(ledger.chargeMonitoring(1, 0.1));
+		assertTrue(ledger.chargeMonitoring(1, 0.1));
+		assertEquals(1.3, ledger.getAllocationPool(), EPSILON);
+
+		// Appropriations are served from what was allocated, not from the emptied provision pool
+		assertEquals(1.3, ledger.allocate(1), EPSILON);
+		assertEquals(0, ledger.getProvisionPool(), EPSILON);
+		assertEquals(1.0, ledger.appropriate(1, 1.0), EPSILON);
+		assertEquals(0.3, ledger.appropriate(1, 1.0), EPSILON);
+		assertEquals(0, ledger.appropriate(1, 1.0), EPSILON);
+		assertEquals(0, ledger.settleSurplus(1), EPSILON);
+
+		assertEquals(1, ledger.getRound());
+		assertEquals(1.5, ledger.getProvided(), EPSILON);
+		assertEquals(0.2, ledger.getMonitoringSpent(), EPSILON);
+		assertEquals(2, ledger.getMonitored());
+		assertEquals(1.3, ledger.getAllocated(), EPSILON);
+		assertEquals(1.3, ledger.getAppropriated(), EPSILON);
+	}
+
+	@Test
+	public void testMonitoringNeedsMoreThanItsCost() {
+		NetworkLedger ledger = new NetworkLedger(network);
+		ledger.provide(1, 0.15);
+		assertTrue(ledger.chargeMonitoring(1, 0.1));
+		assertFalse(ledger.chargeMonitoring(1, 0.1));
+		assertEquals(0.05, ledger.getProvisionPool(), EPSILON);
+		assertEquals(0.05, ledger.getAllocationPool(), EPSILON);
+		assertEquals(1, ledger.getMonitored());
+	}
+
+	@Test
+	public void testSurplusDroppedAndFiguresStartedOver() {
+		NetworkLedger ledger = new NetworkLedger(network);
+		ledger.provide(1, 1.0);
+		ledger.allocate(1);
+		ledger.appropriate(1, 0.4);
+		assertEquals(0.6, ledger.settleSurplus(1), EPSILON);
+		assertEquals(0.6, ledger.getSurplus(), EPSILON);
+		assertEquals(0, ledger.getAllocationPool(), EPSILON);
+
+		ledger.provide(2, 0.2);
+		assertEquals(2, ledger.getRound());
+		assertEquals(0.2, ledger.getProvided(), EPSILON);
+		assertEquals(0, ledger.getAppropriated(), EPSILON);
+		assertEquals(0, ledger.getSurplus(), EPSILON);
+		assertEquals(0.2, ledger.getAllocationPool(), EPSILON);
+	}
+
+}
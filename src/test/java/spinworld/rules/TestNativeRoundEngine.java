@@ -0,0 +1,354 @@
+package spinworld.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+import org.drools.runtime.ObjectFilter;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import spinworld.RoundType;
+import spinworld.actions.Appropriate;
+import spinworld.actions.CreateNetwork;
+import spinworld.actions.Demand;
+import spinworld.actions.Generate;
+import spinworld.actions.JoinNetwork;
+import spinworld.actions.LeaveNetwork;
+import spinworld.actions.Provision;
+import spinworld.db.NetworkRoundStats;
+import spinworld.facts.Allocation;
+import spinworld.facts.Particle;
+import spinworld.facts.ParticleRegistry;
+import spinworld.facts.Round;
+import spinworld.facts.RoundLedgers;
+import spinworld.network.MemberOf;
+import spinworld.network.MembershipIndex;
+import spinworld.network.Network;
+import spinworld.network.NetworkLedger;
+import uk.ac.imperial.presage2.rules.RuleModule;
+import uk.ac.imperial.presage2.util.location.Location;
+
+/*
+ * Plays the same scripted agents against the Drools and the native engine and compares
+ * particles, memberships and networks after every cycle.
+ */
+public class TestNativeRoundEngine {
+
+	final private Logger logger = Logger.getLogger(TestNativeRoundEngine.class);
+
+	static final double EPSILON = 1e-9;
+
+	// Chances of a scripted agent cheating, leaving its network and joining one
+	static final double CHEAT = 0.3;
+	static final double LEAVE = 0.05;
+	static final double JOIN = 0.2;
+
+	@Test
+	public void testSameOutcomesAsDrools() {
+		for (long seed = 1; seed <= 3; seed++) {
+			World drools = droolsWorld(seed, 40, 4);
+			World fast = nativeWorld(seed, 40, 4);
+
+			int expelled = 0;
+			for (int cycle = 1; cycle <= 80; cycle++) {
+				drools.cycle();
+				fast.cycle();
+				assertSameState(drools, fast, "seed " + seed + ", cycle " + cycle);
+			}
+
+			for (Network n : drools.everyNetwork) {
+				expelled += n.getNoBannedParticles();
+			}
+			assertTrue("Sanctions were exercised", expelled > 0);
+			assertEquals(drools.stats.size(), fast.stats.size());
+
+			drools.session.dispose();
+			fast.session.dispose();
+		}
+	}
+
+	@Test
+	public void testExpulsionDeletesEmptyNetwork() {
+		Injector injector = Guice.createInjector(KnowledgeBaseCache.override(new RuleModule()));
+		StatefulKnowledgeSession session = injector.getInstance(StatefulKnowledgeSession.class);
+		ParticleRegistry particles = new ParticleRegistry();
+		NativeRoundEngine engine = new NativeRoundEngine(session, particles);
+		engine.setGlobal("draws", new RoundDraws(1));
+
+		// Every member monitored, appeals never won
+		Network n = new Network(0, Allocation.RANDOM, 1.0, 0.01, 2, 0.1, 0.6, 1.0);
+		session.insert(n);
+
+		Random rnd = new Random(1);
+		List<Object> generated = new ArrayList<Object>();
+		for (int i = 0; i < 2; i++) {
+			Particle p = new Particle(new UUID(0, i), "p" + i, "C", 0.1, 0.1, 10, 1, new Location(i, i));
+			particles.register(p);
+			session.insert(p);
+			session.insert(new MemberOf(p, n));
+			generated.add(new Generate(p, 1, rnd));
+		}
+		engine.insert(generated);
+		engine.play(RoundType.INIT);
+
+		engine.insert(new Round(1, RoundType.DEMAND));
+		for (Particle p : particles.getParticles()) {
+			engine.insert(new Provision(1, p, p.getG()));
+			engine.insert(new Demand(1, p, p.getQ()));
+		}
+		engine.play(RoundType.DEMAND);
+		assertEquals(1, n.getLongevity());
+
+		// Both appropriate beyond the upper bound of severity
+		engine.insert(new Round(1, RoundType.APPROPRIATE));
+		for (Particle p : particles.getParticles()) {
+			engine.insert(new Appropriate(1, p, p.getAllocated() + 0.7));
+		}
+		engine.play(RoundType.APPROPRIATE);
+
+		for (Particle p : particles.getParticles()) {
+			assertTrue(n.isBanned(p));
+		}
+		assertEquals(0, count(session, MemberOf.class));
+		assertEquals(0, count(session, Network.class));
+		assertEquals(0, count(session, NetworkLedger.class));
+		session.dispose();
+	}
+
+	private int count(StatefulKnowledgeSession session, final Class<?> type) {
+		return session.getObjects(new ObjectFilter() {
+			@Override
+			public boolean accept(Object object) {
+				return type.isInstance(object);
+			}
+		}).size();
+	}
+
+	private World droolsWorld(long seed, int agents, int networks) {
+		Injector injector = Guice.createInjector(KnowledgeBaseCache.override(new RuleModule(),
+				"SpinWorld.drl", "Institution.drl", "RandomAllocation.drl"));
+		StatefulKnowledgeSession session = injector.getInstance(StatefulKnowledgeSession.class);
+
+		RoundEngine engine = new DroolsRoundEngine(session);
+		engine.setGlobal("session", session);
+		engine.setGlobal("ledgers", new RoundLedgers());
+		return new World(session, engine, new ParticleRegistry(), seed, agents, networks);
+	}
+
+	private World nativeWorld(long seed, int agents, int networks) {
+		Injector injector = Guice.createInjector(KnowledgeBaseCache.override(new RuleModule()));
+		StatefulKnowledgeSession session = injector.getInstance(StatefulKnowledgeSession.class);
+
+		ParticleRegistry particles = new ParticleRegistry();
+		return new World(session, new NativeRoundEngine(session, particles), particles, seed, agents, networks);
+	}
+
+	private void assertSameState(World a, World b, String at) {
+		for (int i = 0; i < a.particles.size(); i++) {
+			Particle p = a.particles.get(i);
+			Particle r = b.particles.get(i);
+			String of = " of " + p.getName() + " at " + at;
+
+			assertEquals("g" + of, p.getG(), r.getG(), EPSILON);
+			assertEquals("q" + of, p.getQ(), r.getQ(), EPSILON);
+			assertEquals("d" + of, p.getD(), r.getD(), EPSILON);
+			assertEquals("allocated" + of, p.getAllocated(), r.getAllocated(), EPSILON);
+			assertEquals("appropriated" + of, p.getAppropriated(), r.getAppropriated(), EPSILON);
+			assertEquals("catch rate" + of, p.getObservedCatchRate(), r.getObservedCatchRate(), EPSILON);
+			assertEquals("risk rate" + of, p.getObservedRiskRate(), r.getObservedRiskRate(), EPSILON);
+			assertEquals("network" + of, a.networkOf(p), b.networkOf(r));
+		}
+
+		List<Network> na = a.networks();
+		List<Network> nb = b.networks();
+		assertEquals("networks at " + at, ids(na), ids(nb));
+
+		for (int k = 0; k < na.size(); k++) {
+			Network n = na.get(k);
+			Network r = nb.get(k);
+			String of = " of " + n + " at " + at;
+
+			assertEquals("monitoring" + of, n.getMonitoringLevel(), r.getMonitoringLevel(), EPSILON);
+			assertEquals("compliant rounds" + of, n.getCompliantRounds(), r.getCompliantRounds());
+			assertEquals("longevity" + of, n.getLongevity(), r.getLongevity());
+			assertEquals("bans" + of, n.getNoBannedParticles(), r.getNoBannedParticles());
+			assertEquals("utilities" + of, n.getUtilityData().getN(), r.getUtilityData().getN());
+			assertEquals("utility" + of, n.getUtilityData().getSum(), r.getUtilityData().getSum(), EPSILON);
+
+			NetworkLedger l = a.index.getLedger(n);
+			NetworkLedger m = b.index.getLedger(r);
+			assertEquals("ledger round" + of, l.getRound(), m.getRound());
+			assertEquals("provided" + of, l.getProvided(), m.getProvided(), EPSILON);
+			assertEquals("monitored" + of, l.getMonitored(), m.getMonitored());
+			assertEquals("allocated" + of, l.getAllocated(), m.getAllocated(), EPSILON);
+			assertEquals("appropriated" + of, l.getAppropriated(), m.getAppropriated(), EPSILON);
+			assertEquals("surplus" + of, l.getSurplus(), m.getSurplus(), EPSILON);
+
+			for (int i = 0; i < a.particles.size(); i++) {
+				assertEquals("warnings" + of, n.getWarningCount(a.particles.get(i)),
+						r.getWarningCount(b.particles.get(i)));
+			}
+		}
+	}
+
+	private List<Integer> ids(List<Network> networks) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Network n : networks) {
+			ids.add(n.getId());
+		}
+		return ids;
+	}
+
+	/*
+	 * Agents scripted from a seed, acting as SpinWorldAgent does through its services:
+	 * memberships go straight into the session, actions are inserted at the commit. Every
+	 * agent takes the same draws each cycle, so both worlds script the same moves for as
+	 * long as they agree.
+	 */
+	class World {
+
+		final StatefulKnowledgeSession session;
+		final RoundEngine engine;
+		final ParticleRegistry particles;
+		final MembershipIndex index = new MembershipIndex();
+		final NetworkRoundStats stats = new NetworkRoundStats();
+		final List<Network> everyNetwork = new ArrayList<Network>();
+		final Random script;
+		final Random generator;
+		final List<Object> actions = new ArrayList<Object>();
+
+		RoundType round = RoundType.INIT;
+		int number = 0;
+
+		World(StatefulKnowledgeSession session, RoundEngine engine, ParticleRegistry particles,
+				long seed, int agents, int networks) {
+			this.session = session;
+			this.engine = engine;
+			this.particles = particles;
+			this.script = new Random(seed);
+			this.generator = new Random(seed + 1);
+
+			session.addEventListener(index);
+			engine.setGlobal("logger", new RuleLogger(logger));
+			engine.setGlobal("stats", stats);
+			engine.setGlobal("draws", new RoundDraws(seed));
+
+			for (int n = 0; n < networks; n++) {
+				createNetwork();
+			}
+
+			for (int i = 0; i < agents; i++) {
+				Particle p = new Particle(new UUID(0, i), "p" + i, "C", 0.1, 0.1, 1, 1, new Location(i, i));
+				particles.register(p);
+				session.insert(p);
+				session.insert(new MemberOf(p, everyNetwork.get(i % networks)));
+			}
+
+			generate();
+		}
+
+		Network createNetwork() {
+			Network n = new Network(everyNetwork.size(), Allocation.RANDOM, 0.5, 0.1, 2, 0.1, 0.6, 0.5);
+			everyNetwork.add(n);
+			session.insert(n);
+			return n;
+		}
+
+		// One time cycle, as SpinWorldService and SpinWorldSimulation play it
+		void cycle() {
+			act();
+			engine.insert(actions);
+			actions.clear();
+			engine.play(round);
+
+			if (round == RoundType.DEMAND) {
+				round = RoundType.APPROPRIATE;
+				engine.insert(new Round(number, RoundType.APPROPRIATE));
+			} else {
+				round = RoundType.DEMAND;
+				engine.insert(new Round(++number, RoundType.DEMAND));
+			}
+
+			generate();
+		}
+
+		void generate() {
+			List<Object> generated = new ArrayList<Object>();
+			for (Particle p : particles.getParticles()) {
+				generated.add(new Generate(p, number + 1, generator));
+			}
+			engine.insert(generated);
+		}
+
+		void act() {
+			for (Particle p : particles.getParticles()) {
+				int i = particles.indexOf(p.getId());
+				boolean cheats = script.nextDouble() < CHEAT;
+				double move = script.nextDouble();
+				int choice = script.nextInt(1000);
+
+				p.setUtility(p.getAppropriated() - 0.5 * p.getD());
+				MemberOf m = index.getMemberOf(p.getId());
+
+				if (m == null) {
+					if (move < JOIN)
+						join(p, choice);
+				} else if (round == RoundType.DEMAND) {
+					double provision = cheats && i % 3 == 0 ? p.getG() / 2 : p.getG();
+					double demand = cheats && i % 3 == 1 ? p.getQ() * 1.5 + 0.05 : p.getQ();
+					actions.add(new Provision(number, p, provision));
+					actions.add(new Demand(number, p, demand));
+				} else if (round == RoundType.APPROPRIATE) {
+					double appropriation = cheats && i % 3 == 2 ? p.getAllocated() + 0.7 : p.getAllocated();
+					actions.add(new Appropriate(number, p, appropriation));
+
+					if (move < LEAVE) {
+						session.retract(session.getFactHandle(m));
+						actions.add(new LeaveNetwork(p, m.getNetwork()));
+					}
+				}
+			}
+		}
+
+		void join(Particle p, int choice) {
+			List<Network> networks = networks();
+			if (networks.isEmpty() || choice < 50) {
+				Network n = createNetwork();
+				session.insert(new MemberOf(p, n));
+				CreateNetwork c = new CreateNetwork(n, p);
+				c.setParticle(p);
+				actions.add(c);
+				return;
+			}
+
+			Network n = networks.get(choice % networks.size());
+			if (!n.isBanned(p)) {
+				session.insert(new MemberOf(p, n));
+				actions.add(new JoinNetwork(p, n));
+			}
+		}
+
+		int networkOf(Particle p) {
+			MemberOf m = index.getMemberOf(p.getId());
+			return m == null ? -1 : m.getNetwork().getId();
+		}
+
+		List<Network> networks() {
+			List<Network> networks = new ArrayList<Network>(index.getNetworks());
+			Collections.sort(networks, NativeRoundEngine.byId);
+			return networks;
+		}
+
+	}
+
+}
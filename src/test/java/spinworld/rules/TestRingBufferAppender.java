@@ -0,0 +1,79 @@
+package spinworld.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+public class TestRingBufferAppender {
+
+	private LoggingEvent event(Logger logger, String message) {
+		return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null);
+	}
+
+	@Test
+	public void testWritesInOrder() throws IOException {
+		File file = File.createTempFile("rules", ".log");
+		file.deleteOnExit();
+
+		RingBufferAppender appender = new RingBufferAppender();
+		appender.setFile(file.getPath());
+		appender.setLayout(new PatternLayout("%m%n"));
+		appender.activateOptions();
+
+		Logger logger = Logger.getLogger("spinworld.TestRingBufferAppender");
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+		logger.addAppender(appender);
+		for (int i = 0; i < 1000; i++) {
+			logger.info("event " + i);
+		}
+		appender.close();
+		logger.removeAppender(appender);
+
+		List<String> lines = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+		assertEquals(0, appender.getDropped());
+		assertEquals(1000, lines.size());
+		assertEquals("event 0", lines.get(0));
+		assertEquals("event 999", lines.get(999));
+	}
+
+	@Test
+	public void testOverwritesOldestWhenFull() {
+		RingBufferAppender appender = new RingBufferAppender();
+		appender.setBufferSize(3);
+		appender.setLayout(new PatternLayout("%m%n"));
+
+		// Fill the ring with no writer running, then drain it by hand
+		appender.ring = new LoggingEvent[4];
+		appender.writer = new Thread();
+		StringWriter out = new StringWriter();
+		appender.out = out;
+
+		Logger logger = Logger.getLogger("spinworld.TestRingBufferAppender");
+		for (int i = 0; i < 10; i++) {
+			appender.doAppend(event(logger, "event " + i));
+		}
+		assertEquals(6, appender.getDropped());
+
+		appender.stopping = true;
+		appender.drain();
+
+		String[] lines = out.toString().split("\r?\n");
+		assertEquals(5, lines.length);
+		assertEquals("... 6 log events dropped", lines[0]);
+		assertEquals("event 6", lines[1]);
+		assertEquals("event 9", lines[4]);
+	}
+
+}
@@ -0,0 +1,52 @@
+package spinworld.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRuleLogger {
+
+	RuleLogger logger;
+	int rendered;
+
+	// Counts how often the message is built
+	final Object fact = new Object() {
+		@Override
+		public String toString() {
+			rendered++;
+			return "fact";
+		}
+	};
+
+	@Before
+	public void setUp() {
+		Logger base = Logger.getLogger("spinworld.TestRuleLogger");
+		base.setLevel(Level.WARN);
+		Logger.getLogger("spinworld.TestRuleLogger.sanctions").setLevel(Level.INFO);
+		logger = new RuleLogger(base);
+		rendered = 0;
+	}
+
+	@Test
+	public void testCategories() {
+		assertTrue(logger.isEnabled(RuleLogger.SANCTIONS));
+		assertFalse(logger.isEnabled(RuleLogger.POOLS));
+		assertEquals("spinworld.TestRuleLogger.pools", logger.getLogger(RuleLogger.POOLS).getName());
+	}
+
+	@Test
+	public void testDisabledCategoryBuildsNothing() {
+		logger.info(RuleLogger.POOLS, fact, " surplus");
+		logger.info(RuleLogger.POOLS, "Pool ", fact, " is now ", 0.5, ", ", fact);
+		assertEquals(0, rendered);
+
+		logger.info(RuleLogger.SANCTIONS, "Expulsion: ", fact);
+		assertEquals(1, rendered);
+	}
+
+}
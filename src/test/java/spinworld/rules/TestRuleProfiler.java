@@ -0,0 +1,72 @@
+package spinworld.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
+import org.junit.Test;
+
+import spinworld.RoundType;
+import spinworld.facts.Round;
+
+public class TestRuleProfiler {
+
+	@Test
+	public void testCountsByRoundAndRun() throws IOException {
+		StringWriter out = new StringWriter();
+		RuleProfiler profiler = new RuleProfiler(out);
+
+		profiler.inserted(new Round(1, RoundType.DEMAND));
+		for (int round = 1; round <= 2; round++) {
+			profiler.activated("Monitor");
+			profiler.activated("Monitor");
+			profiler.firing = "Monitor";
+			profiler.inserted(new Object());
+			profiler.retracted();
+			profiler.firing = null;
+			profiler.fired("Monitor", 2000000);
+			profiler.activated("Monitor");
+			profiler.fired("Monitor", 1000000);
+			profiler.inserted(new Round(round + 1, RoundType.DEMAND));
+		}
+		profiler.close();
+
+		Map<String, RuleProfiler.Counts> round = RuleProfiler.read(
+				new BufferedReader(new StringReader(out.toString())), "2");
+		RuleProfiler.Counts monitor = round.get("Monitor");
+		assertEquals(3, monitor.getActivations());
+		assertEquals(2, monitor.getFires());
+		assertEquals(3.0, monitor.getRhsMillis(), 0.001);
+		assertEquals(1, monitor.getInserts());
+		assertEquals(1, monitor.getRetracts());
+		assertEquals(1, round.get(RuleProfiler.EXTERNAL).getInserts());
+
+		Map<String, RuleProfiler.Counts> run = RuleProfiler.read(
+				new BufferedReader(new StringReader(out.toString())), RuleProfiler.RUN);
+		assertEquals(6, run.get("Monitor").getActivations());
+		assertEquals(6.0, run.get("Monitor").getRhsMillis(), 0.001);
+		assertEquals("Monitor", RuleProfiler.hottest(run, 1).get(0).getKey());
+	}
+
+	@Test
+	public void testRunSummedFromRoundsIfNotClosed() throws IOException {
+		StringWriter out = new StringWriter();
+		RuleProfiler profiler = new RuleProfiler(out);
+
+		for (int round = 1; round <= 3; round++) {
+			profiler.inserted(new Round(round, RoundType.DEMAND));
+			profiler.fired("Process Appropriate", 1000000);
+		}
+		profiler.endRound();
+
+		Map<String, RuleProfiler.Counts> run = RuleProfiler.read(
+				new BufferedReader(new StringReader(out.toString())), RuleProfiler.RUN);
+		assertEquals(3, run.get("Process Appropriate").getFires());
+		assertEquals(3, run.get(RuleProfiler.EXTERNAL).getInserts());
+	}
+
+}